@@ -0,0 +1,116 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF Browser                                                         *
+ *                                                                     *
+ * Shows the EDF files of a directory as pages of thumbnails.          *
+ * Double click a thumbnail to open the file. Thumbnails are read      *
+ * from every n-th row only and cached on disk, so opening the same    *
+ * directory again does not read the files.                            *
+ *                                                                     *
+ * Changes:                                                            *
+ *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - First version                                        *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+import java.awt.event.*;
+import java.io.*;
+import java.util.*;
+
+import ij.*;
+import ij.gui.*;
+import ij.io.DirectoryChooser;
+import ij.plugin.PlugIn;
+
+import esrf.edf.EdfWorkers;
+import esrf.edf.ij.*;
+
+/** This plugin browses a directory of EDF images as contact sheets **/
+public class EDF_Browser implements PlugIn {
+
+	private static int thumbnailSize = 128;
+	private static int columns = 8;
+	private static int rows = 6;
+
+	public void run(String arg) {
+		DirectoryChooser dc = new DirectoryChooser("Choose EDF directory");
+		String directory = dc.getDirectory();
+		if (directory == null)
+			return;
+
+		File[] found = new File(directory).listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile()
+						&& file.getName().toLowerCase().endsWith(".edf");
+			}
+		});
+		if (found == null || found.length == 0) {
+			IJ.error("EDF Browser", "No EDF files in " + directory);
+			return;
+		}
+		List<File> files = new ArrayList<File>(Arrays.asList(found));
+		Collections.sort(files, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return f1.getName().compareTo(f2.getName());
+			}
+		});
+
+		GenericDialog gd = new GenericDialog("EDF Browser");
+		gd.addMessage(files.size() + " EDF files");
+		gd.addNumericField("Thumbnail size:", thumbnailSize, 0, 4, "pixels");
+		gd.addNumericField("Columns:", columns, 0);
+		gd.addNumericField("Rows:", rows, 0);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		thumbnailSize = Math.max(16, (int) gd.getNextNumber());
+		columns = Math.max(1, (int) gd.getNextNumber());
+		rows = Math.max(1, (int) gd.getNextNumber());
+
+		EdfThumbnails thumbnails = new EdfThumbnails(
+				EdfThumbnails.getDefaultDirectory(), thumbnailSize);
+		IJ.showStatus("Making thumbnails of " + files.size() + " files");
+		try {
+			Map<File, String> failed = thumbnails.prefetch(files,
+					EdfWorkers.IO_THREADS);
+			for (Map.Entry<File, String> entry : failed.entrySet())
+				IJ.log("EDF Browser: " + entry.getKey().getName() + ": "
+						+ entry.getValue());
+		} catch (InterruptedException ex) {
+			IJ.showStatus("EDF Browser interrupted");
+			return;
+		}
+
+		final EdfContactSheet sheet = new EdfContactSheet(files, thumbnails,
+				columns, rows);
+		final ImagePlus imp = new ImagePlus(new File(directory).getName(),
+				sheet);
+		imp.show();
+		final ImageCanvas canvas = imp.getCanvas();
+		if (canvas == null)
+			return;
+		canvas.addMouseListener(new MouseAdapter() {
+			public void mouseClicked(MouseEvent e) {
+				if (e.getClickCount() != 2)
+					return;
+				File file = sheet.getFile(imp.getCurrentSlice(), canvas
+						.offScreenX(e.getX()), canvas.offScreenY(e.getY()));
+				if (file != null)
+					open(file);
+			}
+		});
+	}
+
+	private void open(File file) {
+		try {
+			ImagePlus imp = EdfImageJ.open(file, false, false);
+			if (imp != null)
+				imp.show();
+		} catch (IOException ex) {
+			IJ.error("EDF Browser", "IOException caught: " + ex);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF image cache settings                                            *
+ *                                                                     *
+ * Sets the size of the session cache of decoded EDF images used by    *
+ * EdfRead_, EDF_Reader and ESRF_Reader, and shows its hit and miss    *
+ * counts. Also sets where EdfRead_ keeps the resolution pyramids of   *
+ * large frames, and how much disk they may take before the least      *
+ * recently viewed are removed. From a macro the statistics are        *
+ * available with                                                      *
+ *                                                                     *
+ *   call("esrf.edf.ij.EdfImageCache.getStatistics");                  *
+ *                                                                     *
+ * Changes:                                                            *
+ *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - First version                                        *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+import esrf.edf.EdfDiskCache;
+import esrf.edf.ij.*;
+
+/** This plugin configures the EDF image and pyramid caches **/
+public class EDF_Cache implements PlugIn {
+
+	public void run(String arg) {
+		EdfImageCache cache = EdfImageCache.getInstance();
+
+		GenericDialog gd = new GenericDialog("EDF Cache");
+		gd.addMessage(EdfImageCache.getStatistics());
+		gd.addNumericField("Cache size (0 = off):",
+				cache.getMaxBytes() >> 20, 0, 6, "MB");
+		gd.addCheckbox("Clear cache", false);
+		gd.addStringField("Pyramid directory:", EdfTiledCanvas
+				.getCacheDirectory().getPath(), 30);
+		gd.addNumericField("Pyramid cache size:", EdfTiledCanvas
+				.getCacheLimit() >> 20, 0, 6, "MB");
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		int cacheSize = Math.max(0, (int) gd.getNextNumber());
+		if (gd.getNextBoolean())
+			cache.clear();
+		cache.setMaxBytes((long) cacheSize << 20);
+		Prefs.set(EdfImageCache.PREFS_KEY, cacheSize);
+		String pyramids = gd.getNextString().trim();
+		int pyramidSize = Math.max(0, (int) gd.getNextNumber());
+		Prefs.set(EdfTiledCanvas.PREFS_DIR_KEY, pyramids);
+		Prefs.set(EdfTiledCanvas.PREFS_SIZE_KEY, pyramidSize);
+		EdfDiskCache.trim(EdfTiledCanvas.getCacheDirectory(), EdfTiledCanvas
+				.getCacheLimit(), null);
+		IJ.log(EdfImageCache.getStatistics());
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF in-place editing                                                *
+ *                                                                     *
+ * Opens an EDF file with its data mapped read-write, for masking or   *
+ * flagging pixels of large files. EDF SaveInPlace, or this plugin     *
+ * with the argument "save", saves the image in front in place: only   *
+ * the pixels which changed are written, and the header only if its    *
+ * keys were edited with Image>Show Info... and Edit. From a macro:    *
+ *                                                                     *
+ *   run("EDF EditInPlace", "open=/data/frame.edf");                   *
+ *   ...                                                               *
+ *   run("EDF SaveInPlace");                                           *
+ *                                                                     *
+ * Changes:                                                            *
+ *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - First version                                        *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+import java.io.*;
+import java.util.*;
+
+import ij.*;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+import esrf.edf.*;
+import esrf.edf.ij.EdfImageJ;
+
+/** This plugin edits EDF files in place through a memory mapping **/
+public class EDF_EditInPlace implements PlugIn {
+
+	private static final String MAPPED_FRAME = "EdfMappedFrame";
+
+	public void run(String arg) {
+		if (!arg.equals("save")) {
+			open(arg);
+			return;
+		}
+		ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp == null || imp.getProperty(MAPPED_FRAME) == null) {
+			IJ.error("EDF EditInPlace", "The image in front was not opened"
+					+ " with EDF EditInPlace");
+			return;
+		}
+		save(imp, (EdfMappedFrame) imp.getProperty(MAPPED_FRAME));
+	}
+
+	private void open(String arg) {
+		OpenDialog od = new OpenDialog("Open EDF for editing in place", arg);
+		if (od.getFileName() == null)
+			return;
+		File file = new File(od.getDirectory(), od.getFileName());
+
+		final EdfMappedFrame frame;
+		ImagePlus imp;
+		try {
+			frame = new EdfMappedFrame(file);
+			try {
+				EdfDataType type = frame.getHeader().getDataType();
+				if (type.getBytesPerPixel() > 2 && type != EdfDataType.FLOAT)
+					throw new EdfFormatException(type.getName()
+							+ " data is converted when opened and cannot"
+							+ " be saved in place");
+				EdfFrameReader reader = new EdfFrameReader(file);
+				try {
+					imp = EdfImageJ.createImage(file.getName(), reader, frame
+							.getHeader());
+				} finally {
+					reader.close();
+				}
+			} catch (IOException ex) {
+				frame.close();
+				throw ex;
+			}
+		} catch (IOException ex) {
+			IJ.error("EDF EditInPlace", "IOException caught: "
+					+ ex.getMessage());
+			return;
+		}
+		imp.setProperty(MAPPED_FRAME, frame);
+		final ImagePlus opened = imp;
+		ImagePlus.addImageListener(new ImageListener() {
+			public void imageOpened(ImagePlus image) {
+			}
+
+			public void imageUpdated(ImagePlus image) {
+			}
+
+			public void imageClosed(ImagePlus image) {
+				if (image != opened)
+					return;
+				ImagePlus.removeImageListener(this);
+				try {
+					frame.close();
+				} catch (IOException ex) {
+					IJ.log("IOException caught: " + ex);
+				}
+			}
+		});
+		imp.show();
+		IJ.showStatus(file.getName()
+				+ " is mapped, run EDF SaveInPlace to save in place");
+	}
+
+	private void save(ImagePlus imp, EdfMappedFrame frame) {
+		if (imp.getStackSize() > 1 || imp.getWidth() != frame.getHeader()
+				.getWidth() || imp.getHeight() != frame.getHeader().getHeight()) {
+			IJ.error("EDF EditInPlace", "The size of " + imp.getTitle()
+					+ " has changed, save it with ESRF Writer");
+			return;
+		}
+		long t0 = System.currentTimeMillis();
+		try {
+			Object pixels = imp.getProcessor().getPixels();
+			int changed;
+			if (pixels instanceof byte[]) {
+				changed = frame.update((byte[]) pixels);
+			} else if (pixels instanceof short[]) {
+				boolean signed = frame.getHeader().getDataType() == EdfDataType.SIGNED_SHORT;
+				changed = frame.update((short[]) pixels, signed ? 32768 : 0);
+			} else if (pixels instanceof float[]) {
+				changed = frame.update((float[]) pixels);
+			} else {
+				IJ.error("EDF EditInPlace", "RGB images cannot be saved in place");
+				return;
+			}
+			boolean header = false;
+			Object info = imp.getProperty("Info");
+			if (info instanceof String)
+				header = frame.setKeys(parseKeys((String) info));
+			frame.force();
+			imp.changes = false;
+			IJ.showStatus("Saved " + changed + " pixels"
+					+ (header ? " and the header" : "") + " of "
+					+ frame.getFile().getName() + " in "
+					+ (System.currentTimeMillis() - t0) + " ms");
+		} catch (IOException ex) {
+			IJ.error("EDF EditInPlace", "IOException caught: "
+					+ ex.getMessage());
+		}
+	}
+
+	// The "key = value" lines EdfImageJ puts in the Info property
+	private Map<String, String> parseKeys(String info) {
+		Map<String, String> keys = new LinkedHashMap<String, String>();
+		for (String line : info.split("\n")) {
+			int i = line.indexOf('=');
+			if (i <= 0)
+				continue;
+			String key = line.substring(0, i).trim();
+			if (key.length() > 0)
+				keys.put(key, line.substring(i + 1).trim());
+		}
+		return keys;
+	}
+}
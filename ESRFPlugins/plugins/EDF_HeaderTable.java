@@ -0,0 +1,130 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF Header Table                                                    *
+ *                                                                     *
+ * Reads the headers of a series of EDF files, without the pixel data, *
+ * into a results table or a CSV file with one row per file. All keys  *
+ * or a comma separated list of keys are kept, and the spec motor and  *
+ * counter lists can be expanded into one column per motor or counter. *
+ *                                                                     *
+ * Changes:                                                            *
+ *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - First version                                        *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+import java.io.*;
+import java.util.*;
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.io.*;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+import esrf.edf.*;
+
+/** This plugin tabulates the headers of a series of EDF images **/
+public class EDF_HeaderTable implements PlugIn {
+
+	private static String keyList = "";
+	private static boolean expandLists = true;
+	private static boolean saveCsv = false;
+
+	public void run(String arg) {
+		OpenDialog od = new OpenDialog("Choose first image of the series", arg);
+		if (od.getFileName() == null)
+			return;
+		List<File> files = EdfSeriesScan.listSeries(new File(od.getDirectory(),
+				od.getFileName()));
+
+		GenericDialog gd = new GenericDialog("EDF Header Table");
+		gd.addMessage(files.size() + " files");
+		gd.addStringField("Keys (empty for all):", keyList, 40);
+		gd.addCheckbox("Expand motor and counter lists", expandLists);
+		gd.addNumericField("Reader threads:", EdfWorkers.IO_THREADS, 0);
+		gd.addCheckbox("Save as CSV instead of a table", saveCsv);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		keyList = gd.getNextString().trim();
+		expandLists = gd.getNextBoolean();
+		int threads = Math.max(1, (int) gd.getNextNumber());
+		saveCsv = gd.getNextBoolean();
+
+		List<String> keys = null;
+		if (keyList.length() > 0) {
+			keys = new ArrayList<String>();
+			for (String key : keyList.split(",")) {
+				if (key.trim().length() > 0)
+					keys.add(key.trim());
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		IJ.showStatus("Reading " + files.size() + " EDF headers");
+		EdfHeaderTable table;
+		try {
+			table = EdfHeaderTable.read(files, keys, expandLists, threads);
+		} catch (InterruptedException ex) {
+			IJ.showStatus("EDF Header Table interrupted");
+			return;
+		}
+		for (Map.Entry<File, String> entry : table.getFailed().entrySet())
+			IJ.log("EDF Header Table: skipped " + entry.getKey().getName()
+					+ ": " + entry.getValue());
+		IJ.showStatus("Read " + files.size() + " EDF headers in "
+				+ IJ.d2s((System.currentTimeMillis() - start) / 1000.0, 1)
+				+ " s");
+
+		if (saveCsv)
+			saveCsv(table);
+		else
+			showTable(table);
+	}
+
+	private void saveCsv(EdfHeaderTable table) {
+		SaveDialog sd = new SaveDialog("Save EDF headers as", "edf_headers",
+				".csv");
+		if (sd.getFileName() == null)
+			return;
+		File file = new File(sd.getDirectory(), sd.getFileName());
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(file),
+					"ISO-8859-1");
+			try {
+				table.writeCsv(out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException ex) {
+			IJ.error("EDF Header Table", "IOException caught: " + ex);
+		}
+	}
+
+	/** Numeric values go in as numbers, so that they can be plotted **/
+	private void showTable(EdfHeaderTable table) {
+		ResultsTable rt = new ResultsTable();
+		List<File> files = table.getFiles();
+		for (int i = 0; i < table.size(); i++) {
+			rt.incrementCounter();
+			rt.addLabel(files.get(i).getName());
+			for (String column : table.getColumns()) {
+				String value = table.get(i, column);
+				if (value == null) {
+					rt.addValue(column, Double.NaN);
+					continue;
+				}
+				try {
+					rt.addValue(column, Double.parseDouble(value));
+				} catch (NumberFormatException ex) {
+					rt.addValue(column, value);
+				}
+			}
+		}
+		rt.show("EDF Header Table");
+	}
+}
@@ -0,0 +1,222 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF Hyperstack                                                      *
+ *                                                                     *
+ * Opens the files of a 2D or 3D scan, such as angle x energy x repeat *
+ * as a hyperstack of channels, slices and frames. The position of     *
+ * each file comes from its name, with a pattern like                  *
+ *                                                                     *
+ *   scan_{z}_e{c}_*.edf                                               *
+ *                                                                     *
+ * where {c}, {z} and {t} stand for numbers and * for any text, or     *
+ * from header keys or motor positions such as srot and energy. Every  *
+ * slice is read straight into its place in the hyperstack, so there   *
+ * is no Stack to Hyperstack step reordering the data afterwards.      *
+ *                                                                     *
+ * Changes:                                                            *
+ *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - First version                                        *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+import esrf.edf.*;
+import esrf.edf.ij.*;
+
+/** This plugin opens a multi-dimensional EDF scan as a hyperstack **/
+public class EDF_Hyperstack implements PlugIn {
+
+	private static final String[] origins = { "File names", "Header keys" };
+	private static final int FROM_NAMES = 0;
+
+	private static int origin = FROM_NAMES;
+	private static String[] keys = { "", "", "" };
+	private static double tolerance = 0.001;
+	private static boolean virtual = false;
+	private static int parallelReads = EdfWorkers.IO_THREADS;
+
+	public void run(String arg) {
+		OpenDialog od = new OpenDialog("Choose an image of the scan", arg);
+		if (od.getFileName() == null)
+			return;
+		List<File> files = EdfSeriesScan.listSeries(new File(od.getDirectory(),
+				od.getFileName()));
+
+		GenericDialog gd = new GenericDialog("EDF Hyperstack");
+		gd.addMessage(files.size() + " files");
+		gd.addChoice("Positions from:", origins, origins[origin]);
+		gd.addStringField("File name pattern:", guessPattern(od.getFileName()),
+				30);
+		gd.addStringField("Channel key:", keys[EdfHyperstackPlan.CHANNELS]);
+		gd.addStringField("Slice key:", keys[EdfHyperstackPlan.SLICES]);
+		gd.addStringField("Frame key:", keys[EdfHyperstackPlan.FRAMES]);
+		gd.addNumericField("Position tolerance:", tolerance, 4);
+		gd.addCheckbox("Use virtual stack", virtual);
+		gd.addNumericField("Parallel reads:", parallelReads, 0);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		origin = gd.getNextChoiceIndex();
+		String pattern = gd.getNextString().trim();
+		for (int d = 0; d < keys.length; d++)
+			keys[d] = gd.getNextString().trim();
+		tolerance = Math.max(0, gd.getNextNumber());
+		virtual = gd.getNextBoolean();
+		parallelReads = Math.max(1, (int) gd.getNextNumber());
+
+		IJ.showStatus("Reading " + files.size() + " EDF headers");
+		EdfSeriesScan scan;
+		try {
+			scan = EdfSeriesScan.scan(files, parallelReads);
+		} catch (InterruptedException ex) {
+			return;
+		}
+		for (Map.Entry<File, String> entry : scan.getRejected().entrySet())
+			IJ.log("EDF Hyperstack: skipped " + entry.getKey().getName()
+					+ ": " + entry.getValue());
+		if (scan.size() == 0) {
+			IJ.error("EDF Hyperstack", "No readable EDF images found");
+			return;
+		}
+
+		EdfHyperstackPlan plan;
+		try {
+			if (origin == FROM_NAMES)
+				plan = EdfHyperstackPlan.fromPattern(scan.getFiles(), pattern);
+			else
+				plan = EdfHyperstackPlan.fromHeaders(scan.getFiles(), scan
+						.getHeaders(), keys, tolerance);
+		} catch (IllegalArgumentException ex) {
+			IJ.error("EDF Hyperstack", ex.getMessage());
+			return;
+		}
+		for (Map.Entry<File, String> entry : plan.getSkipped().entrySet())
+			IJ.log("EDF Hyperstack: skipped " + entry.getKey().getName()
+					+ ": " + entry.getValue());
+		if (plan.getMissing() == plan.getStackSize()) {
+			IJ.error("EDF Hyperstack", "No file fits the pattern or keys");
+			return;
+		}
+		IJ.log("EDF Hyperstack: " + plan.getChannels() + " channels, "
+				+ plan.getSlices() + " slices, " + plan.getFrames()
+				+ " frames, " + plan.getMissing() + " positions without a file");
+
+		EdfHeader reference = scan.getReference();
+		ImageStack stack;
+		try {
+			if (virtual) {
+				stack = createVirtualStack(scan, plan);
+			} else {
+				// The stack and the read buffers of the loader
+				long bytes = (long) plan.getStackSize()
+						* reference.getPixelCount()
+						* (EdfImageJ.getBitDepth(reference.getDataType()) / 8)
+						+ new EdfParallelLoader(parallelReads)
+								.getBufferedBytes(reference.getFrameSize());
+				if (bytes > IJ.maxMemory() - IJ.currentMemory()) {
+					IJ.error("EDF Hyperstack", "The hyperstack needs "
+							+ (bytes >> 20) + " MB, more than the free"
+							+ " memory.\nUse a virtual stack.");
+					return;
+				}
+				stack = loadStack(scan, plan);
+			}
+		} catch (IOException ex) {
+			IJ.error("EDF Hyperstack", "IOException caught: " + ex);
+			return;
+		} catch (InterruptedException ex) {
+			IJ.showStatus("EDF Hyperstack interrupted");
+			return;
+		}
+
+		ImagePlus imp = new ImagePlus(od.getFileName(), stack);
+		imp.setDimensions(plan.getChannels(), plan.getSlices(), plan
+				.getFrames());
+		imp.setOpenAsHyperStack(true);
+		if (reference.getDataType() == EdfDataType.SIGNED_SHORT)
+			imp.getCalibration().setSigned16BitCalibration();
+		imp.show();
+	}
+
+	// The name with its last number replaced by {t}
+	private String guessPattern(String name) {
+		return name.replaceFirst("\\d+(?=\\D*$)", "{t}");
+	}
+
+	private ImageStack createVirtualStack(EdfSeriesScan scan,
+			EdfHyperstackPlan plan) throws EdfFormatException {
+		List<File> files = new ArrayList<File>();
+		List<EdfHeader> headers = new ArrayList<EdfHeader>();
+		for (int source : plan.getSources()) {
+			files.add(source >= 0 ? scan.getFiles().get(source) : null);
+			headers.add(source >= 0 ? scan.getHeaders().get(source) : null);
+		}
+		return new EdfVirtualStack(files, headers);
+	}
+
+	/**
+	 * Reads the files with parallelReads in flight and decodes them on one
+	 * thread per processor. Each decoded array becomes the slice at its
+	 * hyperstack position as it is, positions without a file are blank.
+	 **/
+	private ImageStack loadStack(EdfSeriesScan scan, EdfHyperstackPlan plan)
+			throws InterruptedException, EdfFormatException {
+		int[] positions = plan.getSources();
+		final List<File> files = new ArrayList<File>();
+		List<EdfHeader> headers = new ArrayList<EdfHeader>();
+		for (int source : positions) {
+			if (source >= 0) {
+				files.add(scan.getFiles().get(source));
+				headers.add(scan.getHeaders().get(source));
+			}
+		}
+		final AtomicInteger decoded = new AtomicInteger();
+		final ThreadLocal<EdfConvert> converts = new ThreadLocal<EdfConvert>() {
+			protected EdfConvert initialValue() {
+				return new EdfConvert();
+			}
+		};
+		IJ.showStatus("Reading " + files.size() + " EDF files");
+		EdfParallelLoader loader = new EdfParallelLoader(parallelReads);
+		Object[] pixels = loader.load(files, headers,
+				new EdfParallelLoader.Decoder() {
+					public Object decode(int index, EdfHeader header,
+							ByteBuffer data) throws IOException {
+						Object slice = EdfImageJ.decodePixels(header, data,
+								converts.get());
+						IJ.showProgress(decoded.incrementAndGet(), files
+								.size());
+						return slice;
+					}
+				});
+		for (Map.Entry<File, String> entry : loader.getFailed().entrySet())
+			IJ.log("EDF Hyperstack: skipped " + entry.getKey().getName()
+					+ ": " + entry.getValue());
+		IJ.showProgress(1.0);
+
+		EdfHeader reference = scan.getReference();
+		ImageStack stack = new ImageStack(reference.getWidth(), reference
+				.getHeight());
+		int loaded = 0;
+		for (int source : positions) {
+			Object slice = source >= 0 ? pixels[loaded] : null;
+			String label = source >= 0 ? files.get(loaded++).getName() : null;
+			if (slice == null)
+				slice = EdfImageJ.createPixels(reference);
+			stack.addSlice(label, slice);
+		}
+		return stack;
+	}
+}
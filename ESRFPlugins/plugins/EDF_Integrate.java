@@ -0,0 +1,231 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF Integrate                                                       *
+ *                                                                     *
+ * Integrates a series of 2D diffraction EDF files azimuthally into 1D *
+ * profiles, I(q) or I(2theta), one row per file of the result image.  *
+ * The geometry is taken from the Center_1, Center_2, SampleDistance,  *
+ * PSize_1, PSize_2 and WaveLength keys of the first file where they   *
+ * are present. Pixels which are nonzero in the chosen mask image are  *
+ * left out. The pixel to bin lookup table is cached in the ImageJ     *
+ * preferences directory, so integrating with the same geometry again  *
+ * starts at once.                                                     *
+ *                                                                     *
+ * Changes:                                                            *
+ *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - First version                                        *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+import java.io.*;
+import java.util.*;
+
+import ij.*;
+import ij.gui.*;
+import ij.io.OpenDialog;
+import ij.measure.Calibration;
+import ij.plugin.PlugIn;
+import ij.process.*;
+
+import esrf.edf.*;
+
+/** This plugin integrates EDF diffraction images into radial profiles **/
+public class EDF_Integrate implements PlugIn {
+
+	private static final String NO_MASK = "None";
+
+	private static int parallelReads = EdfWorkers.IO_THREADS;
+	private static int bins = 1000;
+	private static boolean solidAngle = true;
+	private static boolean plotMean = true;
+	private static String maskTitle = NO_MASK;
+
+	public void run(String arg) {
+		OpenDialog od = new OpenDialog("Choose first image of the series", arg);
+		if (od.getFileName() == null)
+			return;
+		List<File> files = EdfSeriesScan.listSeries(new File(od.getDirectory(),
+				od.getFileName()));
+
+		EdfHeader first;
+		try {
+			EdfFrameReader reader = new EdfFrameReader(files.get(0));
+			try {
+				first = reader.readHeader();
+			} finally {
+				reader.close();
+			}
+		} catch (IOException ex) {
+			IJ.error("EDF Integrate", "IOException caught: " + ex.getMessage());
+			return;
+		}
+		int width = first.getWidth();
+		int height = first.getHeight();
+		EdfAzimuthalIntegrator.Geometry geometry = EdfAzimuthalIntegrator.Geometry
+				.fromHeader(first);
+		if (geometry == null)
+			geometry = new EdfAzimuthalIntegrator.Geometry(width / 2.0,
+					height / 2.0, 0.1, 100e-6, 100e-6, 1e-10);
+
+		String[] masks = getMaskTitles(width, height);
+		GenericDialog gd = new GenericDialog("EDF Integrate");
+		gd.addMessage(files.size() + " files of " + width + "x" + height
+				+ " pixels");
+		gd.addNumericField("Centre X (pixels):", geometry.getCentreX(), 2);
+		gd.addNumericField("Centre Y (pixels):", geometry.getCentreY(), 2);
+		gd.addNumericField("Distance (mm):", geometry.getDistance() * 1e3, 3);
+		gd.addNumericField("Pixel width (um):",
+				geometry.getPixelSizeX() * 1e6, 2);
+		gd.addNumericField("Pixel height (um):",
+				geometry.getPixelSizeY() * 1e6, 2);
+		gd.addNumericField("Wavelength (A), 0 for 2theta:", geometry
+				.getWavelength() * 1e10, 5);
+		gd.addNumericField("Bins:", bins, 0);
+		gd.addChoice("Mask:", masks, Arrays.asList(masks).contains(maskTitle)
+				? maskTitle : NO_MASK);
+		gd.addCheckbox("Solid angle correction", solidAngle);
+		gd.addNumericField("Parallel reads:", parallelReads, 0);
+		gd.addCheckbox("Plot mean profile", plotMean);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		double centreX = gd.getNextNumber();
+		double centreY = gd.getNextNumber();
+		double distance = gd.getNextNumber() * 1e-3;
+		double pixelWidth = gd.getNextNumber() * 1e-6;
+		double pixelHeight = gd.getNextNumber() * 1e-6;
+		double wavelength = Math.max(0, gd.getNextNumber() * 1e-10);
+		bins = Math.max(1, (int) gd.getNextNumber());
+		maskTitle = gd.getNextChoice();
+		solidAngle = gd.getNextBoolean();
+		parallelReads = Math.max(1, (int) gd.getNextNumber());
+		plotMean = gd.getNextBoolean();
+		if (gd.invalidNumber() || distance <= 0 || pixelWidth <= 0
+				|| pixelHeight <= 0) {
+			IJ.error("EDF Integrate", "Distance and pixel size must be positive");
+			return;
+		}
+		geometry = new EdfAzimuthalIntegrator.Geometry(centreX, centreY,
+				distance, pixelWidth, pixelHeight, wavelength);
+
+		long start = System.currentTimeMillis();
+		IJ.showStatus("Setting up the integration");
+		EdfAzimuthalIntegrator integrator;
+		try {
+			integrator = new EdfAzimuthalIntegrator(geometry, width, height,
+					getMask(maskTitle), bins, solidAngle, new File(Prefs
+							.getPrefsDir(), "edf-integration"));
+		} catch (IOException ex) {
+			IJ.error("EDF Integrate", "IOException caught: " + ex.getMessage());
+			return;
+		} catch (IllegalArgumentException ex) {
+			IJ.error("EDF Integrate", ex.getMessage());
+			return;
+		}
+		long setup = System.currentTimeMillis() - start;
+
+		start = System.currentTimeMillis();
+		IJ.showStatus("Integrating " + files.size() + " EDF files");
+		EdfParallelLoader loader = new EdfParallelLoader(parallelReads);
+		float[][] profiles;
+		try {
+			profiles = integrator.integrate(files, loader);
+		} catch (InterruptedException ex) {
+			IJ.showStatus("EDF Integrate interrupted");
+			return;
+		}
+		for (Map.Entry<File, String> entry : loader.getFailed().entrySet())
+			IJ.log("EDF Integrate: skipped " + entry.getKey().getName() + ": "
+					+ entry.getValue());
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+		IJ.showStatus("Integrated " + files.size() + " EDF files in "
+				+ IJ.d2s(seconds, 1) + " s, lookup table "
+				+ (integrator.isCached() ? "loaded" : "made") + " in "
+				+ setup + " ms");
+
+		show(od.getFileName(), integrator, profiles);
+		if (plotMean)
+			plotMean(od.getFileName(), integrator, profiles);
+	}
+
+	// Images of the frame size which can serve as a mask
+	private String[] getMaskTitles(int width, int height) {
+		List<String> titles = new ArrayList<String>();
+		titles.add(NO_MASK);
+		int[] ids = WindowManager.getIDList();
+		if (ids != null) {
+			for (int id : ids) {
+				ImagePlus imp = WindowManager.getImage(id);
+				if (imp != null && imp.getWidth() == width
+						&& imp.getHeight() == height)
+					titles.add(imp.getTitle());
+			}
+		}
+		return titles.toArray(new String[titles.size()]);
+	}
+
+	private byte[] getMask(String title) {
+		if (title.equals(NO_MASK))
+			return null;
+		ImagePlus imp = WindowManager.getImage(title);
+		if (imp == null)
+			return null;
+		ImageProcessor ip = imp.getProcessor();
+		byte[] mask = new byte[ip.getPixelCount()];
+		for (int i = 0; i < mask.length; i++)
+			mask[i] = (byte) (ip.getf(i) != 0 ? 1 : 0);
+		return mask;
+	}
+
+	// One row per file, NaN for the files which failed
+	private void show(String name, EdfAzimuthalIntegrator integrator,
+			float[][] profiles) {
+		int bins = integrator.getBins();
+		float[] pixels = new float[bins * profiles.length];
+		for (int i = 0; i < profiles.length; i++) {
+			if (profiles[i] != null)
+				System.arraycopy(profiles[i], 0, pixels, i * bins, bins);
+			else
+				Arrays.fill(pixels, i * bins, (i + 1) * bins, Float.NaN);
+		}
+		ImagePlus imp = new ImagePlus(name + " " + getProfileName(integrator),
+				new FloatProcessor(bins, profiles.length, pixels, null));
+		Calibration cal = imp.getCalibration();
+		cal.pixelWidth = integrator.getBinWidth();
+		cal.xOrigin = -integrator.getRadialMin() / integrator.getBinWidth();
+		cal.setXUnit(integrator.getGeometry().isQ() ? "1/nm" : "deg");
+		cal.setYUnit("frame");
+		imp.resetDisplayRange();
+		imp.show();
+	}
+
+	private void plotMean(String name, EdfAzimuthalIntegrator integrator,
+			float[][] profiles) {
+		int bins = integrator.getBins();
+		double[] mean = new double[bins];
+		int n = 0;
+		for (float[] profile : profiles) {
+			if (profile == null)
+				continue;
+			for (int b = 0; b < bins; b++)
+				mean[b] += profile[b];
+			n++;
+		}
+		if (n == 0)
+			return;
+		for (int b = 0; b < bins; b++)
+			mean[b] /= n;
+		Plot plot = new Plot(name + " mean " + getProfileName(integrator),
+				integrator.getGeometry().isQ() ? "q (1/nm)" : "2theta (deg)",
+				"Intensity");
+		plot.addPoints(integrator.getRadialAxis(), mean, Plot.LINE);
+		plot.show();
+	}
+
+	private String getProfileName(EdfAzimuthalIntegrator integrator) {
+		return integrator.getGeometry().isQ() ? "I(q)" : "I(2theta)";
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF Modules                                                         *
+ *                                                                     *
+ * Assembles the frames of a tiled detector which writes one EDF file  *
+ * per module per frame, such as scan_0001_m00.edf ... m11.edf, into   *
+ * one image or a stack. The module positions and flips come from a    *
+ * layout file, see esrf/edf/EdfModuleLayout.java for its format.      *
+ *                                                                     *
+ * Changes:                                                            *
+ *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - First version                                        *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+import java.io.*;
+import java.util.*;
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.io.*;
+import ij.plugin.PlugIn;
+import ij.process.*;
+
+import esrf.edf.*;
+
+/** This plugin stitches per-module EDF files into full detector frames **/
+public class EDF_Modules implements PlugIn {
+
+	private static boolean firstFrameOnly = false;
+
+	public void run(String arg) {
+		OpenDialog od = new OpenDialog("Choose module layout file", arg);
+		if (od.getFileName() == null)
+			return;
+		File layoutFile = new File(od.getDirectory(), od.getFileName());
+		DirectoryChooser dc = new DirectoryChooser(
+				"Choose directory of module files");
+		if (dc.getDirectory() == null)
+			return;
+		File directory = new File(dc.getDirectory());
+
+		EdfModuleLayout layout;
+		SortedMap<String, File[]> found;
+		try {
+			layout = EdfModuleLayout.read(layoutFile);
+			found = layout.findFrames(directory);
+		} catch (IOException ex) {
+			IJ.error("EDF Modules", "IOException caught: " + ex.getMessage());
+			return;
+		}
+		if (found.isEmpty()) {
+			IJ.error("EDF Modules", "No files named <frame>_<module>.edf for\n"
+					+ "the modules of " + layoutFile.getName() + " in "
+					+ directory);
+			return;
+		}
+
+		GenericDialog gd = new GenericDialog("EDF Modules");
+		gd.addMessage(found.size() + " frames of "
+				+ layout.getModules().size() + " modules");
+		gd.addNumericField("Reader threads:", EdfWorkers.IO_THREADS, 0);
+		gd.addCheckbox("First frame only", firstFrameOnly);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		int threads = Math.max(1, (int) gd.getNextNumber());
+		firstFrameOnly = gd.getNextBoolean();
+
+		List<String> names = new ArrayList<String>(found.keySet());
+		List<File[]> frames = new ArrayList<File[]>(found.values());
+		if (firstFrameOnly) {
+			names = names.subList(0, 1);
+			frames = frames.subList(0, 1);
+		}
+		for (int f = 0; f < frames.size(); f++) {
+			for (int m = 0; m < frames.get(f).length; m++) {
+				if (frames.get(f)[m] == null)
+					IJ.log("EDF Modules: frame " + names.get(f)
+							+ " has no module "
+							+ layout.getModules().get(m).getName());
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		EdfModuleAssembler assembler;
+		List<Object> pixels = new ArrayList<Object>();
+		try {
+			assembler = new EdfModuleAssembler(layout, frames.get(0), threads);
+			long frameBytes = (long) assembler.getWidth()
+					* assembler.getHeight() * (assembler.isShort() ? 2 : 4);
+			long stackBytes = frameBytes * frames.size();
+			if (stackBytes > IJ.maxMemory() - IJ.currentMemory()) {
+				IJ.error("EDF Modules", frames.size() + " frames need "
+						+ (stackBytes >> 20)
+						+ " MB, more than the free memory");
+				return;
+			}
+			for (int f = 0; f < frames.size(); f++)
+				pixels.add(assembler.createFrame());
+			IJ.showStatus("Assembling " + frames.size() + " frames");
+			assembler.assemble(frames, pixels);
+		} catch (IOException ex) {
+			IJ.error("EDF Modules", "IOException caught: " + ex.getMessage());
+			return;
+		} catch (InterruptedException ex) {
+			IJ.showStatus("EDF Modules interrupted");
+			return;
+		}
+		for (Map.Entry<File, String> entry : assembler.getFailed().entrySet())
+			IJ.log("EDF Modules: skipped " + entry.getKey().getName() + ": "
+					+ entry.getValue());
+		IJ.showStatus("Assembled " + frames.size() + " frames in "
+				+ IJ.d2s((System.currentTimeMillis() - start) / 1000.0, 1)
+				+ " s");
+
+		int width = assembler.getWidth();
+		int height = assembler.getHeight();
+		ImageStack stack = new ImageStack(width, height);
+		for (int f = 0; f < frames.size(); f++) {
+			Object frame = pixels.get(f);
+			ImageProcessor ip = frame instanceof short[] ? new ShortProcessor(
+					width, height, (short[]) frame, null) : new FloatProcessor(
+					width, height, (float[]) frame, null);
+			stack.addSlice(names.get(f), ip);
+		}
+		ImagePlus imp = new ImagePlus(names.size() == 1 ? names.get(0)
+				: layoutFile.getName(), stack);
+		imp.resetDisplayRange();
+		imp.show();
+	}
+}
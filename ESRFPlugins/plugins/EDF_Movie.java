@@ -0,0 +1,293 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF Movie                                                           *
+ *                                                                     *
+ * Makes an AVI movie of a series of EDF images, replacing the         *
+ * EdfMovie macro. Takes the same arguments,                           *
+ *                                                                     *
+ *   directory,start,stop,step,width,height                            *
+ *                                                                     *
+ * for example                                                         *
+ *                                                                     *
+ *   run("EDF Movie",                                                  *
+ *       "/data/opid11/external/me1015/D30_30_,0,490,10,512,512");     *
+ *                                                                     *
+ * which reads D30_30_0000.edf, D30_30_0010.edf, ... from the          *
+ * directory and writes D30_30_0_490_10.avi next to them. Without      *
+ * arguments a dialog asks for the series and the movie settings.      *
+ *                                                                     *
+ * Changes:                                                            *
+ *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - First version, frames are decoded in parallel and    *
+ *                written one at a time                                *
+ *              - Frames without ByteOrder are read as LowByteFirst,   *
+ *                like EDF Reader which the macro used                 *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+import java.awt.image.IndexColorModel;
+import java.io.*;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.concurrent.*;
+
+import ij.*;
+import ij.gui.GenericDialog;
+import ij.plugin.*;
+import ij.process.*;
+
+import esrf.edf.*;
+import esrf.edf.ij.*;
+
+/** This plugin writes a series of EDF images as an AVI movie **/
+public class EDF_Movie implements PlugIn {
+
+	private static final String[] ranges = { "Fixed", "Automatic" };
+	private static final String[] compressions = { "MJPEG", "Uncompressed" };
+	private static final String[] luts = { "Fire", "Grays" };
+
+	// Frames sampled for the automatic display range
+	private static final int RANGE_SAMPLES = 5;
+	private static final double SATURATED = 0.35;
+	private static final float JPEG_QUALITY = 0.9f;
+
+	// The defaults are those of the EdfMovie macro
+	private String directory = "";
+	private int start = 0;
+	private int stop = 0;
+	private int step = 1;
+	private int width = 512;
+	private int height = 512;
+	private boolean autoRange = false;
+	private double min = 1000;
+	private double max = 1500;
+	private boolean mjpeg = true;
+	private String lut = "Fire";
+	private double fps = 7;
+
+	public void run(String arg) {
+		// Macros pass the comma separated arguments as options
+		String parameters = arg;
+		if (parameters.length() == 0 && Macro.getOptions() != null
+				&& Macro.getOptions().indexOf('=') < 0)
+			parameters = Macro.getOptions().trim();
+		if (parameters.length() > 0) {
+			if (!parseArguments(parameters))
+				return;
+		} else if (!showDialog()) {
+			return;
+		}
+		if (step < 1)
+			step = 1;
+
+		File dataDirectory = new File(directory);
+		String stem = dataDirectory.getName();
+		List<File> files = new ArrayList<File>();
+		for (int i = start; i < stop; i += step) {
+			File file = new File(dataDirectory, stem
+					+ String.format("%04d", i) + ".edf");
+			if (file.isFile())
+				files.add(file);
+			else
+				IJ.log("EDF Movie: " + file + " not found");
+		}
+		if (files.isEmpty()) {
+			IJ.error("EDF Movie", "No EDF images found in " + directory);
+			return;
+		}
+		File movie = new File(dataDirectory, stem + start + "_" + stop + "_"
+				+ step + ".avi");
+
+		try {
+			makeMovie(files, movie);
+		} catch (IOException ex) {
+			IJ.error("EDF Movie", "IOException caught: " + ex);
+		}
+	}
+
+	private boolean parseArguments(String parameters) {
+		String[] fields = parameters.split(",");
+		if (fields.length != 6) {
+			IJ.error("EDF Movie",
+					"Expected directory,start,stop,step,width,height but got\n"
+							+ parameters);
+			return false;
+		}
+		try {
+			directory = fields[0].trim();
+			start = Integer.parseInt(fields[1].trim());
+			stop = Integer.parseInt(fields[2].trim());
+			step = Integer.parseInt(fields[3].trim());
+			width = Integer.parseInt(fields[4].trim());
+			height = Integer.parseInt(fields[5].trim());
+		} catch (NumberFormatException ex) {
+			IJ.error("EDF Movie", "Invalid number in " + parameters);
+			return false;
+		}
+		return true;
+	}
+
+	private boolean showDialog() {
+		GenericDialog gd = new GenericDialog("EDF Movie");
+		gd.addStringField("Directory:", directory, 40);
+		gd.addNumericField("Start:", start, 0);
+		gd.addNumericField("Stop:", stop, 0);
+		gd.addNumericField("Step:", step, 0);
+		gd.addNumericField("Width:", width, 0);
+		gd.addNumericField("Height:", height, 0);
+		gd.addChoice("Display range:", ranges, ranges[0]);
+		gd.addNumericField("Minimum:", min, 0);
+		gd.addNumericField("Maximum:", max, 0);
+		gd.addChoice("Lookup table:", luts, lut);
+		gd.addChoice("Compression:", compressions, compressions[0]);
+		gd.addNumericField("Frame rate:", fps, 1, 6, "fps");
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+		directory = gd.getNextString();
+		start = (int) gd.getNextNumber();
+		stop = (int) gd.getNextNumber();
+		step = (int) gd.getNextNumber();
+		width = (int) gd.getNextNumber();
+		height = (int) gd.getNextNumber();
+		autoRange = gd.getNextChoiceIndex() == 1;
+		min = gd.getNextNumber();
+		max = gd.getNextNumber();
+		lut = gd.getNextChoice();
+		mjpeg = gd.getNextChoiceIndex() == 0;
+		fps = gd.getNextNumber();
+		if (width < 1 || height < 1 || fps <= 0) {
+			IJ.error("EDF Movie", "Invalid movie size or frame rate");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Frames are decoded, scaled, converted and encoded by a pool of workers
+	 * and written in order. At most two frames per worker are in flight, so
+	 * memory does not depend on the length of the movie.
+	 **/
+	private void makeMovie(List<File> files, File movie) throws IOException {
+		final IndexColorModel cm = getLut();
+		if (autoRange)
+			computeRange(files);
+		IJ.log("EDF Movie: " + files.size() + " frames, display range "
+				+ IJ.d2s(min) + "-" + IJ.d2s(max) + ", writing " + movie);
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		LinkedList<Future<byte[]>> window = new LinkedList<Future<byte[]>>();
+		AviStreamWriter writer = new AviStreamWriter(movie, width, height, fps,
+				mjpeg, cm);
+		try {
+			int written = 0;
+			for (int i = 0; i < files.size(); i++) {
+				final File file = files.get(i);
+				window.add(workers.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						return encodeFrame(file, cm);
+					}
+				}));
+				if (window.size() >= 2 * threads) {
+					written += writeFrame(writer, window.removeFirst());
+					IJ.showProgress(written, files.size());
+				}
+			}
+			while (!window.isEmpty()) {
+				written += writeFrame(writer, window.removeFirst());
+				IJ.showProgress(written, files.size());
+			}
+		} finally {
+			for (Future<byte[]> frame : window)
+				frame.cancel(true);
+			workers.shutdownNow();
+			writer.close();
+			IJ.showProgress(1.0);
+		}
+		IJ.showStatus("EDF Movie: wrote " + writer.getFrameCount()
+				+ " frames to " + movie.getName());
+	}
+
+	private int writeFrame(AviStreamWriter writer, Future<byte[]> frame)
+			throws IOException {
+		try {
+			writer.writeFrame(frame.get());
+			return 1;
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException("Interrupted");
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	private byte[] encodeFrame(File file, IndexColorModel cm)
+			throws IOException {
+		ImageProcessor ip = readFrame(file);
+		ip.setMinAndMax(min, max);
+		byte[] pixels = (byte[]) ip.convertToByte(true).getPixels();
+		if (mjpeg)
+			return AviStreamWriter.toJpeg(pixels, width, height, cm,
+					JPEG_QUALITY);
+		return AviStreamWriter.toDib(pixels, width, height);
+	}
+
+	/**
+	 * Reads and scales a frame. 8-bit frames, which convertToByte does not
+	 * rescale, and signed 16-bit frames, which are read offset by 32768, are
+	 * returned as float so that the display range is in data units.
+	 **/
+	private ImageProcessor readFrame(File file) throws IOException {
+		EdfFrameReader reader = new EdfFrameReader(file);
+		try {
+			// The EdfMovie macro opened frames with EDF Reader, which reads
+			// frames without ByteOrder as LowByteFirst
+			EdfHeader header = reader.readHeader().withDefaultByteOrder(
+					ByteOrder.LITTLE_ENDIAN);
+			ImageProcessor ip = EdfImageJ.readProcessor(reader, header);
+			ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+			ip = ip.resize(width, height);
+			if (header.getDataType() == EdfDataType.SIGNED_SHORT) {
+				ip = ip.convertToFloat();
+				ip.add(-32768);
+			} else if (ip instanceof ByteProcessor) {
+				ip = ip.convertToFloat();
+			}
+			return ip;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/** Takes the widest saturated range over a few evenly spaced frames **/
+	private void computeRange(List<File> files) throws IOException {
+		int samples = Math.min(RANGE_SAMPLES, files.size());
+		ContrastEnhancer enhancer = new ContrastEnhancer();
+		min = Double.MAX_VALUE;
+		max = -Double.MAX_VALUE;
+		for (int i = 0; i < samples; i++) {
+			ImageProcessor ip = readFrame(files.get(i * (files.size() - 1)
+					/ Math.max(1, samples - 1)));
+			enhancer.stretchHistogram(ip, SATURATED);
+			min = Math.min(min, ip.getMin());
+			max = Math.max(max, ip.getMax());
+		}
+	}
+
+	private IndexColorModel getLut() {
+		IndexColorModel cm = lut.equals("Fire") ? LutLoader.getLut("fire")
+				: null;
+		if (cm != null)
+			return cm;
+		byte[] ramp = new byte[256];
+		for (int i = 0; i < 256; i++)
+			ramp[i] = (byte) i;
+		return new IndexColorModel(8, 256, ramp, ramp, ramp);
+	}
+}
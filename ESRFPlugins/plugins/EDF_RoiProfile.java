@@ -0,0 +1,134 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF ROI Profile                                                     *
+ *                                                                     *
+ * Measures the mean and integrated intensity inside the ROIs of the   *
+ * ROI Manager, or the selection of the current image, over a series   *
+ * of EDF files, without loading the series as a stack. Only the rows  *
+ * covered by the ROIs are read from each file.                        *
+ *                                                                     *
+ * Changes:                                                            *
+ *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - First version                                        *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+import java.awt.Color;
+import java.io.File;
+import java.util.*;
+
+import ij.*;
+import ij.gui.*;
+import ij.io.OpenDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+import ij.plugin.frame.RoiManager;
+
+import esrf.edf.EdfSeriesScan;
+import esrf.edf.EdfWorkers;
+import esrf.edf.ij.EdfRoiProfile;
+
+/** This plugin plots ROI intensities over a series of EDF images **/
+public class EDF_RoiProfile implements PlugIn {
+
+	private static final Color[] colors = { Color.blue, Color.red,
+			Color.green.darker(), Color.magenta, Color.orange, Color.cyan,
+			Color.black };
+
+	public void run(String arg) {
+		Roi[] rois = getRois();
+		if (rois == null) {
+			IJ.error("EDF ROI Profile",
+					"Add ROIs to the ROI Manager or select an area first");
+			return;
+		}
+
+		OpenDialog od = new OpenDialog("Choose first image of the series", arg);
+		if (od.getFileName() == null)
+			return;
+		List<File> files = EdfSeriesScan.listSeries(new File(od.getDirectory(),
+				od.getFileName()));
+
+		int threads = EdfWorkers.IO_THREADS;
+		GenericDialog gd = new GenericDialog("EDF ROI Profile");
+		gd.addMessage(files.size() + " files, " + rois.length + " ROIs");
+		gd.addNumericField("Reader threads:", threads, 0);
+		gd.addCheckbox("Plot mean intensity", true);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		threads = Math.max(1, (int) gd.getNextNumber());
+		boolean plot = gd.getNextBoolean();
+
+		EdfRoiProfile profile = new EdfRoiProfile(rois);
+		long start = System.currentTimeMillis();
+		IJ.showStatus("Measuring " + files.size() + " EDF files");
+		try {
+			profile.measure(files, threads);
+		} catch (InterruptedException ex) {
+			IJ.showStatus("EDF ROI Profile interrupted");
+			return;
+		}
+		for (Map.Entry<File, String> entry : profile.getFailed().entrySet())
+			IJ.log("EDF ROI Profile: skipped " + entry.getKey().getName()
+					+ ": " + entry.getValue());
+		IJ.showStatus("Measured " + files.size() + " EDF files in "
+				+ IJ.d2s((System.currentTimeMillis() - start) / 1000.0, 1)
+				+ " s");
+
+		String[] names = getNames(rois);
+		ResultsTable rt = new ResultsTable();
+		for (int i = 0; i < files.size(); i++) {
+			rt.incrementCounter();
+			rt.addLabel(files.get(i).getName());
+			rt.addValue("Frame", i);
+			for (int r = 0; r < rois.length; r++) {
+				rt.addValue("Mean(" + names[r] + ")", profile.getMean(i, r));
+				rt.addValue("RawIntDen(" + names[r] + ")", profile.getSum(i, r));
+			}
+		}
+		rt.show("EDF ROI Profile");
+
+		if (plot)
+			plot(profile, names, files.size());
+	}
+
+	private Roi[] getRois() {
+		RoiManager manager = RoiManager.getInstance();
+		if (manager != null && manager.getCount() > 0)
+			return manager.getRoisAsArray();
+		ImagePlus imp = WindowManager.getCurrentImage();
+		if (imp != null && imp.getRoi() != null && imp.getRoi().isArea())
+			return new Roi[] { imp.getRoi() };
+		return null;
+	}
+
+	private String[] getNames(Roi[] rois) {
+		String[] names = new String[rois.length];
+		for (int r = 0; r < rois.length; r++)
+			names[r] = rois[r].getName() != null ? rois[r].getName() : "ROI"
+					+ (r + 1);
+		return names;
+	}
+
+	private void plot(EdfRoiProfile profile, String[] names, int nFrames) {
+		double[] x = new double[nFrames];
+		for (int i = 0; i < nFrames; i++)
+			x[i] = i;
+		Plot plot = new Plot("EDF ROI Profile", "Frame", "Mean");
+		StringBuilder legend = new StringBuilder();
+		for (int r = 0; r < names.length; r++) {
+			double[] y = new double[nFrames];
+			for (int i = 0; i < nFrames; i++)
+				y[i] = profile.getMean(i, r);
+			plot.setColor(colors[r % colors.length]);
+			plot.addPoints(x, y, Plot.LINE);
+			legend.append(names[r]).append('\n');
+		}
+		plot.addLegend(legend.toString());
+		plot.show();
+	}
+}
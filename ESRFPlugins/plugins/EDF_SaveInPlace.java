@@ -0,0 +1,25 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF in-place saving                                                 *
+ *                                                                     *
+ * Saves the image in front, opened with EDF EditInPlace, back into    *
+ * its EDF file. Only the pixels which changed are written.            *
+ *                                                                     *
+ * Changes:                                                            *
+ *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - First version                                        *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+import ij.plugin.PlugIn;
+
+/** This plugin saves an EDF file opened for editing in place **/
+public class EDF_SaveInPlace implements PlugIn {
+
+	public void run(String arg) {
+		new EDF_EditInPlace().run("save");
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF Series Check                                                    *
+ *                                                                     *
+ * Checks a series of EDF files for truncated or inconsistent frames   *
+ * and missing frame numbers, from the headers and file lengths only,  *
+ * and writes a report to the log window.                              *
+ *                                                                     *
+ * Changes:                                                            *
+ *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - First version                                        *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+import java.io.File;
+import java.util.List;
+
+import ij.IJ;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+import esrf.edf.*;
+
+/** This plugin checks a series of EDF images for damaged files **/
+public class EDF_SeriesCheck implements PlugIn {
+
+	public void run(String arg) {
+		OpenDialog od = new OpenDialog("Choose first image of the series", arg);
+		if (od.getFileName() == null)
+			return;
+		List<File> files = EdfSeriesScan.listSeries(new File(od.getDirectory(),
+				od.getFileName()));
+
+		long start = System.currentTimeMillis();
+		IJ.showStatus("Checking " + files.size() + " EDF files");
+		EdfSeriesCheck check;
+		try {
+			check = EdfSeriesCheck.check(files, EdfWorkers.IO_THREADS);
+		} catch (InterruptedException ex) {
+			IJ.showStatus("EDF Series Check interrupted");
+			return;
+		}
+		IJ.log("EDF Series Check: " + od.getDirectory() + od.getFileName());
+		IJ.log(check.getReport());
+		IJ.showStatus("Checked " + files.size() + " EDF files in "
+				+ IJ.d2s((System.currentTimeMillis() - start) / 1000.0, 1)
+				+ " s");
+	}
+}
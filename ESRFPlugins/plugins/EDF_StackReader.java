@@ -11,6 +11,20 @@
  *                                                                     *
  * Changes:                                                            *
  *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - Frames are read with the ImageJ independent          *
+ *                esrf.edf core library                                *
+ *              - Slices can be kept off-heap, in direct memory or a   *
+ *                memory mapped scratch file                           *
+ *              - Headers are read first: images differing in size or  *
+ *                type are skipped, and the stack is loaded into       *
+ *                memory, virtual or binned depending on free memory   *
+ *              - Sparse data can be kept compressed in memory         *
+ *              - The series can be checked for truncated files first, *
+ *                off by default as it reads every header once more    *
+ *              - Headers and frames are read with many reads in       *
+ *                flight, for network file systems                     *
+ *                                                                     *
  *  1. 4. 2016  Olof Svensson                                          *
  *              - Reformatted the code                                 *
  *              - Added support for more EDF data types                *
@@ -22,31 +36,44 @@
  */
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.*;
+import ij.gui.GenericDialog;
 import ij.io.*;
 import ij.plugin.PlugIn;
 import ij.process.ImageProcessor;
 
+import esrf.edf.*;
+import esrf.edf.ij.*;
+
 /** This plugin reads a stack of EDF images **/
 public class EDF_StackReader implements PlugIn {
 
-	private static final String EDF_STACK_READER_VERSION = "January 2012";
+	private static final String EDF_STACK_READER_VERSION = "October 2026";
+
+	// How the stack is loaded, and where the slices are kept
+	private static final int LOAD_AUTOMATIC = 0;
+	private static final int LOAD_HEAP = 1;
+	private static final int LOAD_VIRTUAL = 2;
+	private static final int LOAD_BINNED = 3;
+	private static final int LOAD_OFF_HEAP = 4;
+	private static final int LOAD_SCRATCH_FILE = 5;
+	private static final int LOAD_COMPRESSED = 6;
+	private static final String[] loadModes = { "Automatic", "Java heap",
+			"Virtual stack", "Binned", "Off-heap memory",
+			"Off-heap scratch file", "Compressed (sparse data)" };
 
-	// Default values for an image
-	private int width = 512;
-	private int height = 512;
-	private int offset = 0;
-	private int nImages = 1;
-	private int gapBetweenImages = 0;
-	private boolean whiteIsZero = false;
-	private boolean intelByteOrder = false;
-	private int fileType = FileInfo.GRAY16_UNSIGNED;
+	// Off by default, the check reads every header before the scan does
+	private static boolean checkSeries = false;
+
+	// Reads in flight; decoding uses one thread per processor
+	private static int parallelReads = EdfWorkers.IO_THREADS;
 
 	public void run(String arg) {
-		String directory, fileName, type = "EDF";
-		ImageStack newStack = null;
+		String directory, fileName;
 
 		// Show about box if called from ij.properties
 		if (arg.equals("about")) {
@@ -82,6 +109,23 @@ public class EDF_StackReader implements PlugIn {
 
 		String prefix = fileName.substring(0, index + 1);
 
+		// Choose how the stack is loaded
+		GenericDialog gd = new GenericDialog("EDF Stack Reader");
+		gd.addChoice("Load as:", loadModes, loadModes[LOAD_AUTOMATIC]);
+		gd.addNumericField("Bin factor:", 2, 0);
+		gd.addStringField("Scratch directory:",
+				System.getProperty("java.io.tmpdir"), 30);
+		gd.addNumericField("Parallel reads:", parallelReads, 0);
+		gd.addCheckbox("Check series for damaged files", checkSeries);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		int load = gd.getNextChoiceIndex();
+		int binFactor = Math.max(1, (int) gd.getNextNumber());
+		File scratch = new File(gd.getNextString());
+		parallelReads = Math.max(1, (int) gd.getNextNumber());
+		checkSeries = gd.getNextBoolean();
+
 		// Loop through all the images in the directory
 		File path = new File(directory);
 		File files[];
@@ -94,164 +138,225 @@ public class EDF_StackReader implements PlugIn {
 			}
 		});
 
+		// Check that the files start with the prefix
+		List<File> edfFiles = new ArrayList<File>();
 		for (File edfFile : files) {
-			// Check that the file starts with the prefix
-			if (edfFile.getName().contains(prefix)) {
-				IJ.log("Reading image: " + edfFile.getName());
-				// The following code is "borrowed" from ij.plugin.Raw
-				FileInfo fileInfo = new FileInfo();
-				fileInfo.fileFormat = FileInfo.RAW;
-				fileInfo.fileName = edfFile.getName();
-				fileInfo.directory = edfFile.getParent().toString();
-				fileInfo.width = width;
-				fileInfo.height = height;
-				fileInfo.offset = offset;
-				fileInfo.nImages = nImages;
-				fileInfo.gapBetweenImages = gapBetweenImages;
-				fileInfo.intelByteOrder = intelByteOrder;
-				fileInfo.whiteIsZero = whiteIsZero;
-				fileInfo.fileType = fileType;
-
-				parseESRFDataFormatHeader(type, edfFile, fileInfo);
-
-				// Leave the job to ImageJ for actually reading the image
-				FileOpener fileOpener = new FileOpener(fileInfo);
-				ImagePlus imp = fileOpener.open(false);
+			if (edfFile.getName().contains(prefix))
+				edfFiles.add(edfFile);
+		}
 
-				if (newStack == null) {
-					newStack = new ImageStack(fileInfo.width, fileInfo.height);
+		// Leave out truncated and inconsistent files before reading any
+		if (checkSeries) {
+			IJ.showStatus("Checking " + edfFiles.size() + " EDF files");
+			try {
+				EdfSeriesCheck check = EdfSeriesCheck.check(edfFiles,
+						EdfWorkers.IO_THREADS);
+				if (!check.isClean()) {
+					IJ.log("EDF Stack Reader: " + check.getReport());
+					if (!check.getProblems().isEmpty()
+							&& !IJ.showMessageWithCancel("EDF Stack Reader",
+									check.getProblems().size() + " of "
+											+ edfFiles.size()
+											+ " files are damaged, see the log.\n"
+											+ "Load the other files?"))
+						return;
+					edfFiles = check.getGoodFiles();
 				}
-				ImageProcessor ip = imp.getChannelProcessor();
-				newStack.addSlice(edfFile.getName().toString(), ip);
+			} catch (InterruptedException ex) {
+				return;
 			}
 		}
-		if (newStack != null) {
-			ImagePlus newImage = new ImagePlus("The EDF stack", newStack);
-			newImage.show();
-		}
-	}
 
-	private void parseESRFDataFormatHeader(String type, File f,
-			FileInfo fileInfo) {
-		RandomAccessFile in;
-		char h;
-		int headerSize, headerStart, noBrackets, i, iParam = 0;
-		byte[] header;
-		String key, param, token, headerString;
+		// Read all headers first, so that mismatching images are known
+		// before any pixel data is loaded
+		IJ.showStatus("Reading " + edfFiles.size() + " EDF headers");
+		EdfSeriesScan scan;
+		try {
+			scan = EdfSeriesScan.scan(edfFiles, parallelReads);
+		} catch (InterruptedException ex) {
+			return;
+		}
+		for (Map.Entry<File, String> entry : scan.getRejected().entrySet())
+			IJ.log("Skipping image " + entry.getKey().getName() + ": "
+					+ entry.getValue());
+		if (scan.size() == 0) {
+			IJ.error("No readable EDF images found");
+			return;
+		}
+		EdfHeader reference = scan.getReference();
 
+		ImageStack newStack;
 		try {
-			in = new RandomAccessFile(f, "r");
-			headerSize = 0;
-			noBrackets = 0;
-			do {
-				headerStart = headerSize;
-				in.seek(headerStart);
-				do {
-					h = getChar(in);
-					headerSize += 1;
-					if (h == '{')
-						noBrackets++;
-					else if (h == '}')
-						noBrackets--;
-				} while (noBrackets != 0);
-				// Read header
-				header = new byte[headerSize - headerStart + 1];
-				in.seek(headerStart);
-				in.readFully(header);
-				headerString = new String(header);
-			} while (type.equals("EHF")
-					&& (headerString.indexOf("EDF_DataBlockID") < 0));
+			int bitDepth = EdfImageJ.getBitDepth(reference.getDataType());
+			if (load == LOAD_AUTOMATIC) {
+				EdfLoadPlan plan = EdfLoadPlan.choose(scan, parallelReads);
+				IJ.log("EDF Stack Reader: " + plan.getReason());
+				switch (plan.getMode()) {
+				case EdfLoadPlan.VIRTUAL:
+					load = LOAD_VIRTUAL;
+					break;
+				case EdfLoadPlan.BINNED:
+					load = LOAD_BINNED;
+					break;
+				default:
+					load = LOAD_HEAP;
+				}
+				binFactor = plan.getBinFactor();
+			}
+			if (load == LOAD_VIRTUAL) {
+				newStack = new EdfVirtualStack(scan.getFiles(),
+						scan.getHeaders());
+			} else {
+				if (load != LOAD_BINNED)
+					binFactor = 1;
+				newStack = createStack(load, reference.getWidth() / binFactor,
+						reference.getHeight() / binFactor, bitDepth, scratch);
+				if ((load == LOAD_HEAP || load == LOAD_BINNED)
+						&& parallelReads > 1)
+					loadSlicesParallel(scan, newStack, binFactor);
+				else if (!loadSlices(scan, newStack, load, binFactor))
+					return;
+			}
 		} catch (IOException ex) {
-			IJ.log("IOException caught: " + ex);
+			IJ.error("EDF Stack Reader", "IOException caught: " + ex);
+			return;
+		} catch (IllegalArgumentException ex) {
+			IJ.error("EDF Stack Reader", ex.getMessage());
+			return;
+		} catch (InterruptedException ex) {
 			return;
 		}
-		if (IJ.debugMode)
-			IJ.log("ImportDialog: " + fileInfo);
-
-		// Set offset
-		fileInfo.offset = headerSize + 1;
 
-		// Extract information from header
-		StringTokenizer st = new StringTokenizer(headerString, ";");
-		while (st.hasMoreTokens()) {
-			token = st.nextToken();
-			i = token.indexOf("=");
-			if (i <= 0)
-				continue;
-			key = token.substring(1, i - 1).trim();
-			param = token.substring(i + 1).trim();
-			// IJ.log(key + ": " + param);
-
-			// For debugging - output to stdout is persistent:
-			// System.out.println("DOING |"+key+"|: |" + param+"|");
+		if (newStack instanceof EdfCompressedStack) {
+			EdfCompressedStack compressed = (EdfCompressedStack) newStack;
+			IJ.log("EDF Stack Reader: compressed "
+					+ (compressed.getUncompressedSize() >> 20) + " MB to "
+					+ (compressed.getCompressedSize() >> 20) + " MB");
+		}
+		ImagePlus newImage = new ImagePlus("The EDF stack", newStack);
+		if (reference.getDataType() == EdfDataType.SIGNED_SHORT)
+			newImage.getCalibration().setSigned16BitCalibration();
+		if (newStack instanceof EdfOffHeapStack)
+			((EdfOffHeapStack) newStack).closeWith(newImage);
+		newImage.show();
+	}
 
+	/**
+	 * Returns false, after telling the user and freeing the stack, if an
+	 * off-heap stack ran out of space
+	 **/
+	private boolean loadSlices(EdfSeriesScan scan, ImageStack newStack,
+			int load, int binFactor) throws IOException {
+		List<File> edfFiles = scan.getFiles();
+		List<EdfHeader> headers = scan.getHeaders();
+		Object pixels = null;
+		for (int i = 0; i < edfFiles.size(); i++) {
+			File edfFile = edfFiles.get(i);
+			EdfHeader header = headers.get(i);
+			IJ.log("Reading image: " + edfFile.getName());
+			IJ.showProgress(i, edfFiles.size());
+			EdfFrameReader reader = new EdfFrameReader(edfFile);
 			try {
-				iParam = Integer.valueOf(param).intValue();
-				// double dParam = Integer.valueOf(param).doubleValue();
-			} catch (NumberFormatException numberformatexception) {
-			}
-			;
-			if (key.equals("EDF_BinaryFileName")) {
-				fileInfo.fileName = param;
-				System.out.println("DEBUG: " + key + " = " + param);
-				continue;
-			}
-			if (key.equals("EDF_BinaryFilePosition")) {
-				fileInfo.offset = iParam;
-				continue;
-			}
-			if (key.equals("Dim_1")) {
-				fileInfo.width = iParam;
-				continue;
-			}
-			if (key.equals("Dim_2")) {
-				fileInfo.height = iParam;
-				continue;
-			}
-			if (key.equals("DataType")) {
-				// Long and integer
-				if (param.equals("SignedLong") || param.equals("SignedInteger")) {
-					fileInfo.fileType = FileInfo.GRAY32_INT;
-				} else if (param.equals("UnsignedLong")
-						|| param.equals("UnsignedInteger")) {
-					fileInfo.fileType = FileInfo.GRAY32_UNSIGNED;
-					// Short
-				} else if (param.equals("SignedShort")) {
-					fileInfo.fileType = FileInfo.GRAY16_SIGNED;
-				} else if (param.equals("UnsignedShort")) {
-					fileInfo.fileType = FileInfo.GRAY16_UNSIGNED;
-					// Byte
-				} else if (param.equals("SingedByte")
-						|| param.equals("UnsignedByte")
-						|| param.equals("UnsignedChar")) {
-					fileInfo.fileType = FileInfo.GRAY8;
-					// Float
-				} else if (param.equals("Float") || param.equals("FloatValue")) {
-					fileInfo.fileType = FileInfo.GRAY32_FLOAT;
+				if (load == LOAD_HEAP || load == LOAD_BINNED) {
+					ImageProcessor ip = EdfImageJ.readProcessor(reader,
+							header);
+					if (binFactor > 1)
+						ip = ip.bin(binFactor);
+					newStack.addSlice(edfFile.getName(), ip);
 				} else {
-					IJ.log("WARNING: unknown data type " + param);
+					// Off-heap and compressed slices are copied, so one
+					// buffer will do
+					if (pixels == null)
+						pixels = EdfImageJ.createPixels(header);
+					EdfImageJ.readPixels(reader, header, pixels);
+					if (newStack instanceof EdfOffHeapStack) {
+						if (!append((EdfOffHeapStack) newStack, edfFile
+								.getName(), pixels, edfFiles.size()))
+							return false;
+					} else {
+						newStack.addSlice(edfFile.getName(), pixels);
+					}
 				}
-				continue;
-			}
-			if (key.equals("ByteOrder")) {
-				fileInfo.intelByteOrder = param.equals("LowByteFirst");
+			} catch (IOException ex) {
+				IJ.log("IOException caught: " + ex);
+			} finally {
+				reader.close();
 			}
 		}
-		return;
+		IJ.showProgress(1.0);
+		return true;
+	}
+
+	// Running out of direct memory or scratch space ends the whole load
+	private boolean append(EdfOffHeapStack stack, String label,
+			Object pixels, int total) throws IOException {
+		try {
+			stack.append(label, pixels);
+			return true;
+		} catch (IOException ex) {
+			IJ.showProgress(1.0);
+			IJ.error("EDF Stack Reader", "Only " + stack.getSize() + " of "
+					+ total + " slices fit off-heap:\n" + ex.getMessage());
+			stack.close();
+			return false;
+		}
 	}
 
-	int getShort(RandomAccessFile in) throws IOException {
-		int b1 = in.read();
-		int b2 = in.read();
-		if (intelByteOrder)
-			return ((b2 << 8) + b1);
-		else
-			return ((b1 << 8) + b2);
+	/**
+	 * Loads the slices with parallelReads files read at a time, and decodes
+	 * and bins them on one thread per processor
+	 **/
+	private void loadSlicesParallel(EdfSeriesScan scan,
+			ImageStack newStack, final int binFactor)
+			throws InterruptedException {
+		final List<File> edfFiles = scan.getFiles();
+		final AtomicInteger decoded = new AtomicInteger();
+		final ThreadLocal<EdfConvert> converts = new ThreadLocal<EdfConvert>() {
+			protected EdfConvert initialValue() {
+				return new EdfConvert();
+			}
+		};
+		IJ.log("Reading " + edfFiles.size() + " images, " + parallelReads
+				+ " at a time");
+		EdfParallelLoader loader = new EdfParallelLoader(parallelReads);
+		Object[] slices = loader.load(edfFiles, scan.getHeaders(),
+				new EdfParallelLoader.Decoder() {
+					public Object decode(int index, EdfHeader header,
+							ByteBuffer data) throws IOException {
+						Object pixels = EdfImageJ.decodePixels(header, data,
+								converts.get());
+						ImageProcessor ip = EdfImageJ.createProcessor(header,
+								pixels);
+						if (binFactor > 1)
+							ip = ip.bin(binFactor);
+						IJ.showProgress(decoded.incrementAndGet(),
+								edfFiles.size());
+						return ip;
+					}
+				});
+		for (int i = 0; i < slices.length; i++) {
+			if (slices[i] != null)
+				newStack.addSlice(edfFiles.get(i).getName(),
+						(ImageProcessor) slices[i]);
+		}
+		for (Map.Entry<File, String> entry : loader.getFailed().entrySet())
+			IJ.log("Skipping image " + entry.getKey().getName() + ": "
+					+ entry.getValue());
+		IJ.showProgress(1.0);
 	}
 
-	char getChar(RandomAccessFile in) throws IOException {
-		int b = in.read();
-		return (char) b;
+	private ImageStack createStack(int load, int width, int height,
+			int bitDepth, File scratch) throws IOException {
+		switch (load) {
+		case LOAD_OFF_HEAP:
+			return new EdfOffHeapStack(width, height, bitDepth, null);
+		case LOAD_SCRATCH_FILE:
+			return new EdfOffHeapStack(width, height, bitDepth, scratch);
+		case LOAD_COMPRESSED:
+			return new EdfCompressedStack(width, height, bitDepth);
+		default:
+			return new ImageStack(width, height);
+		}
 	}
 
 	void showAbout() {
@@ -11,6 +11,19 @@
  *                                                                     *
  * Changes:                                                            *
  *                                                                     *
+ * 19.10. 2026                                                         *
+ *              - Header parsing and pixel reading moved to the        *
+ *                ImageJ independent esrf.edf core library             *
+ *              - Files without an EDF signature in the first block    *
+ *                are turned away before any header scan               *
+ *              - Frames opened with Shift held down, or too large for *
+ *                the heap when the tiled view is chosen at a prompt,  *
+ *                are shown from a resolution pyramid cached on disk.  *
+ *                Macros and HandleExtraFileTypes always get the full  *
+ *                resolution frame                                     *
+ *              - The pyramid cache directory and size limit are set   *
+ *                with EDF_Cache; the least recently viewed pyramids   *
+ *                and those of rewritten files are removed             *
  *                                                                     *
  *  1. 4. 2016  Olof Svensson                                          *
  *              - Reformatted the code                                 *
@@ -51,40 +64,32 @@
  */
 
 import java.io.*;
-import java.util.*;
 
 import ij.*;
+import ij.gui.GenericDialog;
 import ij.io.*;
-import ij.gui.*;
 import ij.plugin.PlugIn;
 
+import esrf.edf.*;
+import esrf.edf.ij.*;
+
 /** This plugin reads image formats used at the ESRF **/
 public class EdfRead_ implements PlugIn {
 
-	private static final String EdfRead_VERSION = "December 2005";
+	private static final String EdfRead_VERSION = "October 2026";
+
+	// Frames needing more than this fraction of the heap as floats may be
+	// opened tiled
+	private static final double TILED_HEAP_FRACTION = 0.25;
 
 	// Supported types
 	String[] types = { "EDF", "EHF" };
 	String[] typesDescription = { "ESRF Data Format", "ESRF data Header Format" };
 
-	// Default values for an image
-	private int width = 512;
-	private int height = 512;
-	private int offset = 0;
-	private int nImages = 1;
-	private int gapBetweenImages = 0;
-	private boolean whiteIsZero = false;
-	private boolean intelByteOrder = false;
-	private boolean openAll = false;
-	private static String defaultDirectory = null;
-	private int fileType = FileInfo.GRAY16_UNSIGNED;
-
 	public void run(String arg) {
 		String directory, fileName, type = "EDF";
 		OpenDialog od;
-		FileOpener fileOpener;
 		File f;
-		StringTokenizer st;
 
 		// Show about box if called from ij.properties
 		if (arg.equals("about")) {
@@ -103,161 +108,78 @@ public class EdfRead_ implements PlugIn {
 		IJ.showStatus("Opening " + type + " image " + directory + fileName);
 		f = new File(directory + fileName);
 
-		// The following code is "borrowed" from ij.plugin.Raw
-		FileInfo fileInfo = new FileInfo();
-		fileInfo.fileFormat = fileInfo.RAW;
-		fileInfo.fileName = fileName;
-		fileInfo.directory = directory;
-		fileInfo.width = width;
-		fileInfo.height = height;
-		fileInfo.offset = offset;
-		fileInfo.nImages = nImages;
-		fileInfo.gapBetweenImages = gapBetweenImages;
-		fileInfo.intelByteOrder = intelByteOrder;
-		fileInfo.whiteIsZero = whiteIsZero;
-		fileInfo.fileType = fileType;
-
-		// Try to get image size and no images from header
-		if (type.equals("EDF") || type.equals("EHF")) {
-			parseESRFDataFormatHeader(type, f, fileInfo);
-		}
-		// Leave the job to ImageJ for actually reading the image
-		fileOpener = new FileOpener(fileInfo);
-		fileOpener.open();
-	}
-
-	private void parseESRFDataFormatHeader(String type, File f,
-			FileInfo fileInfo) {
-		RandomAccessFile in;
-		char h;
-		int headerSize, headerStart, noBrackets, i, iParam = 0;
-		double dParam = 0.0;
-		byte[] header;
-		String key, param, token, headerString;
-
-		try {
-			in = new RandomAccessFile(f, "r");
-			headerSize = 0;
-			// to avoid problems when first character is not a bracket
-			noBrackets = -1;
-			do {
-				headerStart = headerSize;
-				in.seek(headerStart);
-				do {
-					h = getChar(in);
-					headerSize += 1;
-					if (h == '}')
-						noBrackets--;
-					else if (h == '{') {
-						if (noBrackets == -1) {
-							// first bracket encountered
-							noBrackets = 1;
-							headerStart = headerSize - 1;
-						} else
-							noBrackets++;
-					}
-				} while (noBrackets != 0);
-				// Read header
-				header = new byte[headerSize - headerStart + 1];
-				in.seek(headerStart);
-				in.readFully(header);
-				headerString = new String(header);
-			} while (type.equals("EHF")
-					&& (headerString.indexOf("EDF_DataBlockID") < 0));
-			// Close the file opened to read the header
-			in.close();
-		} catch (IOException ex) {
-			IJ.write("IOException caught: " + ex);
+		// Called for any file by HandleExtraFileTypes, so turn away
+		// files which are not EDF with one small read
+		if (!EdfSignature.probe(f)) {
+			IJ.showStatus("Not an EDF file: " + fileName);
 			return;
 		}
-		if (IJ.debugMode)
-			IJ.log("ImportDialog: " + fileInfo);
-
-		// Set offset
-		fileInfo.offset = headerSize + 1;
 
-		// Extract information from header
-		StringTokenizer st = new StringTokenizer(headerString, ";");
-		while (st.hasMoreTokens()) {
-			token = st.nextToken();
-			i = token.indexOf("=");
-			if (i <= 0)
-				continue;
-			key = token.substring(1, i - 1).trim();
-			param = token.substring(i + 1).trim();
-			if (IJ.debugMode)
-				IJ.log(key + ": " + param);
-
-			// For debugging - output to stdout is persistent:
-			// System.out.println("DOING |"+key+"|: |" + param+"|");
-
-			try {
-				iParam = Integer.valueOf(param).intValue();
-				dParam = Integer.valueOf(param).doubleValue();
-			} catch (NumberFormatException numberformatexception) {
-			}
-			;
-			if (key.equals("EDF_BinaryFileName")) {
-				fileInfo.fileName = param;
-				System.out.println("DEBUG: " + key + " = " + param);
-				continue;
-			}
-			if (key.equals("EDF_BinaryFilePosition")) {
-				fileInfo.offset = iParam;
-				continue;
-			}
-			if (key.equals("Dim_1")) {
-				fileInfo.width = iParam;
-				continue;
-			}
-			if (key.equals("Dim_2")) {
-				fileInfo.height = iParam;
-				continue;
+		// Header parsing and reading is done by the EDF core library
+		ImagePlus imp;
+		try {
+			// The tiled view is no ImagePlus of the frame, so it is only used
+			// when asked for, never for macros or callers passing a path
+			boolean macro = IJ.isMacro() || Macro.getOptions() != null;
+			if (type.equals("EDF") && !macro && IJ.shiftKeyDown()) {
+				openTiled(f);
+				return;
 			}
-			if (key.equals("DataType")) {
-				// Long and integer
-				if (param.equals("SignedLong") || param.equals("SignedInteger")) {
-					fileInfo.fileType = FileInfo.GRAY32_INT;
-				} else if (param.equals("UnsignedLong")
-						|| param.equals("UnsignedInteger")) {
-					fileInfo.fileType = FileInfo.GRAY32_UNSIGNED;
-					// Short
-				} else if (param.equals("SignedShort")) {
-					fileInfo.fileType = FileInfo.GRAY16_SIGNED;
-				} else if (param.equals("UnsignedShort")) {
-					fileInfo.fileType = FileInfo.GRAY16_UNSIGNED;
-					// Byte
-				} else if (param.equals("SingedByte")
-						|| param.equals("UnsignedByte")
-						|| param.equals("UnsignedChar")) {
-					fileInfo.fileType = FileInfo.GRAY8;
-					// Float
-				} else if (param.equals("Float") || param.equals("FloatValue")) {
-					fileInfo.fileType = FileInfo.GRAY32_FLOAT;
-				} else {
-					IJ.log("WARNING: unknown data type " + param);
+			if (type.equals("EDF") && !macro && arg.length() == 0
+					&& isTooLarge(f)) {
+				GenericDialog gd = new GenericDialog("EdfRead_");
+				gd.addMessage(fileName + " may not fit in memory.\n"
+						+ "Show it tiled from a resolution pyramid?");
+				gd.enableYesNoCancel("Tiled", "Full resolution");
+				gd.showDialog();
+				if (gd.wasCanceled())
+					return;
+				if (gd.wasOKed()) {
+					openTiled(f);
+					return;
 				}
-				continue;
-			}
-			if (key.equals("ByteOrder")) {
-				fileInfo.intelByteOrder = param.equals("LowByteFirst");
 			}
+			imp = EdfImageJ.open(f, type.equals("EHF"), IJ.debugMode);
+		} catch (IOException ex) {
+			IJ.log("IOException caught: " + ex);
+			return;
 		}
-		return;
+		imp.show();
 	}
 
-	int getShort(RandomAccessFile in) throws IOException {
-		int b1 = in.read();
-		int b2 = in.read();
-		if (intelByteOrder)
-			return ((b2 << 8) + b1);
-		else
-			return ((b1 << 8) + b2);
+	private boolean isTooLarge(File f) throws IOException {
+		EdfFrameReader reader = new EdfFrameReader(f);
+		try {
+			EdfHeader header = reader.readHeader();
+			double floatSize = 4.0 * header.getWidth() * header.getHeight();
+			return floatSize > TILED_HEAP_FRACTION * IJ.maxMemory();
+		} finally {
+			reader.close();
+		}
 	}
 
-	char getChar(RandomAccessFile in) throws IOException {
-		int b = in.read();
-		return (char) b;
+	private void openTiled(File f) throws IOException {
+		File cache = EdfTiledCanvas.getCacheDirectory();
+		EdfPyramid pyramid = new EdfPyramid(f, cache,
+				EdfPyramid.DEFAULT_TILE_SIZE);
+		try {
+			if (!pyramid.isBuilt()) {
+				IJ.showStatus("Building resolution pyramid of " + f.getName());
+				long t0 = System.currentTimeMillis();
+				pyramid.build(Runtime.getRuntime().availableProcessors());
+				IJ.log("EdfRead_: built " + pyramid.getLevels()
+						+ " level pyramid of " + f.getName() + " in "
+						+ (System.currentTimeMillis() - t0) + " ms");
+				EdfDiskCache.trim(cache, EdfTiledCanvas.getCacheLimit(),
+						pyramid.getDirectory());
+			}
+			EdfTiledCanvas.show(pyramid, f.getName());
+		} catch (InterruptedException ex) {
+			pyramid.close();
+		} catch (IOException ex) {
+			pyramid.close();
+			throw ex;
+		}
 	}
 
 	void showAbout() {
@@ -0,0 +1,390 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF azimuthal integration                                           *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Integrates detector frames azimuthally into profiles of mean intensity
+ * against q, or against 2theta if no wavelength is given. Where each pixel
+ * falls is worked out once, into a sparse lookup table of the unmasked
+ * pixels in row order and the bin of each, so integrating a frame is one
+ * pass over its pixels adding into a small array of bin sums. Pixels are
+ * not split between bins. The table is kept in a cache directory, named by
+ * a digest of the geometry, frame size, bins and mask, and loaded from
+ * there when the same integration is set up again.
+ **/
+public class EdfAzimuthalIntegrator {
+
+	private static final int CACHE_MAGIC = 0x4544464c;
+
+	/** Beam and detector geometry, lengths in metres as in ESRF headers **/
+	public static class Geometry {
+		private final double centreX;
+		private final double centreY;
+		private final double distance;
+		private final double pixelSizeX;
+		private final double pixelSizeY;
+		private final double wavelength;
+
+		/**
+		 * The beam centre is in pixels, with the centre of the first pixel at
+		 * 0.5, 0.5. A wavelength of 0 gives profiles against 2theta.
+		 **/
+		public Geometry(double centreX, double centreY, double distance,
+				double pixelSizeX, double pixelSizeY, double wavelength) {
+			this.centreX = centreX;
+			this.centreY = centreY;
+			this.distance = distance;
+			this.pixelSizeX = pixelSizeX;
+			this.pixelSizeY = pixelSizeY;
+			this.wavelength = wavelength;
+		}
+
+		/**
+		 * The geometry in the Center_1, Center_2, SampleDistance, PSize_1,
+		 * PSize_2 and WaveLength keys, or null if one of the first four is
+		 * missing
+		 **/
+		public static Geometry fromHeader(EdfHeader header) {
+			double centreX = header.getDouble("Center_1", Double.NaN);
+			double centreY = header.getDouble("Center_2", Double.NaN);
+			double distance = header.getDouble("SampleDistance", Double.NaN);
+			double pixelSizeX = header.getDouble("PSize_1", Double.NaN);
+			double pixelSizeY = header.getDouble("PSize_2", pixelSizeX);
+			if (Double.isNaN(centreX) || Double.isNaN(centreY)
+					|| Double.isNaN(distance) || Double.isNaN(pixelSizeX))
+				return null;
+			return new Geometry(centreX, centreY, distance, pixelSizeX,
+					pixelSizeY, header.getDouble("WaveLength", 0));
+		}
+
+		public double getCentreX() {
+			return centreX;
+		}
+
+		public double getCentreY() {
+			return centreY;
+		}
+
+		public double getDistance() {
+			return distance;
+		}
+
+		public double getPixelSizeX() {
+			return pixelSizeX;
+		}
+
+		public double getPixelSizeY() {
+			return pixelSizeY;
+		}
+
+		public double getWavelength() {
+			return wavelength;
+		}
+
+		/** True if profiles are against q, false if against 2theta **/
+		public boolean isQ() {
+			return wavelength > 0;
+		}
+
+		// q in 1/nm, or 2theta in degrees, at the centre of pixel x, y
+		private double getRadial(int x, int y) {
+			double dx = (x + 0.5 - centreX) * pixelSizeX;
+			double dy = (y + 0.5 - centreY) * pixelSizeY;
+			double twoTheta = Math.atan2(Math.sqrt(dx * dx + dy * dy),
+					distance);
+			if (!isQ())
+				return Math.toDegrees(twoTheta);
+			return 4 * Math.PI * Math.sin(twoTheta / 2) / (wavelength * 1e9);
+		}
+
+		// Solid angle of pixel x, y relative to a pixel at the beam centre
+		private double getSolidAngle(int x, int y) {
+			double dx = (x + 0.5 - centreX) * pixelSizeX;
+			double dy = (y + 0.5 - centreY) * pixelSizeY;
+			double cos = distance
+					/ Math.sqrt(distance * distance + dx * dx + dy * dy);
+			return cos * cos * cos;
+		}
+	}
+
+	private final Geometry geometry;
+	private final int width;
+	private final int height;
+	private final int bins;
+	private final boolean solidAngle;
+	private final boolean cached;
+
+	private double radialMin;
+	private double radialMax;
+	// The unmasked pixels in row order and the bin of each
+	private int[] pixels;
+	private int[] pixelBins;
+	// 1 over the pixel count, or the solid angle sum, of each bin
+	private float[] norms;
+
+	// Bin sums, one array per integrating thread
+	private final ThreadLocal<double[]> sums = new ThreadLocal<double[]>();
+
+	/**
+	 * Sets up the integration of width by height frames into bins bins
+	 * spanning the unmasked pixels. mask is nonzero for pixels to leave out,
+	 * such as gaps and the beam stop, and may be null. With solidAngle the
+	 * intensities are corrected for the solid angle of each pixel. The
+	 * lookup table is loaded from cacheDirectory if it was made before,
+	 * otherwise made and saved there; cacheDirectory may be null.
+	 **/
+	public EdfAzimuthalIntegrator(Geometry geometry, int width, int height,
+			byte[] mask, int bins, boolean solidAngle, File cacheDirectory)
+			throws IOException {
+		if (mask != null && mask.length != width * height)
+			throw new IllegalArgumentException("The mask is not " + width
+					+ "x" + height);
+		if (bins < 1)
+			throw new IllegalArgumentException("No bins");
+		this.geometry = geometry;
+		this.width = width;
+		this.height = height;
+		this.bins = bins;
+		this.solidAngle = solidAngle;
+		File entry = null;
+		if (cacheDirectory != null) {
+			cacheDirectory.mkdirs();
+			entry = new File(cacheDirectory, getKey(mask) + ".lut");
+		}
+		cached = entry != null && readEntry(entry);
+		if (!cached) {
+			createTable(mask);
+			if (entry != null)
+				writeEntry(entry);
+		}
+	}
+
+	public Geometry getGeometry() {
+		return geometry;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getBins() {
+		return bins;
+	}
+
+	/** True if the lookup table came from the cache directory **/
+	public boolean isCached() {
+		return cached;
+	}
+
+	/** The number of pixels which go into a profile **/
+	public int getPixelCount() {
+		return pixels.length;
+	}
+
+	/** The centre of each bin, in 1/nm for q or degrees for 2theta **/
+	public double[] getRadialAxis() {
+		double[] axis = new double[bins];
+		double step = getBinWidth();
+		for (int b = 0; b < bins; b++)
+			axis[b] = radialMin + (b + 0.5) * step;
+		return axis;
+	}
+
+	public double getRadialMin() {
+		return radialMin;
+	}
+
+	public double getBinWidth() {
+		return (radialMax - radialMin) / bins;
+	}
+
+	/**
+	 * Integrates a frame of width by height pixels into profile, which has
+	 * one value per bin. Bins without pixels are NaN. Safe to call from
+	 * several threads, and does not allocate once a thread has called it.
+	 **/
+	public void integrate(float[] frame, float[] profile) {
+		double[] sum = sums.get();
+		if (sum == null) {
+			sum = new double[bins];
+			sums.set(sum);
+		} else {
+			Arrays.fill(sum, 0);
+		}
+		int[] pixels = this.pixels;
+		int[] pixelBins = this.pixelBins;
+		for (int i = 0; i < pixels.length; i++)
+			sum[pixelBins[i]] += frame[pixels[i]];
+		for (int b = 0; b < bins; b++)
+			profile[b] = (float) (sum[b] * norms[b]);
+	}
+
+	/**
+	 * Integrates the first frame of every file, read by loader and integrated
+	 * on its decode threads. Returns the profiles in file order, null for
+	 * files which could not be read or whose frames are not width by height;
+	 * loader.getFailed() tells why.
+	 **/
+	public float[][] integrate(List<File> files, EdfParallelLoader loader)
+			throws InterruptedException {
+		final ThreadLocal<EdfConvert> converts = new ThreadLocal<EdfConvert>();
+		final ThreadLocal<float[]> frames = new ThreadLocal<float[]>();
+		Object[] profiles = loader.load(files, new EdfParallelLoader.Decoder() {
+			public Object decode(int index, EdfHeader header, ByteBuffer data)
+					throws IOException {
+				if (header.getWidth() != width || header.getHeight() != height)
+					throw new EdfFormatException(header.getWidth() + "x"
+							+ header.getHeight() + " frame, the integration is"
+							+ " set up for " + width + "x" + height);
+				if (header.getDataType() == null)
+					throw new EdfFormatException("Unknown data type "
+							+ header.get("DataType"));
+				EdfConvert convert = converts.get();
+				float[] frame = frames.get();
+				if (convert == null) {
+					convert = new EdfConvert();
+					converts.set(convert);
+					frame = new float[width * height];
+					frames.set(frame);
+				}
+				convert.toFloat(data, header.getDataType(), frame, 0, width
+						* height);
+				float[] profile = new float[bins];
+				integrate(frame, profile);
+				return profile;
+			}
+		});
+		float[][] result = new float[profiles.length][];
+		for (int i = 0; i < profiles.length; i++)
+			result[i] = (float[]) profiles[i];
+		return result;
+	}
+
+	private void createTable(byte[] mask) {
+		int n = 0;
+		radialMin = Double.MAX_VALUE;
+		radialMax = -Double.MAX_VALUE;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (mask != null && mask[y * width + x] != 0)
+					continue;
+				double radial = geometry.getRadial(x, y);
+				radialMin = Math.min(radialMin, radial);
+				radialMax = Math.max(radialMax, radial);
+				n++;
+			}
+		}
+		if (n == 0)
+			throw new IllegalArgumentException("Every pixel is masked");
+		if (radialMax <= radialMin)
+			radialMax = radialMin + 1;
+		pixels = new int[n];
+		pixelBins = new int[n];
+		double[] weights = new double[bins];
+		double scale = bins / (radialMax - radialMin);
+		int i = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				if (mask != null && mask[y * width + x] != 0)
+					continue;
+				int bin = (int) ((geometry.getRadial(x, y) - radialMin) * scale);
+				// The outermost pixel is at radialMax, the end of the last bin
+				bin = Math.min(bin, bins - 1);
+				pixels[i] = y * width + x;
+				pixelBins[i] = bin;
+				weights[bin] += solidAngle ? geometry.getSolidAngle(x, y) : 1;
+				i++;
+			}
+		}
+		norms = new float[bins];
+		for (int b = 0; b < bins; b++)
+			norms[b] = weights[b] > 0 ? (float) (1 / weights[b]) : Float.NaN;
+	}
+
+	private String getKey(byte[] mask) throws IOException {
+		String key = geometry.centreX + "\n" + geometry.centreY + "\n"
+				+ geometry.distance + "\n" + geometry.pixelSizeX + "\n"
+				+ geometry.pixelSizeY + "\n" + geometry.wavelength + "\n"
+				+ width + "\n" + height + "\n" + bins + "\n" + solidAngle
+				+ "\n";
+		return EdfDiskCache.digest(key, mask);
+	}
+
+	// False if the entry is missing or unreadable, then the table is made
+	private boolean readEntry(File entry) {
+		if (!entry.isFile())
+			return false;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(entry), 1 << 16));
+			try {
+				if (in.readInt() != CACHE_MAGIC || in.readInt() != width
+						|| in.readInt() != height || in.readInt() != bins)
+					return false;
+				radialMin = in.readDouble();
+				radialMax = in.readDouble();
+				int n = in.readInt();
+				pixels = new int[n];
+				pixelBins = new int[n];
+				for (int i = 0; i < n; i++)
+					pixels[i] = in.readInt();
+				for (int i = 0; i < n; i++)
+					pixelBins[i] = in.readInt();
+				norms = new float[bins];
+				for (int b = 0; b < bins; b++)
+					norms[b] = in.readFloat();
+				return true;
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	private void writeEntry(File entry) throws IOException {
+		EdfDiskCache.write(entry, new EdfDiskCache.Writer() {
+			public void write(File file) throws IOException {
+				writeTable(file);
+			}
+		});
+	}
+
+	private void writeTable(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(CACHE_MAGIC);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(bins);
+			out.writeDouble(radialMin);
+			out.writeDouble(radialMax);
+			out.writeInt(pixels.length);
+			for (int pixel : pixels)
+				out.writeInt(pixel);
+			for (int bin : pixelBins)
+				out.writeInt(bin);
+			for (float norm : norms)
+				out.writeFloat(norm);
+		} finally {
+			out.close();
+		}
+	}
+}
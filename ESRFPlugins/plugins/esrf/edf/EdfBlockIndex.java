@@ -0,0 +1,68 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF/EHF header block index                                          *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * All header blocks of a file, found in a single forward pass. For EHF files
+ * the blocks are consecutive headers whose data lives in binary files, for
+ * EDF files each header is followed by its data block.
+ **/
+public class EdfBlockIndex {
+
+	private final List<EdfHeader> headers = new ArrayList<EdfHeader>();
+	private final List<EdfHeader> dataBlocks = new ArrayList<EdfHeader>();
+	private final Map<String, EdfHeader> blocksById = new HashMap<String, EdfHeader>();
+
+	private EdfBlockIndex() {
+	}
+
+	public static EdfBlockIndex build(FileChannel in, boolean ehf)
+			throws IOException {
+		EdfBlockIndex index = new EdfBlockIndex();
+		long position = 0;
+		EdfHeader header;
+		while ((header = EdfHeader.read(in, position)) != null) {
+			index.headers.add(header);
+			if (header.isDataBlock()) {
+				index.dataBlocks.add(header);
+				index.blocksById.put(header.get("EDF_DataBlockID"), header);
+			}
+			if (ehf || header.getBinaryFileName() != null)
+				position = header.getHeaderEnd();
+			else
+				position = header.getDataOffset() + header.getDataSize();
+		}
+		return index;
+	}
+
+	/** All header blocks in file order **/
+	public List<EdfHeader> getHeaders() {
+		return Collections.unmodifiableList(headers);
+	}
+
+	/** The header blocks containing "EDF_DataBlockID", in file order **/
+	public List<EdfHeader> getDataBlocks() {
+		return Collections.unmodifiableList(dataBlocks);
+	}
+
+	/** Returns the data block with the given "EDF_DataBlockID", or null **/
+	public EdfHeader getDataBlock(String blockId) {
+		return blocksById.get(blockId);
+	}
+
+	public int size() {
+		return headers.size();
+	}
+}
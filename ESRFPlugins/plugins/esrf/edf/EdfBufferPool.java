@@ -0,0 +1,200 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF buffer pool                                                     *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Reusable I/O buffers and pixel arrays, so that reading a stream of frames
+ * of the same size allocates next to nothing once warmed up. Byte buffers
+ * are kept in power of two size classes, direct and heap separately, and
+ * handed out with the requested limit. Pixel arrays are kept by type and
+ * exact length, since ImageJ processors need arrays of the image size.
+ *
+ * Buffers and arrays come back with undefined contents. Only return what
+ * nothing else refers to any more; a released array may be handed to the
+ * next caller at once. At most maxBytes are kept, anything released beyond
+ * that is left to the garbage collector.
+ **/
+public class EdfBufferPool {
+
+	private static final int MIN_BUFFER_CLASS = 4096;
+	private static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+	private static EdfBufferPool shared;
+
+	private final long maxBytes;
+	private long pooledBytes = 0;
+	private long requests = 0;
+	private long reused = 0;
+
+	private final Map<Integer, Deque<ByteBuffer>> directBuffers = new HashMap<Integer, Deque<ByteBuffer>>();
+	private final Map<Integer, Deque<ByteBuffer>> heapBuffers = new HashMap<Integer, Deque<ByteBuffer>>();
+	// Pixel arrays by array class and length
+	private final Map<Class<?>, Map<Integer, Deque<Object>>> arrays = new HashMap<Class<?>, Map<Integer, Deque<Object>>>();
+
+	public EdfBufferPool(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/** A process wide pool, used by the frame readers **/
+	public static synchronized EdfBufferPool getShared() {
+		if (shared == null)
+			shared = new EdfBufferPool(DEFAULT_MAX_BYTES);
+		return shared;
+	}
+
+	/**
+	 * A cleared, big-endian buffer with at least capacity bytes and its
+	 * limit at capacity
+	 **/
+	public synchronized ByteBuffer acquireBuffer(int capacity, boolean direct) {
+		requests++;
+		int sizeClass = getSizeClass(capacity);
+		Deque<ByteBuffer> free = (direct ? directBuffers : heapBuffers)
+				.get(sizeClass);
+		ByteBuffer buffer = free == null ? null : free.poll();
+		if (buffer != null) {
+			reused++;
+			pooledBytes -= sizeClass;
+		} else {
+			buffer = direct ? ByteBuffer.allocateDirect(sizeClass)
+					: ByteBuffer.allocate(sizeClass);
+		}
+		buffer.clear();
+		buffer.limit(capacity);
+		buffer.order(ByteOrder.BIG_ENDIAN);
+		return buffer;
+	}
+
+	/** Takes back a buffer from acquireBuffer **/
+	public synchronized void release(ByteBuffer buffer) {
+		int sizeClass = buffer.capacity();
+		if (sizeClass != getSizeClass(sizeClass)
+				|| pooledBytes + sizeClass > maxBytes)
+			return;
+		Map<Integer, Deque<ByteBuffer>> buffers = buffer.isDirect() ? directBuffers
+				: heapBuffers;
+		Deque<ByteBuffer> free = buffers.get(sizeClass);
+		if (free == null) {
+			free = new ArrayDeque<ByteBuffer>();
+			buffers.put(sizeClass, free);
+		}
+		free.push(buffer);
+		pooledBytes += sizeClass;
+	}
+
+	public byte[] acquireBytes(int length) {
+		byte[] pixels = (byte[]) poll(byte[].class, length, length);
+		return pixels != null ? pixels : new byte[length];
+	}
+
+	public short[] acquireShorts(int length) {
+		short[] pixels = (short[]) poll(short[].class, length, 2L * length);
+		return pixels != null ? pixels : new short[length];
+	}
+
+	public int[] acquireInts(int length) {
+		int[] pixels = (int[]) poll(int[].class, length, 4L * length);
+		return pixels != null ? pixels : new int[length];
+	}
+
+	public float[] acquireFloats(int length) {
+		float[] pixels = (float[]) poll(float[].class, length, 4L * length);
+		return pixels != null ? pixels : new float[length];
+	}
+
+	public double[] acquireDoubles(int length) {
+		double[] pixels = (double[]) poll(double[].class, length, 8L * length);
+		return pixels != null ? pixels : new double[length];
+	}
+
+	/** Takes back a byte[], short[], int[], float[] or double[] array **/
+	public synchronized void release(Object pixels) {
+		int length;
+		long bytes;
+		if (pixels instanceof byte[]) {
+			length = ((byte[]) pixels).length;
+			bytes = length;
+		} else if (pixels instanceof short[]) {
+			length = ((short[]) pixels).length;
+			bytes = 2L * length;
+		} else if (pixels instanceof int[]) {
+			length = ((int[]) pixels).length;
+			bytes = 4L * length;
+		} else if (pixels instanceof float[]) {
+			length = ((float[]) pixels).length;
+			bytes = 4L * length;
+		} else if (pixels instanceof double[]) {
+			length = ((double[]) pixels).length;
+			bytes = 8L * length;
+		} else {
+			return;
+		}
+		if (length == 0 || pooledBytes + bytes > maxBytes)
+			return;
+		Map<Integer, Deque<Object>> byLength = arrays.get(pixels.getClass());
+		if (byLength == null) {
+			byLength = new HashMap<Integer, Deque<Object>>();
+			arrays.put(pixels.getClass(), byLength);
+		}
+		Deque<Object> free = byLength.get(length);
+		if (free == null) {
+			free = new ArrayDeque<Object>();
+			byLength.put(length, free);
+		}
+		free.push(pixels);
+		pooledBytes += bytes;
+	}
+
+	/** Drops everything kept for reuse **/
+	public synchronized void clear() {
+		directBuffers.clear();
+		heapBuffers.clear();
+		arrays.clear();
+		pooledBytes = 0;
+	}
+
+	public synchronized long getPooledBytes() {
+		return pooledBytes;
+	}
+
+	/** Requests, the share served from the pool, and the bytes kept **/
+	public synchronized String getStatistics() {
+		return String.format(
+				"buffer pool: %d requests, %.1f%% reused, %.1f MB kept",
+				requests, requests == 0 ? 0.0 : 100.0 * reused / requests,
+				pooledBytes / 1048576.0);
+	}
+
+	private synchronized Object poll(Class<?> type, int length, long bytes) {
+		requests++;
+		Map<Integer, Deque<Object>> byLength = arrays.get(type);
+		Deque<Object> free = byLength == null ? null : byLength.get(length);
+		Object pixels = free == null ? null : free.poll();
+		if (pixels != null) {
+			reused++;
+			pooledBytes -= bytes;
+		}
+		return pixels;
+	}
+
+	// The capacity of the buffer acquireBuffer allocates for capacity
+	static int getSizeClass(int capacity) {
+		if (capacity <= MIN_BUFFER_CLASS)
+			return MIN_BUFFER_CLASS;
+		if (capacity > 1 << 30)
+			return capacity;
+		int sizeClass = Integer.highestOneBit(capacity);
+		return sizeClass == capacity ? capacity : sizeClass << 1;
+	}
+}
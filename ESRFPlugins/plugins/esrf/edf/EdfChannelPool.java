@@ -0,0 +1,141 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF channel pool                                                    *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Open read-only channels keyed by canonical path. Readers only use
+ * positional reads, so one channel can be shared by any number of readers
+ * and threads.
+ *
+ * Every acquire must be matched by a release. A released channel is kept
+ * open for reuse, but at most maxIdle unused channels are kept and the least
+ * recently used ones are closed at once, so the number of open descriptors
+ * never grows with the number of files read.
+ **/
+public class EdfChannelPool implements Closeable {
+
+	private static final int DEFAULT_MAX_IDLE = 16;
+
+	private static EdfChannelPool shared;
+
+	private final int maxIdle;
+
+	// In access order, so iteration starts with the least recently used
+	private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<File, Entry>(
+			16, 0.75f, true);
+	private final Map<FileChannel, Entry> byChannel = new IdentityHashMap<FileChannel, Entry>();
+	private int idle = 0;
+
+	private static class Entry {
+		final File file;
+		final FileChannel channel;
+		int users;
+
+		Entry(File file, FileChannel channel) {
+			this.file = file;
+			this.channel = channel;
+		}
+	}
+
+	public EdfChannelPool() {
+		this(DEFAULT_MAX_IDLE);
+	}
+
+	/** A pool with maxIdle 0 closes each channel when it is released **/
+	public EdfChannelPool(int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+
+	/** A process wide pool, for example for virtual stacks **/
+	public static synchronized EdfChannelPool getShared() {
+		if (shared == null)
+			shared = new EdfChannelPool();
+		return shared;
+	}
+
+	/** Returns an open channel for file, opening it if needed **/
+	public synchronized FileChannel acquire(File file) throws IOException {
+		File key = file.getCanonicalFile();
+		Entry entry = entries.get(key);
+		if (entry != null && !entry.channel.isOpen()) {
+			remove(entry);
+			entry = null;
+		}
+		if (entry == null) {
+			entry = new Entry(key, new RandomAccessFile(key, "r")
+					.getChannel());
+			entries.put(key, entry);
+			byChannel.put(entry.channel, entry);
+		} else if (entry.users == 0) {
+			idle--;
+		}
+		entry.users++;
+		return entry.channel;
+	}
+
+	/** Hands back a channel returned by acquire **/
+	public synchronized void release(FileChannel channel) throws IOException {
+		Entry entry = byChannel.get(channel);
+		if (entry == null) {
+			// Not pooled, or dropped by close
+			channel.close();
+			return;
+		}
+		if (--entry.users > 0)
+			return;
+		idle++;
+		if (idle <= maxIdle)
+			return;
+		Iterator<Entry> it = entries.values().iterator();
+		while (idle > maxIdle && it.hasNext()) {
+			Entry eldest = it.next();
+			if (eldest.users == 0) {
+				it.remove();
+				byChannel.remove(eldest.channel);
+				idle--;
+				eldest.channel.close();
+			}
+		}
+	}
+
+	/** Number of open channels, in use or idle **/
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/** Closes all channels, including those still in use **/
+	public synchronized void close() throws IOException {
+		IOException failure = null;
+		for (Entry entry : entries.values()) {
+			try {
+				entry.channel.close();
+			} catch (IOException ex) {
+				failure = ex;
+			}
+		}
+		entries.clear();
+		byChannel.clear();
+		idle = 0;
+		if (failure != null)
+			throw failure;
+	}
+
+	private void remove(Entry entry) {
+		entries.remove(entry.file);
+		byChannel.remove(entry.channel);
+		if (entry.users == 0)
+			idle--;
+	}
+}
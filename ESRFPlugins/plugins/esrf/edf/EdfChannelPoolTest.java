@@ -0,0 +1,186 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF channel pool test                                               *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ * Reads many small EDF files through one EdfChannelPool and checks    *
+ * that the open file descriptors of the process stay bounded by the   *
+ * idle limit of the pool, not by the number of files. Run it with     *
+ *                                                                     *
+ *   java -cp ESRFPlugins_.jar esrf.edf.EdfChannelPoolTest             *
+ *        dir=/tmp/fds files=100000 max_idle=16 threads=4 slack=8      *
+ *                                                                     *
+ * Missing files are written first with EdfDetectorSimulator. The      *
+ * descriptors are counted in /proc/self/fd, or with the platform      *
+ * MXBean where there is no /proc. The exit status is 1 if the count   *
+ * ever exceeds the count before reading plus max_idle, threads and    *
+ * slack.                                                              *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Checks that EdfChannelPool keeps the number of open descriptors bounded **/
+public class EdfChannelPoolTest {
+
+	// Descriptors are counted after every this many files
+	private static final int SAMPLE_INTERVAL = 100;
+
+	private File directory = new File(".");
+	private int files = 100000;
+	private int maxIdle = 16;
+	private int threads = 4;
+	private int slack = 8;
+
+	private final AtomicLong highest = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		EdfChannelPoolTest test = new EdfChannelPoolTest();
+		test.configure(EdfDetectorSimulator.parseOptions(args));
+		if (!test.run())
+			System.exit(1);
+	}
+
+	public void configure(Map<String, String> options) {
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			String key = option.getKey();
+			String value = option.getValue();
+			if (key.equals("dir"))
+				directory = new File(value);
+			else if (key.equals("files"))
+				files = Math.max(1, Integer.parseInt(value));
+			else if (key.equals("max_idle"))
+				maxIdle = Math.max(0, Integer.parseInt(value));
+			else if (key.equals("threads"))
+				threads = Math.max(1, Integer.parseInt(value));
+			else if (key.equals("slack"))
+				slack = Math.max(0, Integer.parseInt(value));
+			else
+				throw new IllegalArgumentException("Unknown option " + key);
+		}
+	}
+
+	/** Reads every file once, returns false if the descriptors grew too far **/
+	public boolean run() throws IOException, InterruptedException {
+		final File[] found = prepare();
+		long before = countDescriptors();
+		if (before < 0)
+			throw new IOException("Cannot count open file descriptors");
+		long limit = before + maxIdle + threads + slack;
+		highest.set(before);
+
+		final EdfChannelPool pool = new EdfChannelPool(maxIdle);
+		long t0 = System.currentTimeMillis();
+		String[] errors;
+		try {
+			errors = EdfWorkers.run(found.length, threads,
+					new EdfWorkers.Task() {
+						public void run(int index) throws IOException {
+							readFile(found[index], pool);
+							if (index % SAMPLE_INTERVAL == 0)
+								sample();
+						}
+					});
+			sample();
+		} finally {
+			pool.close();
+		}
+		long after = countDescriptors();
+
+		int failed = 0;
+		for (int i = 0; i < found.length; i++) {
+			if (errors[i] != null && failed++ < 10)
+				System.out.println("Error: " + found[i].getName() + ": "
+						+ errors[i]);
+		}
+		System.out.println(found.length + " files read with " + threads
+				+ " threads in " + (System.currentTimeMillis() - t0) + " ms");
+		System.out.println("Open descriptors: " + before + " before, "
+				+ highest.get() + " at most while reading, " + after
+				+ " after closing the pool, limit " + limit);
+		if (failed > 0)
+			System.out.println("FAILED: " + failed + " files could not be read");
+		if (highest.get() > limit)
+			System.out.println("FAILED: the descriptors grew with the files");
+		return failed == 0 && highest.get() <= limit;
+	}
+
+	// The files of the test directory, written first if there are too few
+	private File[] prepare() throws IOException {
+		File[] found = listFiles();
+		if (found.length < files) {
+			System.out.println("Writing " + files + " EDF files to "
+					+ directory);
+			EdfDetectorSimulator simulator = new EdfDetectorSimulator();
+			Map<String, String> options = new HashMap<String, String>();
+			options.put("dir", directory.getPath());
+			options.put("frames", Integer.toString(files));
+			options.put("width", "16");
+			options.put("height", "16");
+			options.put("prefix", "fd_");
+			simulator.configure(options);
+			simulator.run();
+			found = listFiles();
+		}
+		Arrays.sort(found);
+		return Arrays.copyOf(found, Math.min(files, found.length));
+	}
+
+	private File[] listFiles() {
+		File[] found = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(".edf");
+			}
+		});
+		return found != null ? found : new File[0];
+	}
+
+	private void readFile(File file, EdfChannelPool pool) throws IOException {
+		EdfFrameReader reader = new EdfFrameReader(file, pool);
+		try {
+			EdfHeader header = reader.readHeader();
+			reader.read(header, new float[header.getPixelCount()]);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void sample() {
+		long count = countDescriptors();
+		if (count < 0)
+			return;
+		long current;
+		do {
+			current = highest.get();
+		} while (count > current && !highest.compareAndSet(current, count));
+	}
+
+	/** Open file descriptors of this process, -1 if they cannot be counted **/
+	public static long countDescriptors() {
+		File proc = new File("/proc/self/fd");
+		if (proc.isDirectory()) {
+			// Listing needs a descriptor itself, so it fails when none is left
+			String[] open = proc.list();
+			return open != null ? open.length : -1;
+		}
+		// com.sun.management.UnixOperatingSystemMXBean, not on every JVM
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		try {
+			Method count = os.getClass().getMethod(
+					"getOpenFileDescriptorCount");
+			count.setAccessible(true);
+			return ((Number) count.invoke(os)).longValue();
+		} catch (Exception ex) {
+			return -1;
+		}
+	}
+}
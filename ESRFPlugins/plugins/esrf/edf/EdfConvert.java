@@ -0,0 +1,226 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF pixel conversion kernels                                        *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts blocks of raw EDF pixels to Java arrays. Byte swapping is done
+ * by a bulk copy through a view of the buffer in its byte order, into a
+ * scratch array of the on-disk type. Widening and narrowing is then a plain
+ * counted loop between two arrays, which the JIT compiles to vector
+ * instructions where the platform has them. An instance keeps the scratch
+ * arrays, so converting a series of blocks does not allocate. They come
+ * from the shared EdfBufferPool and go back to it with release.
+ **/
+public class EdfConvert {
+
+	private byte[] bytes = new byte[0];
+	private short[] shorts = new short[0];
+	private int[] ints = new int[0];
+	private double[] doubles = new double[0];
+
+	/**
+	 * Converts count pixels of type from src, which must have the byte order
+	 * of the data, to float. src is advanced past the pixels.
+	 **/
+	public void toFloat(ByteBuffer src, EdfDataType type, float[] dst,
+			int offset, int count) {
+		switch (type) {
+		case UNSIGNED_BYTE:
+			unsignedToFloat(getBytes(src, count), dst, offset, count);
+			break;
+		case SIGNED_BYTE:
+			toFloat(getBytes(src, count), dst, offset, count);
+			break;
+		case UNSIGNED_SHORT:
+			unsignedToFloat(getShorts(src, count), dst, offset, count);
+			break;
+		case SIGNED_SHORT:
+			toFloat(getShorts(src, count), dst, offset, count);
+			break;
+		case UNSIGNED_INTEGER:
+			unsignedToFloat(getInts(src, count), dst, offset, count);
+			break;
+		case SIGNED_INTEGER:
+			toFloat(getInts(src, count), dst, offset, count);
+			break;
+		case FLOAT:
+			src.asFloatBuffer().get(dst, offset, count);
+			src.position(src.position() + 4 * count);
+			break;
+		case DOUBLE:
+			toFloat(getDoubles(src, count), dst, offset, count);
+			break;
+		}
+	}
+
+	/**
+	 * Converts count integer pixels of type from src to int, unsigned 32-bit
+	 * values above 2^31 - 1 wrap around. src is advanced past the pixels.
+	 **/
+	public void toInt(ByteBuffer src, EdfDataType type, int[] dst,
+			int offset, int count) {
+		switch (type) {
+		case UNSIGNED_BYTE:
+			unsignedToInt(getBytes(src, count), dst, offset, count);
+			break;
+		case SIGNED_BYTE:
+			toInt(getBytes(src, count), dst, offset, count);
+			break;
+		case UNSIGNED_SHORT:
+			unsignedToInt(getShorts(src, count), dst, offset, count);
+			break;
+		case SIGNED_SHORT:
+			toInt(getShorts(src, count), dst, offset, count);
+			break;
+		case UNSIGNED_INTEGER:
+		case SIGNED_INTEGER:
+			src.asIntBuffer().get(dst, offset, count);
+			src.position(src.position() + 4 * count);
+			break;
+		default:
+			throw new IllegalArgumentException("Cannot convert "
+					+ type.getName() + " to integers");
+		}
+	}
+
+	/**
+	 * Scales src linearly into 16-bit pixels, min to 0 and max to 65535,
+	 * clamping values outside, as ImageJ does for 32 to 16-bit conversion
+	 **/
+	public static void scaleToShort(float[] src, int srcOffset, short[] dst,
+			int dstOffset, int count, double min, double max) {
+		float scale = max > min ? (float) (65535.0 / (max - min)) : 1f;
+		float fmin = (float) min;
+		for (int i = 0; i < count; i++) {
+			float v = (src[srcOffset + i] - fmin) * scale + 0.5f;
+			v = Math.max(0f, Math.min(65535f, v));
+			dst[dstOffset + i] = (short) (int) v;
+		}
+	}
+
+	/** Returns the scratch arrays to the shared pool **/
+	public void release() {
+		EdfBufferPool pool = EdfBufferPool.getShared();
+		pool.release(bytes);
+		pool.release(shorts);
+		pool.release(ints);
+		pool.release(doubles);
+		bytes = new byte[0];
+		shorts = new short[0];
+		ints = new int[0];
+		doubles = new double[0];
+	}
+
+	private byte[] getBytes(ByteBuffer src, int count) {
+		if (bytes.length < count) {
+			EdfBufferPool.getShared().release(bytes);
+			bytes = EdfBufferPool.getShared().acquireBytes(count);
+		}
+		src.get(bytes, 0, count);
+		return bytes;
+	}
+
+	private short[] getShorts(ByteBuffer src, int count) {
+		if (shorts.length < count) {
+			EdfBufferPool.getShared().release(shorts);
+			shorts = EdfBufferPool.getShared().acquireShorts(count);
+		}
+		src.asShortBuffer().get(shorts, 0, count);
+		src.position(src.position() + 2 * count);
+		return shorts;
+	}
+
+	private int[] getInts(ByteBuffer src, int count) {
+		if (ints.length < count) {
+			EdfBufferPool.getShared().release(ints);
+			ints = EdfBufferPool.getShared().acquireInts(count);
+		}
+		src.asIntBuffer().get(ints, 0, count);
+		src.position(src.position() + 4 * count);
+		return ints;
+	}
+
+	private double[] getDoubles(ByteBuffer src, int count) {
+		if (doubles.length < count) {
+			EdfBufferPool.getShared().release(doubles);
+			doubles = EdfBufferPool.getShared().acquireDoubles(count);
+		}
+		src.asDoubleBuffer().get(doubles, 0, count);
+		src.position(src.position() + 8 * count);
+		return doubles;
+	}
+
+	// The kernels, one counted loop each
+
+	private static void unsignedToFloat(byte[] src, float[] dst, int offset,
+			int count) {
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = src[i] & 0xff;
+	}
+
+	private static void toFloat(byte[] src, float[] dst, int offset, int count) {
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = src[i];
+	}
+
+	private static void unsignedToFloat(short[] src, float[] dst, int offset,
+			int count) {
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = src[i] & 0xffff;
+	}
+
+	private static void toFloat(short[] src, float[] dst, int offset,
+			int count) {
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = src[i];
+	}
+
+	private static void unsignedToFloat(int[] src, float[] dst, int offset,
+			int count) {
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = src[i] & 0xffffffffL;
+	}
+
+	private static void toFloat(int[] src, float[] dst, int offset, int count) {
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = src[i];
+	}
+
+	private static void toFloat(double[] src, float[] dst, int offset,
+			int count) {
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = (float) src[i];
+	}
+
+	private static void unsignedToInt(byte[] src, int[] dst, int offset,
+			int count) {
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = src[i] & 0xff;
+	}
+
+	private static void toInt(byte[] src, int[] dst, int offset, int count) {
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = src[i];
+	}
+
+	private static void unsignedToInt(short[] src, int[] dst, int offset,
+			int count) {
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = src[i] & 0xffff;
+	}
+
+	private static void toInt(short[] src, int[] dst, int offset, int count) {
+		for (int i = 0; i < count; i++)
+			dst[offset + i] = src[i];
+	}
+}
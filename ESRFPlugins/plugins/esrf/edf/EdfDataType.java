@@ -0,0 +1,56 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF data types                                                      *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+/** The pixel data types which can appear in the "DataType" header key **/
+public enum EdfDataType {
+
+	UNSIGNED_BYTE(1, "UnsignedByte", "UnsignedChar"),
+	SIGNED_BYTE(1, "SignedByte", "SignedChar", "SingedByte"),
+	UNSIGNED_SHORT(2, "UnsignedShort"),
+	SIGNED_SHORT(2, "SignedShort"),
+	UNSIGNED_INTEGER(4, "UnsignedInteger", "UnsignedLong"),
+	SIGNED_INTEGER(4, "SignedInteger", "SignedLong"),
+	FLOAT(4, "FloatValue", "Float"),
+	DOUBLE(8, "DoubleValue", "Double");
+
+	private final int bytesPerPixel;
+	private final String[] names;
+
+	private EdfDataType(int bytesPerPixel, String... names) {
+		this.bytesPerPixel = bytesPerPixel;
+		this.names = names;
+	}
+
+	public int getBytesPerPixel() {
+		return bytesPerPixel;
+	}
+
+	/** The name written to the header by EdfFrameWriter **/
+	public String getName() {
+		return names[0];
+	}
+
+	public boolean isFloatingPoint() {
+		return this == FLOAT || this == DOUBLE;
+	}
+
+	/** Returns the data type for a header value, or null if unknown **/
+	public static EdfDataType fromName(String name) {
+		for (EdfDataType type : values()) {
+			for (String typeName : type.names) {
+				if (typeName.equals(name))
+					return type;
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF detector simulator                                              *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ * Writes an EDF series at a given frame rate, like a detector during  *
+ * an acquisition, for load tests with EdfLoadTest. Run it with        *
+ *                                                                     *
+ *   java -cp ESRFPlugins_.jar esrf.edf.EdfDetectorSimulator           *
+ *        dir=/tmp/sim frames=1000 rate=10 width=2048 height=2048      *
+ *        type=UnsignedShort order=LowByteFirst sparsity=0.02          *
+ *        frames_per_file=1 prefix=sim_                                *
+ *                                                                     *
+ * rate=0 writes as fast as possible.                                  *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.util.*;
+
+/**
+ * Simulates a detector writing frames with the ESRF_Writer header layout.
+ * A few frames are generated up front and written in turn, so the write
+ * rate is not limited by making pixels. Sparse frames have the given
+ * fraction of non-zero pixels, like photon counting detectors at low flux.
+ **/
+public class EdfDetectorSimulator {
+
+	// Distinct frames generated before writing
+	private static final int FRAME_POOL_SIZE = 8;
+
+	private File directory = new File(".");
+	private String prefix = "sim_";
+	private int frames = 100;
+	private int framesPerFile = 1;
+	private double rate = 0;
+	private int width = 2048;
+	private int height = 2048;
+	private EdfDataType type = EdfDataType.UNSIGNED_SHORT;
+	private ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
+	private double sparsity = 1;
+	private long seed = 1;
+
+	private int lateFrames = 0;
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = parseOptions(args);
+		EdfDetectorSimulator simulator = new EdfDetectorSimulator();
+		simulator.configure(options);
+		EdfTimings timings = simulator.run();
+		System.out.print(timings.getReport());
+		System.out.println(simulator.getLateFrames()
+				+ " frames were late for the requested rate");
+	}
+
+	/** Parses key=value arguments **/
+	static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int i = arg.indexOf('=');
+			if (i <= 0)
+				throw new IllegalArgumentException("Expected key=value: " + arg);
+			options.put(arg.substring(0, i), arg.substring(i + 1));
+		}
+		return options;
+	}
+
+	/** Takes the settings from key=value options, see the file header **/
+	public void configure(Map<String, String> options) {
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			String key = option.getKey();
+			String value = option.getValue();
+			if (key.equals("dir"))
+				directory = new File(value);
+			else if (key.equals("prefix"))
+				prefix = value;
+			else if (key.equals("frames"))
+				frames = Integer.parseInt(value);
+			else if (key.equals("frames_per_file"))
+				framesPerFile = Math.max(1, Integer.parseInt(value));
+			else if (key.equals("rate"))
+				rate = Double.parseDouble(value);
+			else if (key.equals("width"))
+				width = Integer.parseInt(value);
+			else if (key.equals("height"))
+				height = Integer.parseInt(value);
+			else if (key.equals("type"))
+				type = parseType(value);
+			else if (key.equals("order"))
+				byteOrder = value.equals("HighByteFirst") ? ByteOrder.BIG_ENDIAN
+						: ByteOrder.LITTLE_ENDIAN;
+			else if (key.equals("sparsity"))
+				sparsity = Double.parseDouble(value);
+			else if (key.equals("seed"))
+				seed = Long.parseLong(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + key);
+		}
+	}
+
+	private static EdfDataType parseType(String name) {
+		EdfDataType type = EdfDataType.fromName(name);
+		if (type == null)
+			throw new IllegalArgumentException("Unknown data type " + name);
+		return type;
+	}
+
+	/** Writes the series and returns the write timings **/
+	public EdfTimings run() throws IOException {
+		directory.mkdirs();
+		Object[] pool = new Object[Math.min(FRAME_POOL_SIZE, frames)];
+		Random random = new Random(seed);
+		for (int i = 0; i < pool.length; i++)
+			pool[i] = createFrame(random);
+		EdfHeader header = EdfHeader.create(width, height, type, byteOrder,
+				null);
+
+		int files = (frames + framesPerFile - 1) / framesPerFile;
+		int digits = Math.max(4, Integer.toString(files - 1).length());
+		long period = rate > 0 ? (long) (1e9 / rate) : 0;
+		EdfTimings timings = new EdfTimings();
+		lateFrames = 0;
+		timings.start();
+		long start = System.nanoTime();
+		EdfFrameWriter writer = null;
+		try {
+			for (int i = 0; i < frames; i++) {
+				long due = start + i * period;
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					try {
+						Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+					} catch (InterruptedException ex) {
+						throw new InterruptedIOException("Interrupted");
+					}
+				} else if (period > 0 && i > 0 && -wait > period) {
+					lateFrames++;
+				}
+				long t0 = System.nanoTime();
+				if (i % framesPerFile == 0) {
+					if (writer != null)
+						writer.close();
+					String name = String.format("%s%0" + digits + "d.edf",
+							prefix, i / framesPerFile);
+					writer = new EdfFrameWriter(new File(directory, name));
+				}
+				write(writer, header, pool[i % pool.length]);
+				timings.add(System.nanoTime() - t0, header.getFrameSize());
+			}
+		} finally {
+			if (writer != null)
+				writer.close();
+			timings.stop();
+		}
+		return timings;
+	}
+
+	/** Frames which started more than one period late **/
+	public int getLateFrames() {
+		return lateFrames;
+	}
+
+	private Object createFrame(Random random) {
+		int n = width * height;
+		// The values of the non-zero pixels
+		double[] values = new double[n];
+		if (sparsity >= 1) {
+			for (int i = 0; i < n; i++)
+				values[i] = 100 + 10 * random.nextGaussian();
+		} else {
+			int hits = (int) (sparsity * n);
+			for (int i = 0; i < hits; i++)
+				values[random.nextInt(n)] += 1 + random.nextInt(100);
+		}
+		switch (type) {
+		case UNSIGNED_BYTE:
+		case SIGNED_BYTE:
+			byte[] bytes = new byte[n];
+			for (int i = 0; i < n; i++)
+				bytes[i] = (byte) Math.min(127, Math.max(0, values[i]));
+			return bytes;
+		case UNSIGNED_SHORT:
+		case SIGNED_SHORT:
+			short[] shorts = new short[n];
+			for (int i = 0; i < n; i++)
+				shorts[i] = (short) Math.min(32767, Math.max(0, values[i]));
+			return shorts;
+		case UNSIGNED_INTEGER:
+		case SIGNED_INTEGER:
+			int[] ints = new int[n];
+			for (int i = 0; i < n; i++)
+				ints[i] = (int) Math.max(0, values[i]);
+			return ints;
+		case FLOAT:
+			float[] floats = new float[n];
+			for (int i = 0; i < n; i++)
+				floats[i] = (float) values[i];
+			return floats;
+		default:
+			return values;
+		}
+	}
+
+	private void write(EdfFrameWriter writer, EdfHeader header, Object pixels)
+			throws IOException {
+		if (pixels instanceof byte[])
+			writer.write(header, (byte[]) pixels);
+		else if (pixels instanceof short[])
+			writer.write(header, (short[]) pixels);
+		else if (pixels instanceof int[])
+			writer.write(header, (int[]) pixels);
+		else if (pixels instanceof float[])
+			writer.write(header, (float[]) pixels);
+		else
+			writer.write(header, (double[]) pixels);
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF disk cache entries                                              *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Names and writes the entries of the on-disk caches, such as thumbnails,
+ * pyramid levels and integration tables. Entries are named by a digest of
+ * what they were made from, and written to a temporary file in the same
+ * directory which is then renamed into place, so readers never see half an
+ * entry and a writer which fails leaves nothing behind. An entry may be a
+ * file or a directory; a cache directory is kept under a size limit by
+ * removing the entries least recently touched.
+ **/
+public class EdfDiskCache {
+
+	/** Writes the contents of an entry **/
+	public interface Writer {
+		void write(File file) throws IOException;
+	}
+
+	private EdfDiskCache() {
+	}
+
+	/** The MD5 digest of text followed by data, which may be null, in hex **/
+	public static String digest(String text, byte[] data) throws IOException {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			md5.update(text.getBytes("UTF-8"));
+			if (data != null)
+				md5.update(data);
+			StringBuilder name = new StringBuilder();
+			for (byte b : md5.digest())
+				name.append(String.format("%02x", b & 0xff));
+			return name.toString();
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IOException("MD5 not available");
+		}
+	}
+
+	/**
+	 * The canonical path, length and modification time of file, one per
+	 * line, which change when the file is moved or rewritten
+	 **/
+	public static String describe(File file) throws IOException {
+		File canonical = file.getCanonicalFile();
+		return canonical.getPath() + '\n' + canonical.length() + '\n'
+				+ canonical.lastModified();
+	}
+
+	/**
+	 * Calls writer on a temporary file next to entry and renames it to
+	 * entry. If another thread or process wrote entry meanwhile, its copy is
+	 * kept.
+	 **/
+	public static void write(File entry, Writer writer) throws IOException {
+		File tmp = File.createTempFile("entry", ".tmp", entry.getParentFile());
+		try {
+			writer.write(tmp);
+			if (!tmp.renameTo(entry) && !entry.isFile())
+				throw new IOException("Cannot write " + entry);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/** Marks entry as used now, so trim removes it last **/
+	public static void touch(File entry) {
+		entry.setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Removes the least recently touched entries of directory, but not keep,
+	 * until the rest take at most maxBytes, and returns the bytes removed
+	 **/
+	public static long trim(File directory, long maxBytes, File keep) {
+		File[] entries = directory.listFiles();
+		if (entries == null)
+			return 0;
+		final Map<File, Long> touched = new HashMap<File, Long>();
+		long total = 0;
+		for (File entry : entries) {
+			touched.put(entry, entry.lastModified());
+			total += getSize(entry);
+		}
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return touched.get(a).compareTo(touched.get(b));
+			}
+		});
+		long removed = 0;
+		for (int i = 0; i < entries.length && total - removed > maxBytes; i++) {
+			if (entries[i].equals(keep))
+				continue;
+			long size = getSize(entries[i]);
+			delete(entries[i]);
+			removed += size;
+		}
+		return removed;
+	}
+
+	/** Bytes in entry, the files below it for a directory **/
+	public static long getSize(File entry) {
+		File[] files = entry.listFiles();
+		if (files == null)
+			return entry.length();
+		long size = 0;
+		for (File file : files)
+			size += getSize(file);
+		return size;
+	}
+
+	/** Removes entry, with the files below it for a directory **/
+	public static void delete(File entry) {
+		File[] files = entry.listFiles();
+		if (files != null) {
+			for (File file : files)
+				delete(file);
+		}
+		entry.delete();
+	}
+}
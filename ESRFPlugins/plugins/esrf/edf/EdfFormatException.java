@@ -0,0 +1,23 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF format exception                                                *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.IOException;
+
+/** Thrown when a file is readable but its content is not valid EDF **/
+public class EdfFormatException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public EdfFormatException(String message) {
+		super(message);
+	}
+}
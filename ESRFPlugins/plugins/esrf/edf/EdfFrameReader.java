@@ -0,0 +1,406 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF frame reader                                                    *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Reads EDF headers and pixel data into caller supplied arrays. The reader
+ * keeps one transfer buffer, so reading a series of frames into the same
+ * arrays does not allocate. All file positions are 64-bit and data is read
+ * with positional reads, so frames beyond 2 GiB cost the same as the first.
+ **/
+public class EdfFrameReader implements Closeable {
+
+	private static final int CHUNK_SIZE = 256 * 1024;
+
+	private final File file;
+	private final FileChannel channel;
+	private final EdfChannelPool channelOwner;
+	private ByteBuffer chunk;
+	private final EdfConvert convert = new EdfConvert();
+
+	// Header positions of the frames of a multi-frame file found so far
+	private final List<Long> frameOffsets = new ArrayList<Long>();
+	private long frameStride;
+	private int firstImageNumber;
+
+	private EdfChannelPool pool;
+
+	/** Opens file, it is closed again by close **/
+	public EdfFrameReader(File file) throws IOException {
+		this.file = file;
+		channel = new RandomAccessFile(file, "r").getChannel();
+		channelOwner = null;
+	}
+
+	/**
+	 * Takes the channel for file from pool, and for binary files named in
+	 * the headers. close hands the channels back instead of closing them.
+	 **/
+	public EdfFrameReader(File file, EdfChannelPool pool) throws IOException {
+		this.file = file;
+		channel = pool.acquire(file);
+		channelOwner = pool;
+		this.pool = pool;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/** Reads the first header of the file **/
+	public EdfHeader readHeader() throws IOException {
+		return readHeader(false);
+	}
+
+	/**
+	 * Reads the first header of the file. For EHF files the first header
+	 * containing "EDF_DataBlockID" is returned.
+	 **/
+	public EdfHeader readHeader(boolean ehf) throws IOException {
+		long position = 0;
+		while (true) {
+			EdfHeader header = EdfHeader.read(channel, position);
+			if (header == null)
+				throw new EdfFormatException("No EDF header found in " + file);
+			if (!ehf || header.isDataBlock())
+				return header;
+			position = header.getHeaderEnd();
+		}
+	}
+
+	/** Indexes all header blocks of the file in one pass **/
+	public EdfBlockIndex readBlockIndex(boolean ehf) throws IOException {
+		return EdfBlockIndex.build(channel, ehf);
+	}
+
+	/**
+	 * Binary files named by "EDF_BinaryFileName" are taken from the pool
+	 * instead of being opened for every frame
+	 **/
+	public void setChannelPool(EdfChannelPool pool) {
+		this.pool = pool;
+	}
+
+	/** Reads the header block starting at or after position, or null at EOF **/
+	public EdfHeader readHeader(long position) throws IOException {
+		return EdfHeader.read(channel, position);
+	}
+
+	/**
+	 * Reads the header of frame n, starting at 0, of a multi-frame file.
+	 * Frames written with the same header length are found directly, other
+	 * files are walked from the last frame found.
+	 **/
+	public EdfHeader readFrameHeader(int n) throws IOException {
+		if (frameOffsets.isEmpty()) {
+			EdfHeader first = readHeader();
+			frameOffsets.add(first.getHeaderOffset());
+			if (first.getBinaryFileName() == null)
+				frameStride = first.getDataOffset() + first.getDataSize()
+						- first.getHeaderOffset();
+			firstImageNumber = first.getInt("Image", 1);
+			if (n == 0)
+				return first;
+		}
+		if (n < frameOffsets.size())
+			return EdfHeader.read(channel, frameOffsets.get(n));
+
+		if (frameStride > 0) {
+			long predicted = frameOffsets.get(0) + n * frameStride;
+			EdfHeader header = readHeaderAt(predicted);
+			if (header != null
+					&& header.getInt("Image", firstImageNumber + n) == firstImageNumber
+							+ n)
+				return header;
+		}
+
+		int last = frameOffsets.size() - 1;
+		EdfHeader header = EdfHeader.read(channel, frameOffsets.get(last));
+		while (last < n) {
+			long next = header.getBinaryFileName() == null ? header
+					.getDataOffset() + header.getDataSize() : header
+					.getHeaderEnd();
+			header = EdfHeader.read(channel, next);
+			if (header == null)
+				throw new EdfFormatException("Frame " + n + " not found in "
+						+ file.getName());
+			frameOffsets.add(header.getHeaderOffset());
+			last++;
+		}
+		return header;
+	}
+
+	// Reads a header only if one starts exactly at position
+	private EdfHeader readHeaderAt(long position) throws IOException {
+		if (position >= channel.size())
+			return null;
+		ByteBuffer first = ByteBuffer.allocate(1);
+		if (channel.read(first, position) != 1 || first.get(0) != '{')
+			return null;
+		return EdfHeader.read(channel, position);
+	}
+
+	/** Reads 8-bit data **/
+	public void read(EdfHeader header, byte[] pixels) throws IOException {
+		EdfDataType type = checkType(header, pixels.length);
+		if (type.getBytesPerPixel() != 1)
+			throw new EdfFormatException("Cannot read " + type.getName()
+					+ " into 8-bit pixels");
+		FileChannel data = openData(header);
+		try {
+			int n = header.getPixelCount();
+			long position = header.getDataOffset();
+			for (int done = 0; done < n;) {
+				int count = Math.min(n - done, CHUNK_SIZE);
+				ByteBuffer buf = fill(data, position, count, header);
+				buf.get(pixels, done, count);
+				done += count;
+				position += count;
+			}
+		} finally {
+			closeData(data);
+		}
+	}
+
+	/** Reads 16-bit data, signed data is returned as is **/
+	public void read(EdfHeader header, short[] pixels) throws IOException {
+		EdfDataType type = checkType(header, pixels.length);
+		if (type.getBytesPerPixel() != 2)
+			throw new EdfFormatException("Cannot read " + type.getName()
+					+ " into 16-bit pixels");
+		FileChannel data = openData(header);
+		try {
+			int n = header.getPixelCount();
+			long position = header.getDataOffset();
+			for (int done = 0; done < n;) {
+				int count = Math.min(n - done, CHUNK_SIZE / 2);
+				ByteBuffer buf = fill(data, position, count * 2, header);
+				buf.asShortBuffer().get(pixels, done, count);
+				done += count;
+				position += count * 2L;
+			}
+		} finally {
+			closeData(data);
+		}
+	}
+
+	/** Reads integer data of any width, widening to 32 bits **/
+	public void read(EdfHeader header, int[] pixels) throws IOException {
+		EdfDataType type = checkType(header, pixels.length);
+		if (type.isFloatingPoint())
+			throw new EdfFormatException("Cannot read " + type.getName()
+					+ " into integer pixels");
+		int bytesPerPixel = type.getBytesPerPixel();
+		FileChannel data = openData(header);
+		try {
+			int n = header.getPixelCount();
+			long position = header.getDataOffset();
+			for (int done = 0; done < n;) {
+				int count = Math.min(n - done, CHUNK_SIZE / bytesPerPixel);
+				ByteBuffer buf = fill(data, position, count * bytesPerPixel,
+						header);
+				convert.toInt(buf, type, pixels, done, count);
+				done += count;
+				position += (long) count * bytesPerPixel;
+			}
+		} finally {
+			closeData(data);
+		}
+	}
+
+	/** Reads data of any type, converting to 32-bit floating point **/
+	public void read(EdfHeader header, float[] pixels) throws IOException {
+		EdfDataType type = checkType(header, pixels.length);
+		readFloats(header, type, header.getDataOffset(),
+				header.getPixelCount(), pixels);
+	}
+
+	/**
+	 * Reads only rows y to y + rows - 1 of a frame, converting to 32-bit
+	 * floating point. Nothing outside these rows is read from the file.
+	 **/
+	public void readRows(EdfHeader header, int y, int rows, float[] pixels)
+			throws IOException {
+		EdfDataType type = header.getDataType();
+		if (type == null)
+			throw new EdfFormatException("Unknown data type "
+					+ header.get("DataType"));
+		int width = header.getWidth();
+		if (y < 0 || rows < 0 || y + rows > header.getHeight())
+			throw new IllegalArgumentException("Rows " + y + " to "
+					+ (y + rows - 1) + " outside frame of height "
+					+ header.getHeight());
+		if ((long) width * rows > Integer.MAX_VALUE)
+			throw new EdfFormatException(width + "x" + rows
+					+ " rows do not fit in an array");
+		if (pixels.length < width * rows)
+			throw new IllegalArgumentException("Pixel array too small: "
+					+ pixels.length + " < " + width * rows);
+		readFloats(header, type, header.getDataOffset() + (long) y * width
+				* type.getBytesPerPixel(), width * rows, pixels);
+	}
+
+	/**
+	 * Reads the w by h rectangle at x, y of a frame, converting to 32-bit
+	 * floating point. Each row is one read at its offset in the data, so
+	 * only the rectangle is read from the file.
+	 **/
+	public void readRegion(EdfHeader header, int x, int y, int w, int h,
+			float[] pixels) throws IOException {
+		EdfDataType type = header.getDataType();
+		if (type == null)
+			throw new EdfFormatException("Unknown data type "
+					+ header.get("DataType"));
+		int width = header.getWidth();
+		if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width
+				|| y + h > header.getHeight())
+			throw new IllegalArgumentException("Region " + w + "x" + h
+					+ " at " + x + "," + y + " outside frame of size " + width
+					+ "x" + header.getHeight());
+		if (pixels.length < w * h)
+			throw new IllegalArgumentException("Pixel array too small: "
+					+ pixels.length + " < " + w * h);
+		int bytesPerPixel = type.getBytesPerPixel();
+		FileChannel data = openData(header);
+		try {
+			for (int row = 0; row < h; row++) {
+				long position = header.getDataOffset()
+						+ ((long) (y + row) * width + x) * bytesPerPixel;
+				for (int done = 0; done < w;) {
+					int count = Math.min(w - done, CHUNK_SIZE / bytesPerPixel);
+					ByteBuffer buf = fill(data, position, count
+							* bytesPerPixel, header);
+					convert.toFloat(buf, type, pixels, row * w + done, count);
+					done += count;
+					position += (long) count * bytesPerPixel;
+				}
+			}
+		} finally {
+			closeData(data);
+		}
+	}
+
+	/**
+	 * Reads every step-th pixel of every step-th row, for previews. Only the
+	 * sampled rows are read. pixels receives (width + step - 1) / step by
+	 * (height + step - 1) / step values.
+	 **/
+	public void readDecimated(EdfHeader header, int step, float[] pixels)
+			throws IOException {
+		EdfDataType type = header.getDataType();
+		if (type == null)
+			throw new EdfFormatException("Unknown data type "
+					+ header.get("DataType"));
+		if (step < 1)
+			throw new IllegalArgumentException("Step must be positive: " + step);
+		int width = header.getWidth();
+		int height = header.getHeight();
+		int outWidth = (width + step - 1) / step;
+		int outHeight = (height + step - 1) / step;
+		if (pixels.length < outWidth * outHeight)
+			throw new IllegalArgumentException("Pixel array too small: "
+					+ pixels.length + " < " + outWidth * outHeight);
+		long rowSize = (long) width * type.getBytesPerPixel();
+		float[] row = new float[width];
+		for (int y = 0; y < outHeight; y++) {
+			readFloats(header, type, header.getDataOffset() + y * step
+					* rowSize, width, row);
+			for (int x = 0, i = y * outWidth; x < outWidth; x++, i++)
+				pixels[i] = row[x * step];
+		}
+	}
+
+	private void readFloats(EdfHeader header, EdfDataType type,
+			long position, int n, float[] pixels) throws IOException {
+		int bytesPerPixel = type.getBytesPerPixel();
+		FileChannel data = openData(header);
+		try {
+			for (int done = 0; done < n;) {
+				int count = Math.min(n - done, CHUNK_SIZE / bytesPerPixel);
+				ByteBuffer buf = fill(data, position, count * bytesPerPixel,
+						header);
+				convert.toFloat(buf, type, pixels, done, count);
+				done += count;
+				position += (long) count * bytesPerPixel;
+			}
+		} finally {
+			closeData(data);
+		}
+	}
+
+	public void close() throws IOException {
+		if (chunk != null) {
+			EdfBufferPool.getShared().release(chunk);
+			chunk = null;
+		}
+		convert.release();
+		if (channelOwner != null)
+			channelOwner.release(channel);
+		else
+			channel.close();
+	}
+
+	private EdfDataType checkType(EdfHeader header, int length)
+			throws EdfFormatException {
+		EdfDataType type = header.getDataType();
+		if (type == null)
+			throw new EdfFormatException("Unknown data type "
+					+ header.get("DataType"));
+		if (!header.isArrayAddressable())
+			throw new EdfFormatException(header.getWidth() + "x"
+					+ header.getHeight() + " frame does not fit in an array");
+		if (length < header.getPixelCount())
+			throw new IllegalArgumentException("Pixel array too small: "
+					+ length + " < " + header.getPixelCount());
+		return type;
+	}
+
+	private FileChannel openData(EdfHeader header) throws IOException {
+		if (header.getBinaryFileName() == null)
+			return channel;
+		if (pool != null)
+			return pool.acquire(header.getDataFile(file));
+		return new RandomAccessFile(header.getDataFile(file), "r")
+				.getChannel();
+	}
+
+	private void closeData(FileChannel data) throws IOException {
+		if (data == channel)
+			return;
+		if (pool != null)
+			pool.release(data);
+		else
+			data.close();
+	}
+
+	// Reads length bytes at position into the transfer buffer
+	private ByteBuffer fill(FileChannel data, long position, int length,
+			EdfHeader header) throws IOException {
+		if (chunk == null)
+			chunk = EdfBufferPool.getShared().acquireBuffer(CHUNK_SIZE, true);
+		chunk.clear();
+		chunk.limit(length);
+		while (chunk.hasRemaining()) {
+			int n = data.read(chunk, position + chunk.position());
+			if (n < 0)
+				throw new EdfFormatException("Unexpected end of file reading "
+						+ file.getName() + " at " + position);
+		}
+		chunk.flip();
+		chunk.order(header.getByteOrder());
+		return chunk;
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF frame writer                                                    *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ * The header layout follows the ESRF_Writer plugin (EC ApR/2009).     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Writes frames to an EDF file. Each call to write appends one header block
+ * followed by its pixel data, so several calls produce a multi-frame file.
+ **/
+public class EdfFrameWriter implements Closeable {
+
+	private static final int HEADER_BLOCK_LENGTH = 1024;
+	private static final int CHUNK_SIZE = 256 * 1024;
+
+	private final FileOutputStream out;
+	private final FileChannel channel;
+	private ByteBuffer chunk;
+	private int imageNumber = 0;
+
+	public EdfFrameWriter(File file) throws IOException {
+		out = new FileOutputStream(file);
+		channel = out.getChannel();
+	}
+
+	public void write(EdfHeader header, byte[] pixels) throws IOException {
+		checkType(header, 1, pixels.length);
+		writeHeader(header);
+		int n = header.getPixelCount();
+		for (int done = 0; done < n;) {
+			int count = Math.min(n - done, CHUNK_SIZE);
+			ByteBuffer buf = chunk(header);
+			buf.put(pixels, done, count);
+			flush(buf, count);
+			done += count;
+		}
+	}
+
+	public void write(EdfHeader header, short[] pixels) throws IOException {
+		checkType(header, 2, pixels.length);
+		writeHeader(header);
+		int n = header.getPixelCount();
+		for (int done = 0; done < n;) {
+			int count = Math.min(n - done, CHUNK_SIZE / 2);
+			ByteBuffer buf = chunk(header);
+			buf.asShortBuffer().put(pixels, done, count);
+			flush(buf, count * 2);
+			done += count;
+		}
+	}
+
+	public void write(EdfHeader header, int[] pixels) throws IOException {
+		checkType(header, 4, pixels.length);
+		if (header.getDataType().isFloatingPoint())
+			throw new EdfFormatException("Cannot write integer pixels as "
+					+ header.getDataType().getName());
+		writeHeader(header);
+		int n = header.getPixelCount();
+		for (int done = 0; done < n;) {
+			int count = Math.min(n - done, CHUNK_SIZE / 4);
+			ByteBuffer buf = chunk(header);
+			buf.asIntBuffer().put(pixels, done, count);
+			flush(buf, count * 4);
+			done += count;
+		}
+	}
+
+	public void write(EdfHeader header, float[] pixels) throws IOException {
+		checkType(header, 4, pixels.length);
+		if (header.getDataType() != EdfDataType.FLOAT)
+			throw new EdfFormatException("Cannot write float pixels as "
+					+ header.getDataType().getName());
+		writeHeader(header);
+		int n = header.getPixelCount();
+		for (int done = 0; done < n;) {
+			int count = Math.min(n - done, CHUNK_SIZE / 4);
+			ByteBuffer buf = chunk(header);
+			buf.asFloatBuffer().put(pixels, done, count);
+			flush(buf, count * 4);
+			done += count;
+		}
+	}
+
+	public void write(EdfHeader header, double[] pixels) throws IOException {
+		checkType(header, 8, pixels.length);
+		writeHeader(header);
+		int n = header.getPixelCount();
+		for (int done = 0; done < n;) {
+			int count = Math.min(n - done, CHUNK_SIZE / 8);
+			ByteBuffer buf = chunk(header);
+			buf.asDoubleBuffer().put(pixels, done, count);
+			flush(buf, count * 8);
+			done += count;
+		}
+	}
+
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Formats a header block, padded with spaces to a multiple of 1024 bytes
+	 * and terminated by "}\n"
+	 **/
+	public static byte[] formatHeader(EdfHeader header, int imageNumber) {
+		Map<String, String> keys = new LinkedHashMap<String, String>();
+		keys.put("HeaderID", String.format("EH:%06d:000000:000000",
+				imageNumber));
+		keys.put("Image", Integer.toString(imageNumber));
+		keys.putAll(header.getKeys());
+
+		StringBuilder sb = new StringBuilder("{\n");
+		for (Map.Entry<String, String> entry : keys.entrySet()) {
+			sb.append(entry.getKey()).append(" = ").append(entry.getValue())
+					.append(";\n");
+		}
+		String end = "}\n";
+		int length = sb.length() + end.length();
+		int padded = (length + HEADER_BLOCK_LENGTH - 1) / HEADER_BLOCK_LENGTH
+				* HEADER_BLOCK_LENGTH;
+		for (int i = length; i < padded; i++)
+			sb.append(' ');
+		sb.append(end);
+		try {
+			return sb.toString().getBytes("ISO-8859-1");
+		} catch (UnsupportedEncodingException ex) {
+			return sb.toString().getBytes();
+		}
+	}
+
+	private void writeHeader(EdfHeader header) throws IOException {
+		imageNumber++;
+		ByteBuffer buf = ByteBuffer.wrap(formatHeader(header, imageNumber));
+		while (buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	private void checkType(EdfHeader header, int bytesPerPixel, int length)
+			throws EdfFormatException {
+		EdfDataType type = header.getDataType();
+		if (type == null || type.getBytesPerPixel() != bytesPerPixel)
+			throw new EdfFormatException("Cannot write " + bytesPerPixel * 8
+					+ "-bit pixels as " + header.get("DataType"));
+		if (length < header.getPixelCount())
+			throw new IllegalArgumentException("Pixel array too small: "
+					+ length + " < " + header.getPixelCount());
+	}
+
+	private ByteBuffer chunk(EdfHeader header) {
+		if (chunk == null)
+			chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		chunk.clear();
+		chunk.order(header.getByteOrder());
+		return chunk;
+	}
+
+	private void flush(ByteBuffer buf, int length) throws IOException {
+		buf.position(0);
+		buf.limit(length);
+		while (buf.hasRemaining())
+			channel.write(buf);
+	}
+}
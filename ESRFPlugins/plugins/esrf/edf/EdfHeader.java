@@ -0,0 +1,332 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF header                                                          *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ * The header scanning and key parsing is based on the code in the    *
+ * ESRF_Reader plugin, to which Petr Mikulik contributed the EDF/EHF   *
+ * header reader.                                                      *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/** An immutable, parsed EDF/EHF header block **/
+public class EdfHeader {
+
+	private static final int SCAN_BLOCK_SIZE = 4096;
+
+	/**
+	 * The most bytes before the opening bracket of a header, beyond which a
+	 * file is taken not to be EDF
+	 **/
+	public static final int MAX_LEADING = SCAN_BLOCK_SIZE;
+
+	// Limit which stops a scan of a file that is not EDF
+	private static final int MAX_HEADER_SIZE = 1 << 20;
+
+	// Default values for an image, same as in the ImageJ plugins
+	private static final int DEFAULT_WIDTH = 512;
+	private static final int DEFAULT_HEIGHT = 512;
+
+	private final Map<String, String> keys;
+	private final long headerOffset;
+	private final long headerEnd;
+
+	private final int width;
+	private final int height;
+	private final EdfDataType dataType;
+	private final ByteOrder byteOrder;
+	private final String binaryFileName;
+	private final long dataOffset;
+
+	/**
+	 * headerOffset is the position of the opening bracket and headerEnd the
+	 * position just after the closing bracket
+	 **/
+	public EdfHeader(Map<String, String> keys, long headerOffset, long headerEnd) {
+		this.keys = Collections.unmodifiableMap(new LinkedHashMap<String, String>(keys));
+		this.headerOffset = headerOffset;
+		this.headerEnd = headerEnd;
+
+		width = getInt("Dim_1", DEFAULT_WIDTH);
+		height = getInt("Dim_2", DEFAULT_HEIGHT);
+		String type = get("DataType");
+		dataType = type == null ? EdfDataType.UNSIGNED_SHORT : EdfDataType
+				.fromName(type);
+		byteOrder = "LowByteFirst".equals(get("ByteOrder")) ? ByteOrder.LITTLE_ENDIAN
+				: ByteOrder.BIG_ENDIAN;
+		binaryFileName = get("EDF_BinaryFileName");
+		if (binaryFileName != null || get("EDF_BinaryFilePosition") != null) {
+			dataOffset = getLong("EDF_BinaryFilePosition", 0);
+		} else {
+			// The header is terminated by "}\n"
+			dataOffset = headerEnd + 1;
+		}
+	}
+
+	private EdfHeader(EdfHeader header, ByteOrder byteOrder) {
+		keys = header.keys;
+		headerOffset = header.headerOffset;
+		headerEnd = header.headerEnd;
+		width = header.width;
+		height = header.height;
+		dataType = header.dataType;
+		this.byteOrder = byteOrder;
+		binaryFileName = header.binaryFileName;
+		dataOffset = header.dataOffset;
+	}
+
+	/** Creates a header for writing a frame **/
+	public static EdfHeader create(int width, int height, EdfDataType dataType,
+			ByteOrder byteOrder, Map<String, String> extraKeys) {
+		Map<String, String> keys = new LinkedHashMap<String, String>();
+		keys.put("ByteOrder",
+				byteOrder == ByteOrder.LITTLE_ENDIAN ? "LowByteFirst"
+						: "HighByteFirst");
+		keys.put("DataType", dataType.getName());
+		keys.put("Dim_1", Integer.toString(width));
+		keys.put("Dim_2", Integer.toString(height));
+		keys.put("Size", Long.toString((long) width * height
+				* dataType.getBytesPerPixel()));
+		if (extraKeys != null) {
+			for (Map.Entry<String, String> entry : extraKeys.entrySet()) {
+				if (!keys.containsKey(entry.getKey()))
+					keys.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return new EdfHeader(keys, 0, 0);
+	}
+
+	/**
+	 * Reads the first header block starting at or after position. Returns null
+	 * if there is no further header block in the file, or if no opening
+	 * bracket is found in the first 4 KiB.
+	 **/
+	public static EdfHeader read(FileChannel in, long position)
+			throws IOException {
+		// Direct, so the channel reads into it without a copy
+		EdfBufferPool pool = EdfBufferPool.getShared();
+		ByteBuffer block = pool.acquireBuffer(SCAN_BLOCK_SIZE, true);
+		try {
+			return read(in, position, block);
+		} finally {
+			pool.release(block);
+		}
+	}
+
+	private static EdfHeader read(FileChannel in, long position,
+			ByteBuffer block) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream(
+				SCAN_BLOCK_SIZE);
+		long headerOffset = -1;
+		int noBrackets = 0;
+		long pos = position;
+		while (true) {
+			block.clear();
+			int n = in.read(block, pos);
+			if (n < 0) {
+				if (headerOffset < 0)
+					return null;
+				throw new EdfFormatException("Unterminated EDF header at "
+						+ headerOffset);
+			}
+			for (int i = 0; i < n; i++) {
+				byte h = block.get(i);
+				if (headerOffset < 0) {
+					// to avoid problems when first character is not a bracket
+					if (h != '{') {
+						if (pos + i - position >= MAX_LEADING)
+							return null;
+						continue;
+					}
+					headerOffset = pos + i;
+				}
+				header.write(h);
+				if (h == '{') {
+					noBrackets++;
+				} else if (h == '}') {
+					noBrackets--;
+					if (noBrackets == 0)
+						return parse(header.toByteArray(), headerOffset, pos
+								+ i + 1);
+				}
+			}
+			pos += n;
+			if (headerOffset >= 0 && pos - headerOffset > MAX_HEADER_SIZE)
+				throw new EdfFormatException("EDF header at " + headerOffset
+						+ " is larger than " + MAX_HEADER_SIZE + " bytes");
+		}
+	}
+
+	/** Parses the text of a header block, including the brackets **/
+	public static EdfHeader parse(byte[] header, long headerOffset,
+			long headerEnd) {
+		Map<String, String> keys = new LinkedHashMap<String, String>();
+		String headerString;
+		try {
+			headerString = new String(header, "ISO-8859-1");
+		} catch (UnsupportedEncodingException ex) {
+			headerString = new String(header);
+		}
+		StringTokenizer st = new StringTokenizer(headerString, ";");
+		while (st.hasMoreTokens()) {
+			String token = st.nextToken();
+			int i = token.indexOf('=');
+			if (i <= 0)
+				continue;
+			String key = token.substring(0, i).replace('{', ' ').trim();
+			String param = token.substring(i + 1).trim();
+			if (key.length() > 0)
+				keys.put(key, param);
+		}
+		return new EdfHeader(keys, headerOffset, headerEnd);
+	}
+
+	public String get(String key) {
+		return keys.get(key);
+	}
+
+	public int getInt(String key, int defaultValue) {
+		String param = keys.get(key);
+		if (param == null)
+			return defaultValue;
+		try {
+			return Integer.parseInt(param);
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+
+	public long getLong(String key, long defaultValue) {
+		String param = keys.get(key);
+		if (param == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(param);
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+
+	public double getDouble(String key, double defaultValue) {
+		String param = keys.get(key);
+		if (param == null)
+			return defaultValue;
+		try {
+			return Double.parseDouble(param);
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+
+	/** All keys, in the order they appear in the header **/
+	public Map<String, String> getKeys() {
+		return keys;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** Number of pixels, see isArrayAddressable for frames above 2^31 **/
+	public int getPixelCount() {
+		return width * height;
+	}
+
+	/** True if the frame fits in a single Java array **/
+	public boolean isArrayAddressable() {
+		return (long) width * height <= Integer.MAX_VALUE;
+	}
+
+	/** Returns null if the "DataType" key holds an unknown type **/
+	public EdfDataType getDataType() {
+		return dataType;
+	}
+
+	/** HighByteFirst if there is no "ByteOrder" key **/
+	public ByteOrder getByteOrder() {
+		return byteOrder;
+	}
+
+	/**
+	 * This header, or a copy with byte order order if it has no "ByteOrder"
+	 * key, for readers with a different default
+	 **/
+	public EdfHeader withDefaultByteOrder(ByteOrder order) {
+		if (get("ByteOrder") != null || order == byteOrder)
+			return this;
+		return new EdfHeader(this, order);
+	}
+
+	/** The size in bytes of the pixel data of this frame **/
+	public long getFrameSize() {
+		if (dataType == null)
+			return 0;
+		return (long) width * height * dataType.getBytesPerPixel();
+	}
+
+	/**
+	 * The size in bytes of the data block, from the "Size" key if present.
+	 * The next frame of a multi-frame file follows this block.
+	 **/
+	public long getDataSize() {
+		long size = getLong("Size", -1);
+		return size >= 0 ? size : getFrameSize();
+	}
+
+	public long getHeaderOffset() {
+		return headerOffset;
+	}
+
+	public long getHeaderEnd() {
+		return headerEnd;
+	}
+
+	/** Position of the pixel data, in this file or in the binary file **/
+	public long getDataOffset() {
+		return dataOffset;
+	}
+
+	/** The value of "EDF_BinaryFileName", or null if the data follows **/
+	public String getBinaryFileName() {
+		return binaryFileName;
+	}
+
+	/** Returns the file containing the pixel data **/
+	public File getDataFile(File headerFile) {
+		if (binaryFileName == null)
+			return headerFile;
+		File binaryFile = new File(binaryFileName);
+		if (binaryFile.isAbsolute())
+			return binaryFile;
+		return new File(headerFile.getParentFile(), binaryFileName);
+	}
+
+	/** True if this is an EHF data block header **/
+	public boolean isDataBlock() {
+		return keys.containsKey("EDF_DataBlockID");
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String> entry : keys.entrySet()) {
+			sb.append(entry.getKey()).append(" = ").append(entry.getValue())
+					.append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF header table                                                    *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads the headers of a series of EDF files in parallel into a table with
+ * one row per file and one column per key. No pixel data is read. The
+ * space separated motor_mne/motor_pos and counter_mne/counter_pos lists
+ * written by spec can be expanded into one column per motor or counter.
+ **/
+public class EdfHeaderTable {
+
+	private static final String[][] LISTS = { { "motor_mne", "motor_pos" },
+			{ "counter_mne", "counter_pos" } };
+
+	private final List<File> files;
+	private final List<Map<String, String>> rows;
+	private final List<String> columns;
+	private final Map<File, String> failed = new LinkedHashMap<File, String>();
+
+	private EdfHeaderTable(List<File> files, List<Map<String, String>> rows,
+			List<String> columns) {
+		this.files = files;
+		this.rows = rows;
+		this.columns = columns;
+	}
+
+	/**
+	 * Reads the headers of files with the given number of threads. With keys
+	 * null all keys are kept, in the order they first appear, otherwise only
+	 * the given keys, which may name expanded motors and counters.
+	 **/
+	public static EdfHeaderTable read(final List<File> files,
+			List<String> keys, final boolean expandLists, int threads)
+			throws InterruptedException {
+		final Set<String> selected = keys == null ? null
+				: new HashSet<String>(keys);
+		final List<Map<String, String>> rows = new ArrayList<Map<String, String>>(
+				Collections.nCopies(files.size(), (Map<String, String>) null));
+		String[] failed = EdfWorkers.run(files.size(), threads,
+				new EdfWorkers.Task() {
+					public void run(int row) throws IOException {
+						Map<String, String> values = readKeys(files.get(row),
+								expandLists);
+						if (selected != null)
+							values.keySet().retainAll(selected);
+						// ArrayList is not thread safe
+						synchronized (rows) {
+							rows.set(row, values);
+						}
+					}
+				});
+
+		List<String> columns;
+		if (keys != null) {
+			columns = new ArrayList<String>(keys);
+		} else {
+			Set<String> all = new LinkedHashSet<String>();
+			for (Map<String, String> values : rows) {
+				if (values != null)
+					all.addAll(values.keySet());
+			}
+			columns = new ArrayList<String>(all);
+		}
+		EdfHeaderTable table = new EdfHeaderTable(new ArrayList<File>(files),
+				rows, columns);
+		for (int i = 0; i < files.size(); i++) {
+			if (failed[i] != null)
+				table.failed.put(files.get(i), failed[i]);
+		}
+		return table;
+	}
+
+	private static Map<String, String> readKeys(File file, boolean expandLists)
+			throws IOException {
+		EdfFrameReader reader = new EdfFrameReader(file);
+		try {
+			EdfHeader header = reader.readHeader();
+			Map<String, String> values = new LinkedHashMap<String, String>(
+					header.getKeys());
+			if (expandLists)
+				expandLists(values);
+			return values;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/** Adds a key for every name of the motor and counter lists **/
+	public static void expandLists(Map<String, String> values) {
+		for (String[] list : LISTS) {
+			String names = values.get(list[0]);
+			String positions = values.get(list[1]);
+			if (names == null || positions == null)
+				continue;
+			String[] name = names.trim().split("\\s+");
+			String[] position = positions.trim().split("\\s+");
+			for (int i = 0; i < Math.min(name.length, position.length); i++) {
+				if (name[i].length() > 0)
+					values.put(name[i], position[i]);
+			}
+		}
+	}
+
+	public List<String> getColumns() {
+		return Collections.unmodifiableList(columns);
+	}
+
+	public List<File> getFiles() {
+		return Collections.unmodifiableList(files);
+	}
+
+	public int size() {
+		return files.size();
+	}
+
+	/** The value of key in row, or null if the key is missing **/
+	public String get(int row, String key) {
+		Map<String, String> values = rows.get(row);
+		return values == null ? null : values.get(key);
+	}
+
+	/** Files whose header could not be read, with the reason **/
+	public Map<File, String> getFailed() {
+		return Collections.unmodifiableMap(failed);
+	}
+
+	/** Writes the table as CSV, with the file name in the first column **/
+	public void writeCsv(Writer out) throws IOException {
+		BufferedWriter writer = new BufferedWriter(out);
+		writer.write("File");
+		for (String column : columns) {
+			writer.write(',');
+			writer.write(quote(column));
+		}
+		writer.newLine();
+		for (int i = 0; i < files.size(); i++) {
+			writer.write(quote(files.get(i).getName()));
+			for (String column : columns) {
+				writer.write(',');
+				String value = get(i, column);
+				if (value != null)
+					writer.write(quote(value));
+			}
+			writer.newLine();
+		}
+		writer.flush();
+	}
+
+	private static String quote(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+				&& value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+			return value;
+		return '"' + value.replace("\"", "\"\"") + '"';
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF hyperstack plan                                                 *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.File;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Places the files of a multi-dimensional scan in a hyperstack of channels,
+ * slices and frames. The position of a file along each dimension comes
+ * from a number in its name or from a header value, such as a motor
+ * position. The distinct values along a dimension, sorted, become its
+ * indices, so they need not start at 0 or be evenly spaced. Files which
+ * do not fit are left out with a reason, positions without a file stay
+ * empty. A plan with far more positions than files, as from a key which
+ * differs in every file, is refused with an IllegalArgumentException.
+ **/
+public class EdfHyperstackPlan {
+
+	public static final int CHANNELS = 0;
+	public static final int SLICES = 1;
+	public static final int FRAMES = 2;
+
+	private static final String[] PLACEHOLDERS = { "{c}", "{z}", "{t}" };
+
+	// More positions per file than this means a key does not index the scan
+	private static final int MAX_POSITIONS_PER_FILE = 100;
+
+	private final List<File> files;
+	// The values of each file along each dimension, null if not set
+	private final String[][] fileValues;
+	private final List<List<String>> values = new ArrayList<List<String>>();
+	private int[] sources;
+	private final Map<File, String> skipped = new LinkedHashMap<File, String>();
+
+	private EdfHyperstackPlan(List<File> files) {
+		this.files = new ArrayList<File>(files);
+		fileValues = new String[files.size()][];
+	}
+
+	// Turns the values of the files into hyperstack positions
+	private void place(double tolerance) {
+		int[][] indices = new int[files.size()][];
+		for (int d = 0; d < 3; d++)
+			values.add(assign(d, tolerance, indices));
+		int channels = values.get(CHANNELS).size();
+		int slices = values.get(SLICES).size();
+		int frames = values.get(FRAMES).size();
+		// A jittering motor or a time stamp gives about one value per file
+		long size = (long) channels * slices * frames;
+		if (size > Integer.MAX_VALUE
+				|| size > (long) MAX_POSITIONS_PER_FILE
+						* Math.max(1, files.size()))
+			throw new IllegalArgumentException(channels + " x " + slices
+					+ " x " + frames + " positions for " + files.size()
+					+ " files, check the keys and the tolerance");
+		sources = new int[(int) size];
+		Arrays.fill(sources, -1);
+		for (int i = 0; i < files.size(); i++) {
+			if (indices[i] == null)
+				continue;
+			int slice = indices[i][CHANNELS] + channels
+					* (indices[i][SLICES] + slices * indices[i][FRAMES]);
+			if (sources[slice] >= 0)
+				skipped.put(files.get(i), "same position as "
+						+ files.get(sources[slice]).getName());
+			else
+				sources[slice] = i;
+		}
+	}
+
+	/**
+	 * Takes the positions from the file names. pattern is matched against
+	 * the whole name, {c}, {z} and {t} stand for the number giving the
+	 * channel, slice and frame, and * for any text, such as
+	 * scan_{z}_e{c}_*.edf. Dimensions not in the pattern have size 1.
+	 **/
+	public static EdfHyperstackPlan fromPattern(List<File> files,
+			String pattern) {
+		List<Integer> order = new ArrayList<Integer>();
+		Pattern regex = Pattern.compile(toRegex(pattern, order));
+		if (order.isEmpty())
+			throw new IllegalArgumentException(
+					"The pattern has no {c}, {z} or {t}");
+		EdfHyperstackPlan plan = new EdfHyperstackPlan(files);
+		for (int i = 0; i < files.size(); i++) {
+			Matcher m = regex.matcher(files.get(i).getName());
+			if (!m.matches()) {
+				plan.skipped.put(files.get(i), "name does not match "
+						+ pattern);
+				continue;
+			}
+			String[] position = new String[3];
+			for (int g = 0; g < order.size(); g++)
+				position[order.get(g)] = m.group(g + 1);
+			plan.fileValues[i] = position;
+		}
+		plan.place(0);
+		return plan;
+	}
+
+	/**
+	 * Takes the positions from header values. keys holds the key for the
+	 * channels, slices and frames, null or empty for a dimension of size 1.
+	 * A name which is not a key is looked up in the motor and counter lists
+	 * of ESRF headers. Numeric values closer than tolerance to the next
+	 * smaller one count as the same position, for motors which do not
+	 * reach their target exactly.
+	 **/
+	public static EdfHyperstackPlan fromHeaders(List<File> files,
+			List<EdfHeader> headers, String[] keys, double tolerance) {
+		EdfHyperstackPlan plan = new EdfHyperstackPlan(files);
+		for (int i = 0; i < files.size(); i++) {
+			String[] position = new String[3];
+			String missing = null;
+			for (int d = 0; d < 3; d++) {
+				if (keys[d] == null || keys[d].length() == 0)
+					continue;
+				position[d] = getValue(headers.get(i), keys[d]);
+				if (position[d] == null)
+					missing = keys[d];
+			}
+			if (missing != null)
+				plan.skipped.put(files.get(i), "no " + missing
+						+ " in the header");
+			else
+				plan.fileValues[i] = position;
+		}
+		plan.place(tolerance);
+		return plan;
+	}
+
+	/**
+	 * The value of a header key, or of a motor or counter listed in the
+	 * motor_mne and motor_pos, or counter_mne and counter_pos keys; null if
+	 * there is none
+	 **/
+	public static String getValue(EdfHeader header, String name) {
+		String value = header.get(name);
+		if (value != null)
+			return value.trim();
+		value = getListed(header, "motor_mne", "motor_pos", name);
+		if (value != null)
+			return value;
+		return getListed(header, "counter_mne", "counter_pos", name);
+	}
+
+	public int getChannels() {
+		return values.get(CHANNELS).size();
+	}
+
+	public int getSlices() {
+		return values.get(SLICES).size();
+	}
+
+	public int getFrames() {
+		return values.get(FRAMES).size();
+	}
+
+	public int getStackSize() {
+		return sources.length;
+	}
+
+	/** The value at each index along dimension, "" for a size 1 dimension **/
+	public List<String> getValues(int dimension) {
+		return Collections.unmodifiableList(values.get(dimension));
+	}
+
+	/**
+	 * For each hyperstack position in ImageJ order, channels varying
+	 * fastest, the index of its file in the list the plan was made from, or
+	 * -1 if no file has that position
+	 **/
+	public int[] getSources() {
+		return sources.clone();
+	}
+
+	/** The number of positions without a file **/
+	public int getMissing() {
+		int missing = 0;
+		for (int source : sources) {
+			if (source < 0)
+				missing++;
+		}
+		return missing;
+	}
+
+	/** Files left out, with the reason **/
+	public Map<File, String> getSkipped() {
+		return Collections.unmodifiableMap(skipped);
+	}
+
+	// Gives each placed file its index along dimension, returns the values
+	private List<String> assign(int dimension, double tolerance,
+			int[][] indices) {
+		Set<String> found = new HashSet<String>();
+		for (String[] position : fileValues) {
+			if (position != null && position[dimension] != null)
+				found.add(position[dimension]);
+		}
+		List<String> distinct = new ArrayList<String>(found);
+		if (distinct.isEmpty())
+			distinct.add("");
+		boolean numeric = true;
+		for (String value : distinct)
+			numeric &= parse(value) != null;
+		if (numeric) {
+			Collections.sort(distinct, new Comparator<String>() {
+				public int compare(String a, String b) {
+					return Double.compare(parse(a), parse(b));
+				}
+			});
+		} else {
+			Collections.sort(distinct);
+		}
+		// Values within tolerance of a smaller one share its index
+		List<String> result = new ArrayList<String>();
+		Map<String, Integer> index = new HashMap<String, Integer>();
+		for (String value : distinct) {
+			if (numeric && !result.isEmpty() && parse(value)
+					- parse(result.get(result.size() - 1)) <= tolerance) {
+				index.put(value, result.size() - 1);
+			} else {
+				index.put(value, result.size());
+				result.add(value);
+			}
+		}
+		for (int i = 0; i < fileValues.length; i++) {
+			if (fileValues[i] == null)
+				continue;
+			if (indices[i] == null)
+				indices[i] = new int[3];
+			String value = fileValues[i][dimension];
+			indices[i][dimension] = value == null ? 0 : index.get(value);
+		}
+		return result;
+	}
+
+	private static Double parse(String value) {
+		try {
+			return Double.valueOf(value);
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	private static String getListed(EdfHeader header, String namesKey,
+			String valuesKey, String name) {
+		String names = header.get(namesKey);
+		String positions = header.get(valuesKey);
+		if (names == null || positions == null)
+			return null;
+		String[] n = names.trim().split("\\s+");
+		String[] p = positions.trim().split("\\s+");
+		for (int i = 0; i < Math.min(n.length, p.length); i++) {
+			if (n[i].equals(name))
+				return p[i];
+		}
+		return null;
+	}
+
+	// Quotes the literal parts and records which dimension each group is
+	private static String toRegex(String pattern, List<Integer> order) {
+		StringBuilder regex = new StringBuilder();
+		int start = 0;
+		int i = 0;
+		while (i < pattern.length()) {
+			int dimension = -1;
+			for (int d = 0; d < 3; d++) {
+				if (pattern.startsWith(PLACEHOLDERS[d], i))
+					dimension = d;
+			}
+			boolean any = pattern.charAt(i) == '*';
+			if (dimension < 0 && !any) {
+				i++;
+				continue;
+			}
+			if (i > start)
+				regex.append(Pattern.quote(pattern.substring(start, i)));
+			if (any) {
+				regex.append(".*?");
+				i++;
+			} else {
+				if (order.contains(dimension))
+					throw new IllegalArgumentException(PLACEHOLDERS[dimension]
+							+ " is in the pattern twice");
+				order.add(dimension);
+				regex.append("(-?\\d+(?:\\.\\d+)?)");
+				i += PLACEHOLDERS[dimension].length();
+			}
+			start = i;
+		}
+		if (start < pattern.length())
+			regex.append(Pattern.quote(pattern.substring(start)));
+		return regex.toString();
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF read load test                                                  *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ * Reads every frame of the EDF files in a directory, typically made   *
+ * by EdfDetectorSimulator, and reports throughput, latency, heap and  *
+ * GC. Run it with                                                     *
+ *                                                                     *
+ *   java -cp ESRFPlugins_.jar esrf.edf.EdfLoadTest dir=/tmp/sim       *
+ *        threads=4 mode=float passes=3 pool=true min_mbs=500          *
+ *                                                                     *
+ * mode is float, native or header. The bytes allocated per frame      *
+ * show whether the pooled read path stays allocation free. With       *
+ * min_mbs the exit status is 1 if the last pass is slower, so a       *
+ * release script can catch read speed regressions. Repeated passes    *
+ * usually read from the page cache, the first pass after writing      *
+ * more than the memory size measures the disks.                       *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.util.*;
+
+/** Drives EdfFrameReader over a directory of EDF files from several threads **/
+public class EdfLoadTest {
+
+	private File directory = new File(".");
+	private int threads = 1;
+	private String mode = "float";
+	private int passes = 1;
+	private boolean pooled = false;
+	private double minMegabytesPerSecond = 0;
+
+	// Pixel arrays are reused, so GC counts show the reader's garbage
+	private final ThreadLocal<Object> buffers = new ThreadLocal<Object>();
+
+	public static void main(String[] args) throws Exception {
+		EdfLoadTest test = new EdfLoadTest();
+		test.configure(EdfDetectorSimulator.parseOptions(args));
+		EdfTimings timings = null;
+		for (int pass = 1; pass <= test.passes; pass++) {
+			timings = test.run();
+			System.out.println("Pass " + pass + ", " + test.threads
+					+ " threads, " + test.mode + ":");
+			System.out.print(timings.getReport());
+			System.out.println(EdfBufferPool.getShared().getStatistics());
+		}
+		if (timings != null && test.minMegabytesPerSecond > 0
+				&& timings.getMegabytesPerSecond() < test.minMegabytesPerSecond) {
+			System.out.println(String.format(
+					"FAILED: %.1f MB/s is below the minimum of %.1f MB/s",
+					timings.getMegabytesPerSecond(),
+					test.minMegabytesPerSecond));
+			System.exit(1);
+		}
+	}
+
+	public void configure(Map<String, String> options) {
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			String key = option.getKey();
+			String value = option.getValue();
+			if (key.equals("dir"))
+				directory = new File(value);
+			else if (key.equals("threads"))
+				threads = Math.max(1, Integer.parseInt(value));
+			else if (key.equals("mode"))
+				mode = value;
+			else if (key.equals("passes"))
+				passes = Math.max(1, Integer.parseInt(value));
+			else if (key.equals("pool"))
+				pooled = Boolean.parseBoolean(value);
+			else if (key.equals("min_mbs"))
+				minMegabytesPerSecond = Double.parseDouble(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + key);
+		}
+		if (!mode.equals("float") && !mode.equals("native")
+				&& !mode.equals("header"))
+			throw new IllegalArgumentException("Unknown mode " + mode);
+	}
+
+	/** Reads every frame once and returns the timings **/
+	public EdfTimings run() throws IOException, InterruptedException {
+		final File[] found = directory.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(".edf");
+			}
+		});
+		if (found == null || found.length == 0)
+			throw new FileNotFoundException("No EDF files in " + directory);
+		Arrays.sort(found);
+
+		final EdfTimings timings = new EdfTimings();
+		final EdfChannelPool pool = pooled ? new EdfChannelPool() : null;
+		String[] errors;
+		timings.start();
+		try {
+			errors = EdfWorkers.run(found.length, threads,
+					new EdfWorkers.Task() {
+						public void run(int index) throws IOException {
+							readFile(found[index], pool, timings);
+						}
+					});
+		} finally {
+			timings.stop();
+			if (pool != null)
+				pool.close();
+		}
+		for (int i = 0; i < found.length; i++) {
+			if (errors[i] != null)
+				System.out.println("Error: " + found[i].getName() + ": "
+						+ errors[i]);
+		}
+		return timings;
+	}
+
+	// Reads every frame of a single or multi-frame file
+	private void readFile(File file, EdfChannelPool pool, EdfTimings timings)
+			throws IOException {
+		EdfFrameReader reader = pool != null ? new EdfFrameReader(file, pool)
+				: new EdfFrameReader(file);
+		try {
+			long length = file.length();
+			long position = 0;
+			while (position < length) {
+				long t0 = System.nanoTime();
+				long allocated = EdfTimings.getThreadAllocatedBytes();
+				EdfHeader header = reader.readHeader(position);
+				if (header == null)
+					break;
+				long bytes = header.getHeaderEnd() - header.getHeaderOffset();
+				if (!mode.equals("header")) {
+					read(reader, header, getPixels(header));
+					bytes += header.getFrameSize();
+				}
+				timings.add(System.nanoTime() - t0, bytes);
+				if (allocated >= 0)
+					timings.addAllocated(EdfTimings.getThreadAllocatedBytes()
+							- allocated);
+				position = header.getDataOffset() + header.getDataSize();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	// This thread's pixel array, if it is of the right type and large enough
+	private Object getPixels(EdfHeader header) throws EdfFormatException {
+		EdfDataType type = header.getDataType();
+		if (type == null)
+			throw new EdfFormatException("Unknown data type "
+					+ header.get("DataType"));
+		int n = header.getPixelCount();
+		Object pixels = buffers.get();
+		if (mode.equals("float") || type.isFloatingPoint()) {
+			if (!(pixels instanceof float[]) || ((float[]) pixels).length < n)
+				pixels = new float[n];
+		} else if (type.getBytesPerPixel() == 1) {
+			if (!(pixels instanceof byte[]) || ((byte[]) pixels).length < n)
+				pixels = new byte[n];
+		} else if (type.getBytesPerPixel() == 2) {
+			if (!(pixels instanceof short[]) || ((short[]) pixels).length < n)
+				pixels = new short[n];
+		} else {
+			if (!(pixels instanceof int[]) || ((int[]) pixels).length < n)
+				pixels = new int[n];
+		}
+		buffers.set(pixels);
+		return pixels;
+	}
+
+	private void read(EdfFrameReader reader, EdfHeader header, Object pixels)
+			throws IOException {
+		if (pixels instanceof byte[])
+			reader.read(header, (byte[]) pixels);
+		else if (pixels instanceof short[])
+			reader.read(header, (short[]) pixels);
+		else if (pixels instanceof int[])
+			reader.read(header, (int[]) pixels);
+		else
+			reader.read(header, (float[]) pixels);
+	}
+}
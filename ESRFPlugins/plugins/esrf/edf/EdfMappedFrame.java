@@ -0,0 +1,237 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF memory mapped frame                                             *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * The first frame of an EDF file mapped read-write, for saving edits in
+ * place. update compares edited pixels with the mapped data and stores
+ * only the ones which differ, so only the pages holding them become dirty,
+ * and force writes those pages. The header block is rewritten only when
+ * its keys change, padded to its old length so the data does not move.
+ * Java 6 cannot unmap a file, the mapping goes away when it is garbage
+ * collected after close.
+ **/
+public class EdfMappedFrame implements Closeable {
+
+	// Mapped in pieces, a single mapping is limited to 2 GiB
+	private static final int SEGMENT_SIZE = 1 << 30;
+	// Pixels compared per bulk copy from the mapping
+	private static final int CHUNK_PIXELS = 64 * 1024;
+
+	// Keys which describe the data and cannot change in place
+	private static final String[] LAYOUT_KEYS = { "Dim_1", "Dim_2",
+			"DataType", "ByteOrder", "Size", "EDF_BinaryFileName",
+			"EDF_BinaryFilePosition" };
+
+	private final File file;
+	private final FileChannel channel;
+	private final MappedByteBuffer[] segments;
+	private EdfHeader header;
+
+	/** Maps the data of the first frame of file, which must be writable **/
+	public EdfMappedFrame(File file) throws IOException {
+		this.file = file;
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		try {
+			header = EdfHeader.read(channel, 0);
+			if (header == null)
+				throw new EdfFormatException("No EDF header found in " + file);
+			if (header.getDataType() == null)
+				throw new EdfFormatException("Unknown data type "
+						+ header.get("DataType"));
+			if (header.getBinaryFileName() != null)
+				throw new EdfFormatException(file.getName()
+						+ " keeps its data in "
+						+ header.getBinaryFileName()
+						+ ", only frames stored in the EDF file can be edited");
+			long size = header.getFrameSize();
+			if (header.getDataOffset() + size > channel.size())
+				throw new EdfFormatException(file.getName()
+						+ " is shorter than its frame of " + size + " bytes");
+			int n = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			segments = new MappedByteBuffer[n];
+			for (int i = 0; i < n; i++) {
+				long offset = (long) i * SEGMENT_SIZE;
+				segments[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+						header.getDataOffset() + offset, Math.min(
+								SEGMENT_SIZE, size - offset));
+			}
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized EdfHeader getHeader() {
+		return header;
+	}
+
+	/** Stores the 8-bit pixels which differ, returns how many did **/
+	public int update(byte[] pixels) throws IOException {
+		checkType(1, pixels.length);
+		byte[] old = new byte[CHUNK_PIXELS];
+		int changed = 0;
+		int done = 0;
+		for (MappedByteBuffer segment : segments) {
+			ByteBuffer data = segment.duplicate();
+			int n = data.capacity();
+			for (int start = 0; start < n; start += CHUNK_PIXELS) {
+				int count = Math.min(CHUNK_PIXELS, n - start);
+				data.position(start);
+				data.get(old, 0, count);
+				for (int i = 0; i < count; i++) {
+					if (old[i] != pixels[done + i]) {
+						data.put(start + i, pixels[done + i]);
+						changed++;
+					}
+				}
+				done += count;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Stores the 16-bit pixels which differ, returns how many did. bias is
+	 * subtracted first, 32768 for signed data read as ImageJ does.
+	 **/
+	public int update(short[] pixels, int bias) throws IOException {
+		checkType(2, pixels.length);
+		short[] old = new short[CHUNK_PIXELS];
+		int changed = 0;
+		int done = 0;
+		for (MappedByteBuffer segment : segments) {
+			// A duplicate is big-endian whatever the order of the original
+			ShortBuffer data = segment.duplicate().order(
+					header.getByteOrder()).asShortBuffer();
+			int n = data.capacity();
+			for (int start = 0; start < n; start += CHUNK_PIXELS) {
+				int count = Math.min(CHUNK_PIXELS, n - start);
+				data.position(start);
+				data.get(old, 0, count);
+				for (int i = 0; i < count; i++) {
+					short value = (short) (pixels[done + i] - bias);
+					if (old[i] != value) {
+						data.put(start + i, value);
+						changed++;
+					}
+				}
+				done += count;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Stores the 32-bit floating point pixels which differ bit for bit,
+	 * returns how many did
+	 **/
+	public int update(float[] pixels) throws IOException {
+		if (header.getDataType() != EdfDataType.FLOAT)
+			throw new EdfFormatException(header.getDataType().getName()
+					+ " data cannot be saved in place from floating point");
+		checkType(4, pixels.length);
+		int[] old = new int[CHUNK_PIXELS];
+		int changed = 0;
+		int done = 0;
+		for (MappedByteBuffer segment : segments) {
+			IntBuffer data = segment.duplicate().order(header.getByteOrder())
+					.asIntBuffer();
+			int n = data.capacity();
+			for (int start = 0; start < n; start += CHUNK_PIXELS) {
+				int count = Math.min(CHUNK_PIXELS, n - start);
+				data.position(start);
+				data.get(old, 0, count);
+				for (int i = 0; i < count; i++) {
+					int bits = Float.floatToRawIntBits(pixels[done + i]);
+					if (old[i] != bits) {
+						data.put(start + i, bits);
+						changed++;
+					}
+				}
+				done += count;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Rewrites the header block with keys if they differ from the current
+	 * ones, and returns true if it did. Keys describing the data layout must
+	 * stay the same, and the new block must fit in the old one.
+	 **/
+	public synchronized boolean setKeys(Map<String, String> keys)
+			throws IOException {
+		if (keys.equals(header.getKeys()))
+			return false;
+		for (String key : LAYOUT_KEYS) {
+			String value = header.get(key);
+			if (value == null ? keys.get(key) != null : !value.equals(keys
+					.get(key)))
+				throw new EdfFormatException(key
+						+ " cannot be changed in place");
+		}
+		long length = header.getDataOffset() - header.getHeaderOffset();
+		StringBuilder sb = new StringBuilder("{\n");
+		for (Map.Entry<String, String> entry : keys.entrySet()) {
+			sb.append(entry.getKey()).append(" = ").append(entry.getValue())
+					.append(";\n");
+		}
+		String end = "}\n";
+		if (sb.length() + end.length() > length)
+			throw new EdfFormatException("The new header needs "
+					+ (sb.length() + end.length()) + " bytes, only " + length
+					+ " are free before the data");
+		while (sb.length() + end.length() < length)
+			sb.append(' ');
+		sb.append(end);
+		ByteBuffer block = ByteBuffer.wrap(sb.toString().getBytes(
+				"ISO-8859-1"));
+		long position = header.getHeaderOffset();
+		while (block.hasRemaining())
+			channel.write(block, position + block.position());
+		header = EdfHeader.read(channel, position);
+		return true;
+	}
+
+	/** Writes the changed pixels and header to the disk **/
+	public void force() throws IOException {
+		for (MappedByteBuffer segment : segments)
+			segment.force();
+		channel.force(false);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void checkType(int bytesPerPixel, int length)
+			throws EdfFormatException {
+		EdfDataType type = header.getDataType();
+		if (type.getBytesPerPixel() != bytesPerPixel
+				|| (bytesPerPixel < 4 && type.isFloatingPoint()))
+			throw new EdfFormatException(type.getName()
+					+ " data cannot be saved in place from "
+					+ (8 * bytesPerPixel) + "-bit pixels");
+		if (length != header.getPixelCount())
+			throw new EdfFormatException(length + " pixels given for a "
+					+ header.getWidth() + "x" + header.getHeight() + " frame");
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF detector module assembler                                       *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Assembles full detector frames from one EDF file per module, placed by
+ * an EdfModuleLayout. Every module file of every frame is a separate task
+ * on one thread pool, so a stack is read with as many files in flight as
+ * there are threads. A module is read into a buffer of its own thread and
+ * copied, mirrored if needed, straight into its region of the frame array.
+ * Frames are 16-bit if all modules of the first frame are UnsignedShort,
+ * otherwise floating point with NaN in the gaps.
+ **/
+public class EdfModuleAssembler {
+
+	private final EdfModuleLayout layout;
+	private final int threads;
+	private int width;
+	private int height;
+	private boolean shortPixels;
+	private final Map<File, String> failed = new ConcurrentHashMap<File, String>();
+
+	// Module buffers, one per pool thread and reused for every module
+	private final ThreadLocal<Object> buffers = new ThreadLocal<Object>();
+
+	/**
+	 * Takes the frame size and pixel type from the layout and the module
+	 * headers of the first frame
+	 **/
+	public EdfModuleAssembler(EdfModuleLayout layout, File[] firstFrame,
+			int threads) throws IOException {
+		this.layout = layout;
+		this.threads = Math.max(1, threads);
+		List<EdfModuleLayout.Module> modules = layout.getModules();
+		shortPixels = true;
+		for (int i = 0; i < modules.size(); i++) {
+			if (firstFrame[i] == null)
+				throw new FileNotFoundException("Module "
+						+ modules.get(i).getName()
+						+ " is missing from the first frame");
+			EdfFrameReader reader = new EdfFrameReader(firstFrame[i]);
+			EdfHeader header;
+			try {
+				header = reader.readHeader();
+			} finally {
+				reader.close();
+			}
+			if (header.getDataType() == null)
+				throw new EdfFormatException("Unknown data type "
+						+ header.get("DataType") + " in "
+						+ firstFrame[i].getName());
+			if (header.getDataType() != EdfDataType.UNSIGNED_SHORT)
+				shortPixels = false;
+			EdfModuleLayout.Module module = modules.get(i);
+			width = Math.max(width, module.getX() + header.getWidth());
+			height = Math.max(height, module.getY() + header.getHeight());
+		}
+		if (layout.getWidth() > 0)
+			width = layout.getWidth();
+		if (layout.getHeight() > 0)
+			height = layout.getHeight();
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/** True if frames are short[], false if they are float[] **/
+	public boolean isShort() {
+		return shortPixels;
+	}
+
+	/** A frame array with the gaps filled in **/
+	public Object createFrame() {
+		if (shortPixels)
+			return new short[width * height];
+		float[] frame = new float[width * height];
+		Arrays.fill(frame, Float.NaN);
+		return frame;
+	}
+
+	/**
+	 * Reads the module files of each frame into the frame array with the
+	 * same index, made by createFrame. Missing modules leave their region
+	 * as it was.
+	 **/
+	public void assemble(final List<File[]> frames, final List<Object> pixels)
+			throws InterruptedException {
+		failed.clear();
+		final List<EdfModuleLayout.Module> modules = layout.getModules();
+		// One task per module file, frame by frame
+		final int n = modules.size();
+		String[] reasons = EdfWorkers.run(frames.size() * n, threads,
+				new EdfWorkers.Task() {
+					public void run(int index) throws IOException {
+						File file = frames.get(index / n)[index % n];
+						if (file != null)
+							readModule(file, modules.get(index % n), pixels
+									.get(index / n));
+					}
+				});
+		for (int i = 0; i < reasons.length; i++) {
+			if (reasons[i] != null)
+				failed.put(frames.get(i / n)[i % n], reasons[i]);
+		}
+	}
+
+	/** Module files which could not be placed by the last assemble **/
+	public Map<File, String> getFailed() {
+		return Collections.unmodifiableMap(failed);
+	}
+
+	private void readModule(File file, EdfModuleLayout.Module module,
+			Object frame) throws IOException {
+		EdfFrameReader reader = new EdfFrameReader(file);
+		try {
+			EdfHeader header = reader.readHeader();
+			int w = header.getWidth();
+			int h = header.getHeight();
+			if (module.getX() < 0 || module.getY() < 0
+					|| module.getX() + w > width
+					|| module.getY() + h > height)
+				throw new EdfFormatException(w + "x" + h + " module "
+						+ module.getName() + " at " + module.getX() + ","
+						+ module.getY() + " does not fit in the " + width
+						+ "x" + height + " frame");
+			if (shortPixels) {
+				if (header.getDataType() != EdfDataType.UNSIGNED_SHORT)
+					throw new EdfFormatException(header.get("DataType")
+							+ " module in an UnsignedShort frame");
+				short[] buffer = getShortBuffer(w * h);
+				reader.read(header, buffer);
+				place(buffer, w, h, module, frame);
+			} else {
+				float[] buffer = getFloatBuffer(w * h);
+				reader.read(header, buffer);
+				place(buffer, w, h, module, frame);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	// Grown to the largest module, the readers fill only the start
+	private short[] getShortBuffer(int n) {
+		Object buffer = buffers.get();
+		if (!(buffer instanceof short[]) || ((short[]) buffer).length < n) {
+			buffer = new short[n];
+			buffers.set(buffer);
+		}
+		return (short[]) buffer;
+	}
+
+	private float[] getFloatBuffer(int n) {
+		Object buffer = buffers.get();
+		if (!(buffer instanceof float[]) || ((float[]) buffer).length < n) {
+			buffer = new float[n];
+			buffers.set(buffer);
+		}
+		return (float[]) buffer;
+	}
+
+	// Copies a module, row by row, into its region of the frame
+	private void place(Object module, int w, int h,
+			EdfModuleLayout.Module position, Object frame) {
+		for (int row = 0; row < h; row++) {
+			int src = (position.isFlipY() ? h - 1 - row : row) * w;
+			int dst = (position.getY() + row) * width + position.getX();
+			if (!position.isFlipX()) {
+				System.arraycopy(module, src, frame, dst, w);
+			} else if (frame instanceof short[]) {
+				short[] in = (short[]) module;
+				short[] out = (short[]) frame;
+				for (int x = 0; x < w; x++)
+					out[dst + x] = in[src + w - 1 - x];
+			} else {
+				float[] in = (float[]) module;
+				float[] out = (float[]) frame;
+				for (int x = 0; x < w; x++)
+					out[dst + x] = in[src + w - 1 - x];
+			}
+		}
+	}
+}
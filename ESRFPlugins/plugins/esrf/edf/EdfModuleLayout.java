@@ -0,0 +1,186 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF detector module layout                                          *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ * A layout file has one line per module: its name, the position of   *
+ * its first pixel in the full frame, and optionally flipx and flipy,  *
+ * which mirror the module before it is placed. The frame size can be  *
+ * given, otherwise it is the extent of the modules. For example       *
+ *                                                                     *
+ *   # 2 x 2 modules of 1030 x 514 pixels, 10 pixel gaps               *
+ *   width 2070                                                        *
+ *   height 1038                                                       *
+ *   m00 0 0                                                           *
+ *   m01 1040 0 flipx                                                  *
+ *   m02 0 524 flipy                                                   *
+ *   m03 1040 524 flipx flipy                                          *
+ *                                                                     *
+ * The module files of a frame are named <frame>_<module>.edf, such as *
+ * scan_0001_m00.edf to scan_0001_m03.edf.                             *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.util.*;
+
+/** Where the modules of a tiled detector go in the full frame **/
+public class EdfModuleLayout {
+
+	/** One module: its name, position and orientation **/
+	public static class Module {
+		private final String name;
+		private final int x;
+		private final int y;
+		private final boolean flipX;
+		private final boolean flipY;
+
+		public Module(String name, int x, int y, boolean flipX, boolean flipY) {
+			this.name = name;
+			this.x = x;
+			this.y = y;
+			this.flipX = flipX;
+			this.flipY = flipY;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getX() {
+			return x;
+		}
+
+		public int getY() {
+			return y;
+		}
+
+		public boolean isFlipX() {
+			return flipX;
+		}
+
+		public boolean isFlipY() {
+			return flipY;
+		}
+	}
+
+	private final List<Module> modules = new ArrayList<Module>();
+	private int width;
+	private int height;
+
+	/** Reads a layout file, see the file header for the format **/
+	public static EdfModuleLayout read(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "ISO-8859-1"));
+		try {
+			EdfModuleLayout layout = new EdfModuleLayout();
+			int lineNumber = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				try {
+					layout.parseLine(line);
+				} catch (IllegalArgumentException ex) {
+					throw new EdfFormatException(file.getName() + " line "
+							+ lineNumber + ": " + ex.getMessage());
+				}
+			}
+			if (layout.modules.isEmpty())
+				throw new EdfFormatException("No modules in " + file.getName());
+			return layout;
+		} finally {
+			in.close();
+		}
+	}
+
+	public List<Module> getModules() {
+		return Collections.unmodifiableList(modules);
+	}
+
+	/** The full frame width, or 0 if the layout file does not give it **/
+	public int getWidth() {
+		return width;
+	}
+
+	/** The full frame height, or 0 if the layout file does not give it **/
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Groups the module files in directory by frame, sorted by frame name.
+	 * Each frame has one file per module in layout order, null where a
+	 * module file is missing.
+	 **/
+	public SortedMap<String, File[]> findFrames(File directory)
+			throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null)
+			throw new FileNotFoundException("Cannot list " + directory);
+		SortedMap<String, File[]> frames = new TreeMap<String, File[]>();
+		for (File file : files) {
+			String name = file.getName();
+			for (int i = 0; i < modules.size(); i++) {
+				String suffix = "_" + modules.get(i).getName() + ".edf";
+				if (!name.endsWith(suffix) || name.length() == suffix.length())
+					continue;
+				String frame = name.substring(0, name.length()
+						- suffix.length());
+				File[] frameFiles = frames.get(frame);
+				if (frameFiles == null) {
+					frameFiles = new File[modules.size()];
+					frames.put(frame, frameFiles);
+				}
+				frameFiles[i] = file;
+				break;
+			}
+		}
+		return frames;
+	}
+
+	private void parseLine(String line) {
+		int comment = line.indexOf('#');
+		if (comment >= 0)
+			line = line.substring(0, comment);
+		String[] words = line.trim().split("\\s+");
+		if (words[0].length() == 0)
+			return;
+		if (words[0].equals("width") || words[0].equals("height")) {
+			if (words.length != 2)
+				throw new IllegalArgumentException("Expected " + words[0]
+						+ " <pixels>");
+			int size = Integer.parseInt(words[1]);
+			if (words[0].equals("width"))
+				width = size;
+			else
+				height = size;
+			return;
+		}
+		if (words.length < 3)
+			throw new IllegalArgumentException(
+					"Expected <module> <x> <y> [flipx] [flipy]");
+		boolean flipX = false;
+		boolean flipY = false;
+		for (int i = 3; i < words.length; i++) {
+			if (words[i].equalsIgnoreCase("flipx"))
+				flipX = true;
+			else if (words[i].equalsIgnoreCase("flipy"))
+				flipY = true;
+			else
+				throw new IllegalArgumentException("Unknown option "
+						+ words[i]);
+		}
+		for (Module module : modules) {
+			if (module.getName().equals(words[0]))
+				throw new IllegalArgumentException("Module " + words[0]
+						+ " is listed twice");
+		}
+		modules.add(new Module(words[0], Integer.parseInt(words[1]), Integer
+				.parseInt(words[2]), flipX, flipY));
+	}
+}
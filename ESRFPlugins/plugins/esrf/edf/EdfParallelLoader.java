@@ -0,0 +1,236 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF parallel loader                                                 *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Loads the first frame of many files with many reads in flight, for file
+ * systems where each file costs several round trips. A large pool of I/O
+ * threads opens the files and reads the data into memory, and the header
+ * unless the caller has it already, a pool the size of the processor count
+ * decodes them. The number of frames read but not yet decoded is bounded,
+ * so fast storage cannot fill the heap ahead of the decoders.
+ **/
+public class EdfParallelLoader {
+
+	/** Turns the raw data of a frame into the caller's pixel type **/
+	public interface Decoder {
+		/**
+		 * Called on a decode thread, data holds the frame's bytes in its
+		 * byte order. data is reused for another frame afterwards, so the
+		 * result must not refer to it.
+		 **/
+		Object decode(int index, EdfHeader header, ByteBuffer data)
+				throws IOException;
+	}
+
+	private final int ioThreads;
+	private final int decodeThreads;
+	private final Map<File, String> failed = new ConcurrentHashMap<File, String>();
+
+	/** ioThreads is the number of reads in flight **/
+	public EdfParallelLoader(int ioThreads) {
+		this(ioThreads, Runtime.getRuntime().availableProcessors());
+	}
+
+	public EdfParallelLoader(int ioThreads, int decodeThreads) {
+		this.ioThreads = Math.max(1, ioThreads);
+		this.decodeThreads = Math.max(1, decodeThreads);
+	}
+
+	/** The most frames read but not yet decoded at any time **/
+	public int getWindow() {
+		return ioThreads + 2 * decodeThreads;
+	}
+
+	/**
+	 * The most memory the raw frames in the window take for frames of
+	 * frameSize bytes. Buffer sizes are rounded up to a power of two, and
+	 * the buffers are on the heap once the direct memory is used up, so
+	 * callers planning heap use should count them.
+	 **/
+	public long getBufferedBytes(long frameSize) {
+		int capacity = (int) Math.min(frameSize, Integer.MAX_VALUE);
+		return (long) getWindow() * EdfBufferPool.getSizeClass(capacity);
+	}
+
+	/**
+	 * Reads and decodes the first frame of every file, and returns the
+	 * decoded frames in file order, null for the files which failed
+	 **/
+	public Object[] load(List<File> files, Decoder decoder)
+			throws InterruptedException {
+		return load(files, null, decoder);
+	}
+
+	/**
+	 * Loads like load(files, decoder), with the headers already read, for
+	 * example by EdfSeriesScan, so that only the data is read again. headers
+	 * holds the header of each file, or is null.
+	 **/
+	public Object[] load(final List<File> files,
+			final List<EdfHeader> headers, final Decoder decoder)
+			throws InterruptedException {
+		failed.clear();
+		final Object[] frames = new Object[files.size()];
+		// Frames read but not yet decoded
+		final Semaphore buffered = new Semaphore(getWindow());
+		final ExecutorService io = Executors.newFixedThreadPool(ioThreads);
+		final ExecutorService decode = Executors
+				.newFixedThreadPool(decodeThreads);
+		final CountDownLatch done = new CountDownLatch(files.size());
+		// Raw frames are recycled; the window above bounds how many exist
+		final EdfBufferPool buffers = new EdfBufferPool(Long.MAX_VALUE);
+		try {
+			for (int i = 0; i < files.size(); i++) {
+				final int index = i;
+				buffered.acquire();
+				io.execute(new Runnable() {
+					public void run() {
+						final File file = files.get(index);
+						Frame frame = null;
+						// Once the decode task runs, it finishes the frame
+						boolean handedOver = false;
+						try {
+							frame = readFrame(file, headers != null ? headers
+									.get(index) : null, buffers);
+							final Frame read = frame;
+							decode.execute(new Runnable() {
+								public void run() {
+									try {
+										frames[index] = decoder.decode(index,
+												read.header, read.data);
+									} catch (Throwable ex) {
+										fail(file, ex);
+									} finally {
+										buffers.release(read.data);
+										buffered.release();
+										done.countDown();
+									}
+								}
+							});
+							handedOver = true;
+						} catch (Throwable ex) {
+							fail(file, ex);
+						} finally {
+							if (!handedOver) {
+								if (frame != null)
+									buffers.release(frame.data);
+								buffered.release();
+								done.countDown();
+							}
+						}
+					}
+				});
+			}
+			done.await();
+		} finally {
+			io.shutdownNow();
+			decode.shutdownNow();
+		}
+		return frames;
+	}
+
+	/** Files which could not be loaded by the last load, with the reason **/
+	public Map<File, String> getFailed() {
+		return Collections.unmodifiableMap(failed);
+	}
+
+	private void fail(File file, Throwable ex) {
+		failed.put(file, ex instanceof IOException ? String.valueOf(ex
+				.getMessage()) : ex.toString());
+	}
+
+	/**
+	 * One frame read needs a single open: of the file, or only of the binary
+	 * data file if the header is known
+	 **/
+	private static Frame readFrame(File file, EdfHeader header,
+			EdfBufferPool buffers) throws IOException {
+		FileChannel channel = null;
+		if (header == null || header.getBinaryFileName() == null)
+			channel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			if (header == null)
+				header = EdfHeader.read(channel, 0);
+			if (header == null)
+				throw new EdfFormatException("No EDF header found in " + file);
+			if (header.getDataType() == null)
+				throw new EdfFormatException("Unknown data type "
+						+ header.get("DataType"));
+			if (header.getFrameSize() > Integer.MAX_VALUE)
+				throw new EdfFormatException(header.getWidth() + "x"
+						+ header.getHeight() + " frame does not fit in an array");
+			ByteBuffer data = acquire(buffers, (int) header.getFrameSize());
+			try {
+				if (header.getBinaryFileName() == null) {
+					readFully(channel, header.getDataOffset(), data, file);
+				} else {
+					File dataFile = header.getDataFile(file);
+					FileChannel binary = new RandomAccessFile(dataFile, "r")
+							.getChannel();
+					try {
+						readFully(binary, header.getDataOffset(), data,
+								dataFile);
+					} finally {
+						binary.close();
+					}
+				}
+			} catch (IOException ex) {
+				buffers.release(data);
+				throw ex;
+			}
+			data.flip();
+			data.order(header.getByteOrder());
+			return new Frame(header, data);
+		} finally {
+			if (channel != null)
+				channel.close();
+		}
+	}
+
+	/**
+	 * Direct, so the channel reads into it without a temporary copy, or on
+	 * the heap once the direct memory limit, which is separate from the
+	 * heap limit, is reached
+	 **/
+	private static ByteBuffer acquire(EdfBufferPool buffers, int capacity) {
+		try {
+			return buffers.acquireBuffer(capacity, true);
+		} catch (OutOfMemoryError ex) {
+			return buffers.acquireBuffer(capacity, false);
+		}
+	}
+
+	private static void readFully(FileChannel channel, long position,
+			ByteBuffer data, File file) throws IOException {
+		while (data.hasRemaining()) {
+			if (channel.read(data, position + data.position()) < 0)
+				throw new EdfFormatException("Unexpected end of file reading "
+						+ file.getName());
+		}
+	}
+
+	private static class Frame {
+		final EdfHeader header;
+		final ByteBuffer data;
+
+		Frame(EdfHeader header, ByteBuffer data) {
+			this.header = header;
+			this.data = data;
+		}
+	}
+}
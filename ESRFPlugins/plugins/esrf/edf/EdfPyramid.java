@@ -0,0 +1,409 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF tiled resolution pyramid                                        *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Serves square tiles of a frame too large to hold in memory, at full
+ * resolution and at levels each downsampled by 2 until one tile covers the
+ * frame. Full resolution tiles are read from the EDF data when needed. The
+ * coarser levels are built once, in parallel, into a cache directory, with
+ * one file per level holding its tiles one after the other as big-endian
+ * floats, and reused while the EDF file is unchanged. Building removes the
+ * levels of earlier versions of the file; keeping the whole cache under a
+ * size limit is up to the caller, with EdfDiskCache.trim. Only the most
+ * recently used tiles are kept in memory.
+ **/
+public class EdfPyramid {
+
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	// Tiles kept in memory, enough for a screen full at any level
+	private static final int CACHED_TILES = 64;
+
+	private final File file;
+	private final EdfHeader header;
+	private final int tileSize;
+	private final int levels;
+	private final File directory;
+	// Start of the directory names of every version of the file
+	private final String prefix;
+	private final EdfFrameReader reader;
+	private final FileChannel[] levelFiles;
+	private final Map<Long, float[]> tiles = new LinkedHashMap<Long, float[]>(
+			CACHED_TILES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<Long, float[]> eldest) {
+			if (size() <= CACHED_TILES)
+				return false;
+			// Tiles never leave this class, so they can be reused at once
+			EdfBufferPool.getShared().release(eldest.getValue());
+			return true;
+		}
+	};
+
+	/**
+	 * Opens the first frame of file. The levels are kept in a directory
+	 * under cacheRoot named after the file and the tile size, followed by
+	 * the length and modification time; build makes the ones which are
+	 * missing.
+	 **/
+	public EdfPyramid(File file, File cacheRoot, int tileSize)
+			throws IOException {
+		this.file = file;
+		this.tileSize = tileSize;
+		reader = new EdfFrameReader(file);
+		try {
+			header = reader.readHeader();
+			if (header.getDataType() == null)
+				throw new EdfFormatException("Unknown data type "
+						+ header.get("DataType"));
+		} catch (IOException ex) {
+			reader.close();
+			throw ex;
+		}
+		int n = 1;
+		int size = Math.max(header.getWidth(), header.getHeight());
+		while (size > tileSize) {
+			size = (size + 1) / 2;
+			n++;
+		}
+		levels = n;
+		levelFiles = new FileChannel[levels];
+		File canonical = file.getCanonicalFile();
+		prefix = EdfDiskCache.digest(canonical.getPath() + '\n' + tileSize,
+				null) + "-";
+		directory = new File(cacheRoot, prefix
+				+ Long.toHexString(canonical.length()) + "-"
+				+ Long.toHexString(canonical.lastModified()));
+		if (directory.isDirectory())
+			EdfDiskCache.touch(directory);
+	}
+
+	public EdfHeader getHeader() {
+		return header;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/** The cache directory entry holding the levels **/
+	public File getDirectory() {
+		return directory;
+	}
+
+	/** Level 0 is full resolution, the last level fits in one tile **/
+	public int getLevels() {
+		return levels;
+	}
+
+	public int getWidth(int level) {
+		int width = header.getWidth();
+		for (int i = 0; i < level; i++)
+			width = (width + 1) / 2;
+		return width;
+	}
+
+	public int getHeight(int level) {
+		int height = header.getHeight();
+		for (int i = 0; i < level; i++)
+			height = (height + 1) / 2;
+		return height;
+	}
+
+	/** True if every downsampled level is in the cache directory **/
+	public boolean isBuilt() {
+		for (int level = 1; level < levels; level++) {
+			if (!getLevelFile(level).isFile())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the missing levels, each from the one above, then removes those
+	 * of other versions of the file. The tile rows of a level are made on
+	 * threads threads, every one reading only the two tile rows of the finer
+	 * level it covers.
+	 **/
+	public void build(final int threads) throws IOException,
+			InterruptedException {
+		directory.mkdirs();
+		for (int level = 1; level < levels; level++) {
+			File levelFile = getLevelFile(level);
+			if (levelFile.isFile())
+				continue;
+			final int current = level;
+			try {
+				EdfDiskCache.write(levelFile, new EdfDiskCache.Writer() {
+					public void write(File file) throws IOException {
+						try {
+							buildLevel(current, file, threads);
+						} catch (InterruptedException ex) {
+							throw new InterruptedIOException();
+						}
+					}
+				});
+			} catch (InterruptedIOException ex) {
+				throw new InterruptedException();
+			}
+		}
+		removeStale();
+	}
+
+	/**
+	 * Reads the w by h rectangle at x, y of a level, in pixels of that
+	 * level, from the tiles it overlaps
+	 **/
+	public synchronized void readRegion(int level, int x, int y, int w,
+			int h, float[] pixels) throws IOException {
+		int width = getWidth(level);
+		int height = getHeight(level);
+		if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width
+				|| y + h > height)
+			throw new IllegalArgumentException("Region " + w + "x" + h
+					+ " at " + x + "," + y + " outside level " + level
+					+ " of size " + width + "x" + height);
+		for (int ty = y / tileSize; ty * tileSize < y + h; ty++) {
+			for (int tx = x / tileSize; tx * tileSize < x + w; tx++) {
+				float[] tile = getTile(level, tx, ty);
+				int x0 = Math.max(x, tx * tileSize);
+				int x1 = Math.min(x + w, (tx + 1) * tileSize);
+				int y0 = Math.max(y, ty * tileSize);
+				int y1 = Math.min(y + h, (ty + 1) * tileSize);
+				for (int row = y0; row < y1; row++)
+					System.arraycopy(tile, (row - ty * tileSize) * tileSize
+							+ x0 - tx * tileSize, pixels, (row - y) * w + x0
+							- x, x1 - x0);
+			}
+		}
+	}
+
+	/** Closes the EDF file and the level files **/
+	public synchronized void close() throws IOException {
+		for (float[] tile : tiles.values())
+			EdfBufferPool.getShared().release(tile);
+		tiles.clear();
+		reader.close();
+		for (int level = 0; level < levels; level++) {
+			if (levelFiles[level] != null)
+				levelFiles[level].close();
+			levelFiles[level] = null;
+		}
+	}
+
+	// A tile of tileSize by tileSize pixels, edge tiles padded with zeros
+	private float[] getTile(int level, int tx, int ty) throws IOException {
+		Long key = ((long) level << 48) | ((long) ty << 24) | tx;
+		float[] tile = tiles.get(key);
+		if (tile != null)
+			return tile;
+		tile = EdfBufferPool.getShared().acquireFloats(tileSize * tileSize);
+		if (level == 0)
+			readFrameTile(tx, ty, tile);
+		else
+			readLevelTile(level, tx, ty, tile);
+		tiles.put(key, tile);
+		return tile;
+	}
+
+	private void readFrameTile(int tx, int ty, float[] tile) throws IOException {
+		int x = tx * tileSize;
+		int y = ty * tileSize;
+		int w = Math.min(tileSize, header.getWidth() - x);
+		int h = Math.min(tileSize, header.getHeight() - y);
+		if (w < tileSize || h < tileSize)
+			Arrays.fill(tile, 0f);
+		EdfBufferPool pool = EdfBufferPool.getShared();
+		float[] region = pool.acquireFloats(w * h);
+		try {
+			reader.readRegion(header, x, y, w, h, region);
+			for (int row = 0; row < h; row++)
+				System.arraycopy(region, row * w, tile, row * tileSize, w);
+		} finally {
+			pool.release(region);
+		}
+	}
+
+	private void readLevelTile(int level, int tx, int ty, float[] tile)
+			throws IOException {
+		if (levelFiles[level] == null) {
+			File levelFile = getLevelFile(level);
+			if (!levelFile.isFile())
+				throw new FileNotFoundException("Level " + level
+						+ " has not been built: " + levelFile);
+			levelFiles[level] = new RandomAccessFile(levelFile, "r")
+					.getChannel();
+		}
+		int tilesX = (getWidth(level) + tileSize - 1) / tileSize;
+		ByteBuffer buf = ByteBuffer.allocate(4 * tile.length);
+		long position = ((long) ty * tilesX + tx) * buf.capacity();
+		while (buf.hasRemaining()) {
+			if (levelFiles[level].read(buf, position + buf.position()) < 0)
+				throw new EdfFormatException("Truncated pyramid level "
+						+ getLevelFile(level));
+		}
+		buf.flip();
+		buf.asFloatBuffer().get(tile);
+	}
+
+	// Every tile row of the level is an independent task
+	private void buildLevel(final int level, File tmp, int threads)
+			throws IOException, InterruptedException {
+		final int width = getWidth(level);
+		final int height = getHeight(level);
+		final int tileRows = (height + tileSize - 1) / tileSize;
+		final FileChannel out = new RandomAccessFile(tmp, "rw").getChannel();
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Object>> rows = new ArrayList<Future<Object>>();
+			for (int ty = 0; ty < tileRows; ty++) {
+				final int tileRow = ty;
+				rows.add(workers.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						float[] band = downsample(level - 1, tileRow
+								* tileSize, Math.min(tileSize, height
+								- tileRow * tileSize), width);
+						writeTiles(out, tileRow, band, width);
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> row : rows) {
+				try {
+					row.get();
+				} catch (ExecutionException ex) {
+					if (ex.getCause() instanceof IOException)
+						throw (IOException) ex.getCause();
+					throw new RuntimeException(ex.getCause());
+				}
+			}
+			out.force(false);
+		} finally {
+			workers.shutdownNow();
+			out.close();
+		}
+	}
+
+	/**
+	 * Averages 2 by 2 pixels of the finer level into rows y to y + rows - 1
+	 * of the next level, which is width wide. Source pixels beyond the edge
+	 * are left out of the mean.
+	 **/
+	private float[] downsample(int finer, int y, int rows, int width)
+			throws IOException {
+		int srcWidth = getWidth(finer);
+		int srcHeight = getHeight(finer);
+		float[] band = new float[width * rows];
+		float[] src = new float[2 * srcWidth];
+		EdfFrameReader frameReader = finer == 0 ? new EdfFrameReader(file)
+				: null;
+		try {
+			for (int row = 0; row < rows; row++) {
+				int sy = 2 * (y + row);
+				int n = Math.min(2, srcHeight - sy);
+				if (frameReader != null)
+					frameReader.readRows(header, sy, n, src);
+				else
+					readLevelRows(finer, sy, n, src);
+				for (int x = 0; x < width; x++) {
+					int sx = 2 * x;
+					int m = Math.min(2, srcWidth - sx);
+					float sum = 0;
+					for (int j = 0; j < n; j++)
+						for (int i = 0; i < m; i++)
+							sum += src[j * srcWidth + sx + i];
+					band[row * width + x] = sum / (n * m);
+				}
+			}
+		} finally {
+			if (frameReader != null)
+				frameReader.close();
+		}
+		return band;
+	}
+
+	// Reads whole rows of a built level from its file, not through the cache
+	private void readLevelRows(int level, int y, int rows, float[] pixels)
+			throws IOException {
+		int width = getWidth(level);
+		int tilesX = (width + tileSize - 1) / tileSize;
+		FileChannel in = new RandomAccessFile(getLevelFile(level), "r")
+				.getChannel();
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(4 * tileSize);
+			FloatBuffer floats = buf.asFloatBuffer();
+			for (int row = 0; row < rows; row++) {
+				int ty = (y + row) / tileSize;
+				int inTile = y + row - ty * tileSize;
+				for (int tx = 0; tx < tilesX; tx++) {
+					long position = (((long) ty * tilesX + tx) * tileSize + inTile)
+							* tileSize * 4;
+					buf.clear();
+					while (buf.hasRemaining()) {
+						if (in.read(buf, position + buf.position()) < 0)
+							throw new EdfFormatException(
+									"Truncated pyramid level " + level);
+					}
+					int w = Math.min(tileSize, width - tx * tileSize);
+					floats.clear();
+					floats.get(pixels, row * width + tx * tileSize, w);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeTiles(FileChannel out, int ty, float[] band, int width)
+			throws IOException {
+		int tilesX = (width + tileSize - 1) / tileSize;
+		int rows = band.length / width;
+		ByteBuffer buf = ByteBuffer.allocate(4 * tileSize * tileSize);
+		FloatBuffer floats = buf.asFloatBuffer();
+		for (int tx = 0; tx < tilesX; tx++) {
+			int w = Math.min(tileSize, width - tx * tileSize);
+			Arrays.fill(buf.array(), (byte) 0);
+			floats.clear();
+			for (int row = 0; row < tileSize; row++) {
+				floats.position(row * tileSize);
+				if (row < rows)
+					floats.put(band, row * width + tx * tileSize, w);
+			}
+			buf.clear();
+			long position = ((long) ty * tilesX + tx) * buf.capacity();
+			while (buf.hasRemaining())
+				out.write(buf, position + buf.position());
+		}
+	}
+
+	private File getLevelFile(int level) {
+		return new File(directory, "level" + level + ".raw");
+	}
+
+	// Levels of the file before it was rewritten are never read again
+	private void removeStale() {
+		File[] entries = directory.getParentFile().listFiles();
+		if (entries == null)
+			return;
+		for (File entry : entries) {
+			if (entry.getName().startsWith(prefix) && !entry.equals(directory))
+				EdfDiskCache.delete(entry);
+		}
+	}
+}
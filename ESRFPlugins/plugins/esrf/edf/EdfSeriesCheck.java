@@ -0,0 +1,237 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF series integrity check                                          *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Checks a series of EDF files for truncated or inconsistent frames using
+ * only the headers and the file lengths. Every frame of a multi-frame file
+ * is checked for a known data type and byte order, a "Size" large enough
+ * for its dimensions, and data which ends within the file. Gaps in the
+ * frame numbers of the file names are reported for the series.
+ **/
+public class EdfSeriesCheck {
+
+	private final List<File> files;
+	private final Map<File, List<String>> problems = new LinkedHashMap<File, List<String>>();
+	private final List<String> gaps = new ArrayList<String>();
+	private int frameCount = 0;
+
+	private EdfSeriesCheck(List<File> files) {
+		this.files = new ArrayList<File>(files);
+	}
+
+	/** Checks files, in parallel with the given number of threads **/
+	public static EdfSeriesCheck check(final List<File> files, int threads)
+			throws InterruptedException {
+		EdfSeriesCheck check = new EdfSeriesCheck(files);
+		final Map<File, List<String>> found = new ConcurrentHashMap<File, List<String>>();
+		final int[] frames = new int[files.size()];
+		String[] failed = EdfWorkers.run(files.size(), threads,
+				new EdfWorkers.Task() {
+					public void run(int index) {
+						File file = files.get(index);
+						List<String> list = new ArrayList<String>();
+						frames[index] = checkFile(file, list);
+						if (!list.isEmpty())
+							found.put(file, list);
+					}
+				});
+		for (int i = 0; i < files.size(); i++) {
+			File file = files.get(i);
+			if (failed[i] != null)
+				check.problems.put(file, Collections.singletonList(failed[i]));
+			else if (found.containsKey(file))
+				check.problems.put(file, found.get(file));
+			check.frameCount += frames[i];
+		}
+		check.findGaps();
+		return check;
+	}
+
+	// Returns the number of frames checked
+	private static int checkFile(File file, List<String> problems) {
+		int frames = 0;
+		try {
+			EdfFrameReader reader = new EdfFrameReader(file);
+			try {
+				long length = file.length();
+				EdfHeader header = reader.readHeader();
+				while (header != null) {
+					frames++;
+					String frame = frames > 1 ? "frame " + frames + ": " : "";
+					if (!checkFrame(file, header, frame, problems))
+						break;
+					long next = header.getBinaryFileName() == null ? header
+							.getDataOffset() + header.getDataSize() : header
+							.getHeaderEnd();
+					if (next >= length)
+						break;
+					header = reader.readHeader(next);
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException ex) {
+			problems.add(String.valueOf(ex.getMessage()));
+		}
+		return frames;
+	}
+
+	// False if the frame is damaged, so the following ones cannot be found
+	private static boolean checkFrame(File file, EdfHeader header,
+			String frame, List<String> problems) {
+		// Headers without pixel data, such as the EHF general header
+		if (header.get("Dim_1") == null && header.get("Size") == null)
+			return true;
+		boolean ok = true;
+		EdfDataType type = header.getDataType();
+		if (type == null) {
+			problems.add(frame + "unknown data type " + header.get("DataType"));
+			ok = false;
+		}
+		String byteOrder = header.get("ByteOrder");
+		if (byteOrder != null && !byteOrder.equals("LowByteFirst")
+				&& !byteOrder.equals("HighByteFirst")) {
+			problems.add(frame + "unknown byte order " + byteOrder);
+			ok = false;
+		}
+		if (header.getWidth() <= 0 || header.getHeight() <= 0) {
+			problems.add(frame + "invalid size " + header.getWidth() + "x"
+					+ header.getHeight());
+			return false;
+		}
+		if (type == null)
+			return false;
+
+		long frameSize = header.getFrameSize();
+		long size = header.getLong("Size", -1);
+		if (size >= 0 && size < frameSize) {
+			problems.add(frame + "Size " + size + " is less than "
+					+ header.getWidth() + "x" + header.getHeight() + " "
+					+ type.getName() + " (" + frameSize + " bytes)");
+			ok = false;
+		}
+		// The data block, Size bytes if given, must end within the file
+		File dataFile = header.getDataFile(file);
+		long dataSize = header.getDataSize();
+		long length = dataFile.length();
+		if (!dataFile.isFile()) {
+			problems.add(frame + "data file " + dataFile + " not found");
+			ok = false;
+		} else if (length < header.getDataOffset() + dataSize) {
+			problems.add(frame + "truncated, "
+					+ Math.max(0, length - header.getDataOffset()) + " of "
+					+ dataSize + " data bytes present");
+			ok = false;
+		}
+		return ok;
+	}
+
+	// The step is the most common difference between frame numbers
+	private void findGaps() {
+		List<Long> numbers = new ArrayList<Long>();
+		for (File file : files) {
+			long number = getFrameNumber(file);
+			if (number >= 0)
+				numbers.add(number);
+		}
+		Collections.sort(numbers);
+		Map<Long, Integer> steps = new HashMap<Long, Integer>();
+		long step = 0;
+		int best = 0;
+		for (int i = 1; i < numbers.size(); i++) {
+			long d = numbers.get(i) - numbers.get(i - 1);
+			Integer n = steps.get(d);
+			n = n == null ? 1 : n + 1;
+			steps.put(d, n);
+			if (n > best) {
+				best = n;
+				step = d;
+			}
+		}
+		if (step <= 0)
+			return;
+		for (int i = 1; i < numbers.size(); i++) {
+			long previous = numbers.get(i - 1);
+			long current = numbers.get(i);
+			if (current - previous > step) {
+				long first = previous + step;
+				long last = current - step;
+				gaps.add(first == last ? "frame " + first + " missing"
+						: "frames " + first + " to " + last + " missing");
+			}
+		}
+	}
+
+	/** The number before the extension of the file name, or -1 **/
+	public static long getFrameNumber(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		int end = dot < 0 ? name.length() : dot;
+		int start = end;
+		while (start > 0 && name.charAt(start - 1) >= '0'
+				&& name.charAt(start - 1) <= '9')
+			start--;
+		if (start == end || end - start > 18)
+			return -1;
+		return Long.parseLong(name.substring(start, end));
+	}
+
+	/** True if no file has a problem and no frame number is missing **/
+	public boolean isClean() {
+		return problems.isEmpty() && gaps.isEmpty();
+	}
+
+	/** Damaged files, with their problems, in series order **/
+	public Map<File, List<String>> getProblems() {
+		return Collections.unmodifiableMap(problems);
+	}
+
+	/** Missing frame numbers **/
+	public List<String> getGaps() {
+		return Collections.unmodifiableList(gaps);
+	}
+
+	/** The files without problems **/
+	public List<File> getGoodFiles() {
+		List<File> good = new ArrayList<File>();
+		for (File file : files) {
+			if (!problems.containsKey(file))
+				good.add(file);
+		}
+		return good;
+	}
+
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+	/** A readable report, one problem per line **/
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(files.size()).append(" files, ").append(frameCount)
+				.append(" frames, ").append(problems.size())
+				.append(" damaged files, ").append(gaps.size())
+				.append(" gaps\n");
+		for (Map.Entry<File, List<String>> entry : problems.entrySet()) {
+			for (String problem : entry.getValue())
+				sb.append(entry.getKey().getName()).append(": ")
+						.append(problem).append('\n');
+		}
+		for (String gap : gaps)
+			sb.append(gap).append('\n');
+		return sb.toString();
+	}
+}
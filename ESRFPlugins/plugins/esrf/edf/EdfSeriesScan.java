@@ -0,0 +1,174 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF series header scan                                              *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads only the headers of a series of EDF files and keeps the files which
+ * match the first readable one in size and data type. Files which cannot be
+ * read or do not match are rejected with a reason, before any pixel data is
+ * read.
+ **/
+public class EdfSeriesScan {
+
+	private final List<File> files = new ArrayList<File>();
+	private final List<EdfHeader> headers = new ArrayList<EdfHeader>();
+	private final Map<File, String> rejected = new LinkedHashMap<File, String>();
+	private EdfHeader reference;
+
+	private EdfSeriesScan() {
+	}
+
+	public static EdfSeriesScan scan(List<File> candidates) {
+		EdfSeriesScan scan = new EdfSeriesScan();
+		for (File file : candidates) {
+			try {
+				EdfFrameReader reader = new EdfFrameReader(file);
+				try {
+					scan.add(file, reader.readHeader());
+				} finally {
+					reader.close();
+				}
+			} catch (IOException ex) {
+				scan.rejected.put(file, ex.getMessage());
+			}
+		}
+		return scan;
+	}
+
+	/**
+	 * Scans like scan, with up to threads headers read at the same time,
+	 * which hides the latency of network file systems
+	 **/
+	public static EdfSeriesScan scan(final List<File> candidates, int threads)
+			throws InterruptedException {
+		if (threads <= 1)
+			return scan(candidates);
+		final EdfHeader[] found = new EdfHeader[candidates.size()];
+		String[] errors = EdfWorkers.run(candidates.size(), threads,
+				new EdfWorkers.Task() {
+					public void run(int index) throws IOException {
+						EdfFrameReader reader = new EdfFrameReader(candidates
+								.get(index));
+						try {
+							found[index] = reader.readHeader();
+						} finally {
+							reader.close();
+						}
+					}
+				});
+		// Accepted in the given order, so the reference is the same as for
+		// a sequential scan
+		EdfSeriesScan scan = new EdfSeriesScan();
+		for (int i = 0; i < found.length; i++) {
+			if (found[i] != null)
+				scan.add(candidates.get(i), found[i]);
+			else
+				scan.rejected.put(candidates.get(i), errors[i]);
+		}
+		return scan;
+	}
+
+	/**
+	 * Lists the series first belongs to: the files of its directory with the
+	 * same name up to the frame number and the same extension, sorted by
+	 * name.
+	 **/
+	public static List<File> listSeries(File first) {
+		String name = first.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot < 0)
+			dot = name.length();
+		int end = dot;
+		while (end > 0 && isDigit(name.charAt(end - 1)))
+			end--;
+		final String prefix = name.substring(0, end);
+		final String suffix = name.substring(dot);
+		File[] files = first.getAbsoluteFile().getParentFile()
+				.listFiles(new FileFilter() {
+					public boolean accept(File file) {
+						String name = file.getName();
+						if (!file.isFile() || !name.startsWith(prefix)
+								|| !name.endsWith(suffix)
+								|| name.length() < prefix.length() + suffix.length())
+							return false;
+						for (int i = prefix.length(); i < name.length()
+								- suffix.length(); i++) {
+							if (!isDigit(name.charAt(i)))
+								return false;
+						}
+						return true;
+					}
+				});
+		List<File> series = new ArrayList<File>();
+		if (files == null)
+			return series;
+		series.addAll(Arrays.asList(files));
+		Collections.sort(series, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				return f1.getName().compareTo(f2.getName());
+			}
+		});
+		return series;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private void add(File file, EdfHeader header) {
+		if (header.getDataType() == null) {
+			rejected.put(file, "unknown data type " + header.get("DataType"));
+			return;
+		}
+		if (reference == null) {
+			reference = header;
+		} else if (header.getWidth() != reference.getWidth()
+				|| header.getHeight() != reference.getHeight()) {
+			rejected.put(file, "size " + header.getWidth() + "x"
+					+ header.getHeight() + " differs from "
+					+ reference.getWidth() + "x" + reference.getHeight());
+			return;
+		} else if (header.getDataType() != reference.getDataType()) {
+			rejected.put(file, "data type " + header.getDataType().getName()
+					+ " differs from " + reference.getDataType().getName());
+			return;
+		}
+		files.add(file);
+		headers.add(header);
+	}
+
+	/** The accepted files, in the order they were given **/
+	public List<File> getFiles() {
+		return Collections.unmodifiableList(files);
+	}
+
+	/** The headers of the accepted files **/
+	public List<EdfHeader> getHeaders() {
+		return Collections.unmodifiableList(headers);
+	}
+
+	/** Files which were left out, with the reason **/
+	public Map<File, String> getRejected() {
+		return Collections.unmodifiableMap(rejected);
+	}
+
+	public int size() {
+		return files.size();
+	}
+
+	/** The header all accepted files match, or null if none was readable **/
+	public EdfHeader getReference() {
+		return reference;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF signature probe                                                 *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Decides from the first block of a file whether it is EDF or EHF, with a
+ * single small read, so that files of other types can be turned away
+ * without scanning them.
+ **/
+public class EdfSignature {
+
+	// Some writers put characters before the opening bracket. The probe
+	// takes as many as the header reader does, and the start of the header.
+	private static final int MAX_LEADING = EdfHeader.MAX_LEADING;
+
+	/** Bytes read by probe **/
+	public static final int PROBE_SIZE = MAX_LEADING + 1024;
+
+	private static final String[] TOKENS = { "HeaderID", "EDF_DataBlockID",
+			"EDF_HeaderSize", "Dim_1", "ByteOrder", "DataType" };
+
+	private EdfSignature() {
+	}
+
+	/** True if file starts like an EDF or EHF file **/
+	public static boolean probe(File file) {
+		if (!file.isFile())
+			return false;
+		try {
+			FileChannel in = new RandomAccessFile(file, "r").getChannel();
+			try {
+				ByteBuffer block = ByteBuffer.allocate(PROBE_SIZE);
+				while (block.hasRemaining()) {
+					if (in.read(block, block.position()) < 0)
+						break;
+				}
+				return matches(block.array(), block.position());
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	/** True if the first length bytes of block look like an EDF header **/
+	public static boolean matches(byte[] block, int length) {
+		int start = -1;
+		for (int i = 0; i < Math.min(length, MAX_LEADING); i++) {
+			if (block[i] == '{') {
+				start = i;
+				break;
+			}
+		}
+		if (start < 0)
+			return false;
+		String text;
+		try {
+			text = new String(block, start, length - start, "ISO-8859-1");
+		} catch (UnsupportedEncodingException ex) {
+			text = new String(block, start, length - start);
+		}
+		for (String token : TOKENS) {
+			if (text.indexOf(token) >= 0)
+				return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF I/O timings                                                     *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.lang.management.*;
+import java.util.Arrays;
+
+/**
+ * Collects per-frame latencies for the simulator and the load test, and
+ * reports percentiles together with the heap and garbage collector activity
+ * since the timings were started. Safe to add to from several threads.
+ **/
+public class EdfTimings {
+
+	private long[] nanos = new long[1024];
+	private int count = 0;
+	private long bytes = 0;
+	private long allocated = 0;
+	private int allocatedCount = 0;
+	private long startNanos;
+	private long stopNanos;
+	private long startGcCount;
+	private long startGcMillis;
+	private long startHeap;
+
+	/** Starts the clock and resets the heap peak **/
+	public synchronized void start() {
+		count = 0;
+		bytes = 0;
+		allocated = 0;
+		allocatedCount = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+		startGcCount = getGcCount();
+		startGcMillis = getGcMillis();
+		startHeap = getHeapUsed();
+		startNanos = System.nanoTime();
+	}
+
+	public synchronized void stop() {
+		stopNanos = System.nanoTime();
+	}
+
+	/** Records one frame of the given size which took nanos **/
+	public synchronized void add(long frameNanos, long frameBytes) {
+		if (count == nanos.length)
+			nanos = Arrays.copyOf(nanos, 2 * count);
+		nanos[count++] = frameNanos;
+		bytes += frameBytes;
+	}
+
+	/**
+	 * Records the bytes allocated while handling one frame, as measured
+	 * with getThreadAllocatedBytes
+	 **/
+	public synchronized void addAllocated(long frameAllocated) {
+		allocated += frameAllocated;
+		allocatedCount++;
+	}
+
+	/**
+	 * Bytes allocated so far by the current thread, or -1 where the JVM
+	 * does not count them
+	 **/
+	public static long getThreadAllocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean counting;
+		counting = (com.sun.management.ThreadMXBean) threads;
+		if (!counting.isThreadAllocatedMemorySupported()
+				|| !counting.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return counting.getThreadAllocatedBytes(Thread.currentThread()
+				.getId());
+	}
+
+	public synchronized int getCount() {
+		return count;
+	}
+
+	public synchronized double getSeconds() {
+		return (stopNanos - startNanos) / 1e9;
+	}
+
+	/** The latency in milliseconds below which fraction of the frames lie **/
+	public synchronized double getPercentile(double fraction) {
+		if (count == 0)
+			return 0;
+		long[] sorted = Arrays.copyOf(nanos, count);
+		Arrays.sort(sorted);
+		int i = (int) Math.ceil(fraction * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, i))] / 1e6;
+	}
+
+	public synchronized double getFramesPerSecond() {
+		return count / getSeconds();
+	}
+
+	public synchronized double getMegabytesPerSecond() {
+		return bytes / getSeconds() / (1 << 20);
+	}
+
+	/** A summary of throughput, latency, heap and GC **/
+	public synchronized String getReport() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		}
+		String report = String.format("%d frames, %.1f MB in %.2f s: %.1f frames/s, %.1f MB/s%n"
+				+ "latency ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n"
+				+ "heap MB: %d at start, %d at end, %d peak; "
+				+ "GC: %d collections, %d ms%n", count, bytes / 1048576.0,
+				getSeconds(), getFramesPerSecond(), getMegabytesPerSecond(),
+				getPercentile(0.5), getPercentile(0.9), getPercentile(0.99),
+				getPercentile(1.0), startHeap >> 20, getHeapUsed() >> 20,
+				peak >> 20, getGcCount() - startGcCount, getGcMillis()
+						- startGcMillis);
+		if (allocatedCount > 0)
+			report += String.format(
+					"allocated: %.1f KB/frame, %.1f MB/s%n", allocated
+							/ 1024.0 / allocatedCount, allocated / 1048576.0
+							/ getSeconds());
+		return report;
+	}
+
+	private static long getHeapUsed() {
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+				.getUsed();
+	}
+
+	private static long getGcCount() {
+		long n = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			n += Math.max(0, gc.getCollectionCount());
+		return n;
+	}
+
+	private static long getGcMillis() {
+		long n = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			n += Math.max(0, gc.getCollectionTime());
+		return n;
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF worker pool                                                     *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+ * Runs one task per item, typically per file of a series, on a fixed pool
+ * of threads and waits for all of them. A task which throws fails only its
+ * own item; the reasons are returned by item.
+ **/
+public class EdfWorkers {
+
+	/**
+	 * Default thread count for work over a series which mostly waits on the
+	 * file system, such as header and frame reads: well above the processor
+	 * count, so enough reads are in flight on network storage
+	 **/
+	public static final int IO_THREADS = 32;
+
+	/** The work for one item **/
+	public interface Task {
+		void run(int index) throws IOException;
+	}
+
+	private EdfWorkers() {
+	}
+
+	/**
+	 * Calls task for every index from 0 to count - 1 with the given number
+	 * of threads and returns when all calls are done. The result holds the
+	 * reason each failed call threw, null for the calls which succeeded.
+	 **/
+	public static String[] run(int count, int threads, final Task task)
+			throws InterruptedException {
+		final String[] failed = new String[count];
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1,
+				threads));
+		try {
+			for (int i = 0; i < count; i++) {
+				final int index = i;
+				workers.execute(new Runnable() {
+					public void run() {
+						try {
+							task.run(index);
+						} catch (IOException ex) {
+							failed[index] = String.valueOf(ex.getMessage());
+						} catch (Throwable ex) {
+							// Also errors such as running out of memory, so
+							// one item cannot take the whole run down
+							failed[index] = ex.toString();
+						}
+					}
+				});
+			}
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} finally {
+			workers.shutdownNow();
+		}
+		return failed;
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * Off-heap slice store                                                *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Keeps equally sized slices of pixel data outside the Java heap, either in
+ * direct buffers or in a memory mapped scratch file. Pixel arrays are copied
+ * in and out, so the garbage collector only ever sees the slices in use.
+ **/
+public class OffHeapSliceStore implements Closeable {
+
+	// A mapped segment must stay below the 2 GiB ByteBuffer limit
+	private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+	/** The largest slice in bytes, a slice never spans two segments **/
+	public static final int MAX_SLICE_SIZE = (int) MAX_SEGMENT_SIZE;
+
+	private final int sliceSize;
+	private final int slotsPerSegment;
+	private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+	private final List<Integer> slices = new ArrayList<Integer>();
+	private final LinkedList<Integer> freeSlots = new LinkedList<Integer>();
+	private int nSlots = 0;
+
+	private File scratchFile;
+	private RandomAccessFile scratch;
+	private FileChannel scratchChannel;
+
+	/**
+	 * sliceSize is in bytes. If scratchDirectory is null the slices are kept
+	 * in direct buffers, which are limited by -XX:MaxDirectMemorySize,
+	 * otherwise in a temporary file in that directory which is deleted by
+	 * close.
+	 **/
+	public OffHeapSliceStore(int sliceSize, File scratchDirectory)
+			throws IOException {
+		if (sliceSize <= 0 || sliceSize > MAX_SLICE_SIZE)
+			throw new IllegalArgumentException("Invalid slice size "
+					+ sliceSize);
+		this.sliceSize = sliceSize;
+		if (scratchDirectory == null) {
+			slotsPerSegment = 1;
+		} else {
+			slotsPerSegment = (int) Math.max(1, MAX_SEGMENT_SIZE / sliceSize);
+			scratchFile = File.createTempFile("edf", ".slices",
+					scratchDirectory);
+			scratchFile.deleteOnExit();
+			scratch = new RandomAccessFile(scratchFile, "rw");
+			scratchChannel = scratch.getChannel();
+		}
+	}
+
+	public int getSliceSize() {
+		return sliceSize;
+	}
+
+	public synchronized int getSize() {
+		return slices.size();
+	}
+
+	/** Number of bytes held outside the heap **/
+	public synchronized long getCapacity() {
+		return (long) nSlots * sliceSize;
+	}
+
+	/**
+	 * Appends a slice. Throws an IOException if there is no direct memory
+	 * or scratch space left, the store is then unchanged.
+	 **/
+	public void add(byte[] pixels) throws IOException {
+		add(getSize(), pixels);
+	}
+
+	public void add(short[] pixels) throws IOException {
+		add(getSize(), pixels);
+	}
+
+	public void add(float[] pixels) throws IOException {
+		add(getSize(), pixels);
+	}
+
+	/** Inserts a slice before slice n, with n starting at 0 **/
+	public void add(int n, byte[] pixels) throws IOException {
+		set(addSlot(n), pixels);
+	}
+
+	public void add(int n, short[] pixels) throws IOException {
+		set(addSlot(n), pixels);
+	}
+
+	public void add(int n, float[] pixels) throws IOException {
+		set(addSlot(n), pixels);
+	}
+
+	/** Copies pixels into slice n, with n starting at 0 **/
+	public void set(int n, byte[] pixels) {
+		slot(n).put(pixels, 0, sliceSize);
+	}
+
+	public void set(int n, short[] pixels) {
+		slot(n).asShortBuffer().put(pixels, 0, sliceSize / 2);
+	}
+
+	public void set(int n, float[] pixels) {
+		slot(n).asFloatBuffer().put(pixels, 0, sliceSize / 4);
+	}
+
+	/** Copies slice n into pixels **/
+	public void get(int n, byte[] pixels) {
+		slot(n).get(pixels, 0, sliceSize);
+	}
+
+	public void get(int n, short[] pixels) {
+		slot(n).asShortBuffer().get(pixels, 0, sliceSize / 2);
+	}
+
+	public void get(int n, float[] pixels) {
+		slot(n).asFloatBuffer().get(pixels, 0, sliceSize / 4);
+	}
+
+	/** Removes slice n, its space is reused by the next add **/
+	public synchronized void remove(int n) {
+		freeSlots.add(slices.remove(n));
+	}
+
+	/** Releases the buffers and deletes the scratch file **/
+	public synchronized void close() throws IOException {
+		segments.clear();
+		slices.clear();
+		freeSlots.clear();
+		nSlots = 0;
+		if (scratch != null) {
+			scratch.close();
+			scratch = null;
+			scratchFile.delete();
+		}
+	}
+
+	private synchronized int addSlot(int n) throws IOException {
+		if (n < 0 || n > slices.size())
+			throw new IndexOutOfBoundsException("Slice " + n);
+		int slot;
+		if (!freeSlots.isEmpty()) {
+			slot = freeSlots.removeFirst();
+		} else {
+			// Counted only once its segment exists, so a failure changes
+			// nothing
+			slot = nSlots;
+			if (slot / slotsPerSegment >= segments.size())
+				segments.add(allocateSegment(segments.size()));
+			nSlots++;
+		}
+		slices.add(n, slot);
+		return n;
+	}
+
+	private ByteBuffer allocateSegment(int index) throws IOException {
+		long segmentSize = (long) slotsPerSegment * sliceSize;
+		if (scratchChannel == null) {
+			try {
+				return ByteBuffer.allocateDirect((int) segmentSize);
+			} catch (OutOfMemoryError ex) {
+				// Thrown at -XX:MaxDirectMemorySize, an expected limit
+				throw new IOException("Out of direct memory ("
+						+ ex.getMessage() + "), raise -XX:MaxDirectMemorySize"
+						+ " or use a scratch file");
+			}
+		}
+		// Mapping beyond the end of the file grows the file
+		return scratchChannel.map(FileChannel.MapMode.READ_WRITE, index
+				* segmentSize, segmentSize);
+	}
+
+	// Returns a native ordered view of the slot holding slice n
+	private ByteBuffer slot(int n) {
+		ByteBuffer segment;
+		int slot;
+		synchronized (this) {
+			slot = slices.get(n);
+			segment = segments.get(slot / slotsPerSegment);
+		}
+		ByteBuffer view = segment.duplicate();
+		int position = (slot % slotsPerSegment) * sliceSize;
+		view.limit(position + sliceSize);
+		view.position(position);
+		return view.slice().order(ByteOrder.nativeOrder());
+	}
+}
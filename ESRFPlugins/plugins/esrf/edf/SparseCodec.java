@@ -0,0 +1,386 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * Sparse pixel codec                                                  *
+ *                                                                     *
+ * Part of the ImageJ independent EDF core library                     *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf;
+
+import java.util.Arrays;
+
+/**
+ * A zero run-length codec for detector frames which are mostly zero. The
+ * encoded form is a sequence of (zero run, literal count, literals) with the
+ * run lengths as variable length integers and the literals in little endian
+ * order. Frames which do not compress are stored raw after a one byte flag.
+ * Decoding only writes the non zero pixels, so decoding into a new or
+ * cleared array costs time in proportion to the number of counts.
+ **/
+public class SparseCodec {
+
+	private static final byte RAW = 0;
+	private static final byte SPARSE = 1;
+
+	private SparseCodec() {
+	}
+
+	public static byte[] encode(byte[] pixels) {
+		Output out = new Output(pixels.length / 4 + 16);
+		out.put(SPARSE);
+		int n = pixels.length;
+		int i = 0;
+		while (i < n) {
+			int start = i;
+			while (i < n && pixels[i] == 0)
+				i++;
+			int zeros = i - start;
+			start = i;
+			while (i < n && pixels[i] != 0)
+				i++;
+			out.putVarint(zeros);
+			out.putVarint(i - start);
+			out.ensure(i - start);
+			for (int j = start; j < i; j++)
+				out.buf[out.size++] = pixels[j];
+			if (out.size > n)
+				return raw(pixels);
+		}
+		return out.toByteArray();
+	}
+
+	public static byte[] encode(short[] pixels) {
+		Output out = new Output(pixels.length / 2 + 16);
+		out.put(SPARSE);
+		int n = pixels.length;
+		int i = 0;
+		while (i < n) {
+			int start = i;
+			while (i < n && pixels[i] == 0)
+				i++;
+			int zeros = i - start;
+			start = i;
+			while (i < n && pixels[i] != 0)
+				i++;
+			out.putVarint(zeros);
+			out.putVarint(i - start);
+			out.ensure(2 * (i - start));
+			byte[] buf = out.buf;
+			int pos = out.size;
+			for (int j = start; j < i; j++) {
+				short v = pixels[j];
+				buf[pos++] = (byte) v;
+				buf[pos++] = (byte) (v >> 8);
+			}
+			out.size = pos;
+			if (out.size > 2 * n)
+				return raw(pixels);
+		}
+		return out.toByteArray();
+	}
+
+	public static byte[] encode(float[] pixels) {
+		Output out = new Output(pixels.length + 16);
+		out.put(SPARSE);
+		int n = pixels.length;
+		int i = 0;
+		while (i < n) {
+			int start = i;
+			while (i < n && Float.floatToRawIntBits(pixels[i]) == 0)
+				i++;
+			int zeros = i - start;
+			start = i;
+			while (i < n && Float.floatToRawIntBits(pixels[i]) != 0)
+				i++;
+			out.putVarint(zeros);
+			out.putVarint(i - start);
+			out.ensure(4 * (i - start));
+			byte[] buf = out.buf;
+			int pos = out.size;
+			for (int j = start; j < i; j++) {
+				int v = Float.floatToRawIntBits(pixels[j]);
+				buf[pos++] = (byte) v;
+				buf[pos++] = (byte) (v >> 8);
+				buf[pos++] = (byte) (v >> 16);
+				buf[pos++] = (byte) (v >> 24);
+			}
+			out.size = pos;
+			if (out.size > 4 * n)
+				return raw(pixels);
+		}
+		return out.toByteArray();
+	}
+
+	/** Decodes into pixels, which must be all zero unless clear is set **/
+	public static void decode(byte[] data, byte[] pixels, boolean clear) {
+		if (data[0] == RAW) {
+			System.arraycopy(data, 1, pixels, 0, pixels.length);
+			return;
+		}
+		if (clear)
+			Arrays.fill(pixels, (byte) 0);
+		Input in = new Input(data);
+		int i = 0;
+		while (in.pos < data.length) {
+			i += in.getVarint();
+			int count = in.getVarint();
+			System.arraycopy(data, in.pos, pixels, i, count);
+			in.pos += count;
+			i += count;
+		}
+	}
+
+	public static void decode(byte[] data, short[] pixels, boolean clear) {
+		if (data[0] == RAW) {
+			getShorts(data, 1, pixels, 0, pixels.length);
+			return;
+		}
+		if (clear)
+			Arrays.fill(pixels, (short) 0);
+		Input in = new Input(data);
+		int i = 0;
+		while (in.pos < data.length) {
+			i += in.getVarint();
+			int count = in.getVarint();
+			getShorts(data, in.pos, pixels, i, count);
+			in.pos += 2 * count;
+			i += count;
+		}
+	}
+
+	public static void decode(byte[] data, float[] pixels, boolean clear) {
+		if (data[0] == RAW) {
+			getFloats(data, 1, pixels, 0, pixels.length);
+			return;
+		}
+		if (clear)
+			Arrays.fill(pixels, 0f);
+		Input in = new Input(data);
+		int i = 0;
+		while (in.pos < data.length) {
+			i += in.getVarint();
+			int count = in.getVarint();
+			getFloats(data, in.pos, pixels, i, count);
+			in.pos += 4 * count;
+			i += count;
+		}
+	}
+
+	/**
+	 * Whether pixels hold exactly what data decodes to. Reads both once
+	 * without allocating, so it is cheaper than encoding pixels again.
+	 **/
+	public static boolean matches(byte[] data, byte[] pixels) {
+		if (data[0] == RAW) {
+			for (int j = 0; j < pixels.length; j++) {
+				if (pixels[j] != data[1 + j])
+					return false;
+			}
+			return true;
+		}
+		Input in = new Input(data);
+		int i = 0;
+		while (in.pos < data.length) {
+			int zeros = in.getVarint();
+			for (int j = i; j < i + zeros; j++) {
+				if (pixels[j] != 0)
+					return false;
+			}
+			i += zeros;
+			int count = in.getVarint();
+			for (int j = 0; j < count; j++) {
+				if (pixels[i++] != data[in.pos++])
+					return false;
+			}
+		}
+		for (; i < pixels.length; i++) {
+			if (pixels[i] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	public static boolean matches(byte[] data, short[] pixels) {
+		int pos = 1;
+		if (data[0] == RAW) {
+			for (int j = 0; j < pixels.length; j++, pos += 2) {
+				if (pixels[j] != getShort(data, pos))
+					return false;
+			}
+			return true;
+		}
+		Input in = new Input(data);
+		int i = 0;
+		while (in.pos < data.length) {
+			int zeros = in.getVarint();
+			for (int j = i; j < i + zeros; j++) {
+				if (pixels[j] != 0)
+					return false;
+			}
+			i += zeros;
+			int count = in.getVarint();
+			pos = in.pos;
+			for (int j = 0; j < count; j++, pos += 2) {
+				if (pixels[i++] != getShort(data, pos))
+					return false;
+			}
+			in.pos = pos;
+		}
+		for (; i < pixels.length; i++) {
+			if (pixels[i] != 0)
+				return false;
+		}
+		return true;
+	}
+
+	public static boolean matches(byte[] data, float[] pixels) {
+		int pos = 1;
+		if (data[0] == RAW) {
+			for (int j = 0; j < pixels.length; j++, pos += 4) {
+				if (Float.floatToRawIntBits(pixels[j]) != getInt(data, pos))
+					return false;
+			}
+			return true;
+		}
+		Input in = new Input(data);
+		int i = 0;
+		while (in.pos < data.length) {
+			int zeros = in.getVarint();
+			for (int j = i; j < i + zeros; j++) {
+				if (Float.floatToRawIntBits(pixels[j]) != 0)
+					return false;
+			}
+			i += zeros;
+			int count = in.getVarint();
+			pos = in.pos;
+			for (int j = 0; j < count; j++, pos += 4) {
+				if (Float.floatToRawIntBits(pixels[i++]) != getInt(data, pos))
+					return false;
+			}
+			in.pos = pos;
+		}
+		for (; i < pixels.length; i++) {
+			if (Float.floatToRawIntBits(pixels[i]) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	private static short getShort(byte[] data, int pos) {
+		return (short) ((data[pos] & 0xff) | (data[pos + 1] << 8));
+	}
+
+	private static int getInt(byte[] data, int pos) {
+		return (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8
+				| (data[pos + 2] & 0xff) << 16 | data[pos + 3] << 24;
+	}
+
+	private static void getShorts(byte[] data, int pos, short[] pixels,
+			int offset, int count) {
+		for (int j = offset; j < offset + count; j++) {
+			pixels[j] = getShort(data, pos);
+			pos += 2;
+		}
+	}
+
+	private static void getFloats(byte[] data, int pos, float[] pixels,
+			int offset, int count) {
+		for (int j = offset; j < offset + count; j++) {
+			pixels[j] = Float.intBitsToFloat(getInt(data, pos));
+			pos += 4;
+		}
+	}
+
+	private static byte[] raw(byte[] pixels) {
+		byte[] data = new byte[pixels.length + 1];
+		data[0] = RAW;
+		System.arraycopy(pixels, 0, data, 1, pixels.length);
+		return data;
+	}
+
+	private static byte[] raw(short[] pixels) {
+		byte[] data = new byte[2 * pixels.length + 1];
+		data[0] = RAW;
+		int pos = 1;
+		for (short v : pixels) {
+			data[pos++] = (byte) v;
+			data[pos++] = (byte) (v >> 8);
+		}
+		return data;
+	}
+
+	private static byte[] raw(float[] pixels) {
+		byte[] data = new byte[4 * pixels.length + 1];
+		data[0] = RAW;
+		int pos = 1;
+		for (float f : pixels) {
+			int v = Float.floatToRawIntBits(f);
+			data[pos++] = (byte) v;
+			data[pos++] = (byte) (v >> 8);
+			data[pos++] = (byte) (v >> 16);
+			data[pos++] = (byte) (v >> 24);
+		}
+		return data;
+	}
+
+	private static class Output {
+		byte[] buf;
+		int size;
+
+		Output(int capacity) {
+			buf = new byte[capacity];
+		}
+
+		void ensure(int n) {
+			if (size + n > buf.length) {
+				byte[] grown = new byte[Math.max(buf.length * 2, size + n)];
+				System.arraycopy(buf, 0, grown, 0, size);
+				buf = grown;
+			}
+		}
+
+		void put(byte b) {
+			ensure(1);
+			buf[size++] = b;
+		}
+
+		void putVarint(int v) {
+			ensure(5);
+			while ((v & ~0x7f) != 0) {
+				buf[size++] = (byte) ((v & 0x7f) | 0x80);
+				v >>>= 7;
+			}
+			buf[size++] = (byte) v;
+		}
+
+		byte[] toByteArray() {
+			byte[] data = new byte[size];
+			System.arraycopy(buf, 0, data, 0, size);
+			return data;
+		}
+	}
+
+	private static class Input {
+		final byte[] data;
+		int pos = 1;
+
+		Input(byte[] data) {
+			this.data = data;
+		}
+
+		int getVarint() {
+			int v = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[pos++];
+				v |= (b & 0x7f) << shift;
+				shift += 7;
+			} while (b < 0);
+			return v;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * Streaming AVI writer                                                *
+ *                                                                     *
+ * Used by EDF_Movie to write movies one frame at a time.              *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf.ij;
+
+import java.awt.image.*;
+import java.io.*;
+import java.util.Iterator;
+
+import javax.imageio.*;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Writes an AVI 1.0 file with a single video stream, either uncompressed
+ * 8-bit with a palette or MJPEG. Frames are appended as they come, only the
+ * 16 byte index entry of each frame is kept until close, when the index and
+ * the frame counts in the headers are written. AVI 1.0 files are limited
+ * to 2 GiB, larger movies are refused.
+ **/
+public class AviStreamWriter implements Closeable {
+
+	private static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+	private static final int AVIF_HASINDEX = 0x10;
+	private static final int AVIIF_KEYFRAME = 0x10;
+
+	private final RandomAccessFile out;
+	private final boolean mjpeg;
+	private final int width;
+	private final int height;
+	private final String chunkId;
+
+	// Positions patched by close
+	private long riffSizePosition;
+	private long totalFramesPosition;
+	private long streamLengthPosition;
+	private long moviSizePosition;
+	private long moviStart;
+
+	private int nFrames = 0;
+	private ByteArrayOutputStream index = new ByteArrayOutputStream();
+
+	/**
+	 * For uncompressed movies cm gives the palette, MJPEG movies hold RGB
+	 * frames encoded by toJpeg.
+	 **/
+	public AviStreamWriter(File file, int width, int height, double fps,
+			boolean mjpeg, IndexColorModel cm) throws IOException {
+		this.width = width;
+		this.height = height;
+		this.mjpeg = mjpeg;
+		chunkId = mjpeg ? "00dc" : "00db";
+		out = new RandomAccessFile(file, "rw");
+		out.setLength(0);
+		writeHeaders(fps, cm);
+	}
+
+	/** Appends a frame encoded by toDib or toJpeg **/
+	public synchronized void writeFrame(byte[] frame) throws IOException {
+		long position = out.getFilePointer();
+		if (position + frame.length + 8 + (nFrames + 1) * 16L > MAX_FILE_SIZE)
+			throw new IOException("AVI file would exceed 2 GiB after "
+					+ nFrames + " frames");
+		writeFourCC(chunkId);
+		writeInt(frame.length);
+		out.write(frame);
+		if ((frame.length & 1) != 0)
+			out.write(0);
+		writeIndexEntry(position - moviStart, frame.length);
+		nFrames++;
+	}
+
+	public int getFrameCount() {
+		return nFrames;
+	}
+
+	/** Writes the index, patches the headers and closes the file **/
+	public synchronized void close() throws IOException {
+		try {
+			long moviEnd = out.getFilePointer();
+			writeFourCC("idx1");
+			writeInt(index.size());
+			out.write(index.toByteArray());
+			long end = out.getFilePointer();
+
+			patchInt(moviSizePosition, (int) (moviEnd - moviSizePosition - 4));
+			patchInt(riffSizePosition, (int) (end - 8));
+			patchInt(totalFramesPosition, nFrames);
+			patchInt(streamLengthPosition, nFrames);
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Encodes 8-bit pixels as a bottom-up DIB with rows padded to 4 bytes **/
+	public static byte[] toDib(byte[] pixels, int width, int height) {
+		int stride = (width + 3) & ~3;
+		byte[] dib = new byte[stride * height];
+		for (int y = 0; y < height; y++)
+			System.arraycopy(pixels, y * width, dib, (height - 1 - y)
+					* stride, width);
+		return dib;
+	}
+
+	/** Encodes 8-bit pixels shown through cm as a JPEG image **/
+	public static byte[] toJpeg(byte[] pixels, int width, int height,
+			IndexColorModel cm, float quality) throws IOException {
+		BufferedImage rgb = new BufferedImage(width, height,
+				BufferedImage.TYPE_3BYTE_BGR);
+		byte[] bgr = ((DataBufferByte) rgb.getRaster().getDataBuffer())
+				.getData();
+		for (int i = 0, j = 0; i < pixels.length; i++) {
+			int index = pixels[i] & 0xff;
+			bgr[j++] = (byte) cm.getBlue(index);
+			bgr[j++] = (byte) cm.getGreen(index);
+			bgr[j++] = (byte) cm.getRed(index);
+		}
+		Iterator<ImageWriter> writers = ImageIO
+				.getImageWritersByFormatName("jpeg");
+		if (!writers.hasNext())
+			throw new IOException("No JPEG encoder available");
+		ImageWriter writer = writers.next();
+		ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+		MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(
+				jpeg);
+		try {
+			writer.setOutput(stream);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+			writer.write(null, new IIOImage(rgb, null, null), param);
+		} finally {
+			writer.dispose();
+			stream.close();
+		}
+		return jpeg.toByteArray();
+	}
+
+	private void writeHeaders(double fps, IndexColorModel cm)
+			throws IOException {
+		int rate = (int) Math.round(fps * 1000);
+		int paletteSize = mjpeg ? 0 : 256 * 4;
+		int strfSize = 40 + paletteSize;
+		int frameSize = mjpeg ? width * height * 3 : ((width + 3) & ~3)
+				* height;
+
+		writeFourCC("RIFF");
+		riffSizePosition = out.getFilePointer();
+		writeInt(0);
+		writeFourCC("AVI ");
+
+		writeFourCC("LIST");
+		writeInt(4 + (8 + 56) + (12 + (8 + 56) + (8 + strfSize)));
+		writeFourCC("hdrl");
+
+		// Main AVI header
+		writeFourCC("avih");
+		writeInt(56);
+		writeInt((int) Math.round(1000000 / fps));
+		writeInt(0);
+		writeInt(0);
+		writeInt(AVIF_HASINDEX);
+		totalFramesPosition = out.getFilePointer();
+		writeInt(0);
+		writeInt(0);
+		writeInt(1);
+		writeInt(frameSize);
+		writeInt(width);
+		writeInt(height);
+		for (int i = 0; i < 4; i++)
+			writeInt(0);
+
+		writeFourCC("LIST");
+		writeInt(4 + (8 + 56) + (8 + strfSize));
+		writeFourCC("strl");
+
+		// Stream header
+		writeFourCC("strh");
+		writeInt(56);
+		writeFourCC("vids");
+		writeFourCC(mjpeg ? "MJPG" : "DIB ");
+		writeInt(0);
+		writeInt(0);
+		writeInt(0);
+		writeInt(1000);
+		writeInt(rate);
+		writeInt(0);
+		streamLengthPosition = out.getFilePointer();
+		writeInt(0);
+		writeInt(frameSize);
+		writeInt(-1);
+		writeInt(0);
+		writeShort(0);
+		writeShort(0);
+		writeShort(width);
+		writeShort(height);
+
+		// Stream format, a BITMAPINFOHEADER and the palette
+		writeFourCC("strf");
+		writeInt(strfSize);
+		writeInt(40);
+		writeInt(width);
+		writeInt(height);
+		writeShort(1);
+		writeShort(mjpeg ? 24 : 8);
+		if (mjpeg)
+			writeFourCC("MJPG");
+		else
+			writeInt(0);
+		writeInt(frameSize);
+		writeInt(0);
+		writeInt(0);
+		writeInt(mjpeg ? 0 : 256);
+		writeInt(0);
+		if (!mjpeg) {
+			for (int i = 0; i < 256; i++) {
+				int index = i < cm.getMapSize() ? i : cm.getMapSize() - 1;
+				out.write(cm.getBlue(index));
+				out.write(cm.getGreen(index));
+				out.write(cm.getRed(index));
+				out.write(0);
+			}
+		}
+
+		writeFourCC("LIST");
+		moviSizePosition = out.getFilePointer();
+		writeInt(0);
+		moviStart = out.getFilePointer();
+		writeFourCC("movi");
+	}
+
+	private void writeIndexEntry(long offset, int size) {
+		byte[] entry = new byte[16];
+		for (int i = 0; i < 4; i++)
+			entry[i] = (byte) chunkId.charAt(i);
+		putInt(entry, 4, AVIIF_KEYFRAME);
+		putInt(entry, 8, (int) offset);
+		putInt(entry, 12, size);
+		index.write(entry, 0, entry.length);
+	}
+
+	private void writeFourCC(String fourCC) throws IOException {
+		out.writeBytes(fourCC);
+	}
+
+	// RIFF is little endian, RandomAccessFile writes big endian
+	private void writeInt(int v) throws IOException {
+		out.writeInt(Integer.reverseBytes(v));
+	}
+
+	private void writeShort(int v) throws IOException {
+		out.writeShort(Short.reverseBytes((short) v));
+	}
+
+	private void patchInt(long position, int v) throws IOException {
+		out.seek(position);
+		writeInt(v);
+	}
+
+	private static void putInt(byte[] b, int offset, int v) {
+		b[offset] = (byte) v;
+		b[offset + 1] = (byte) (v >> 8);
+		b[offset + 2] = (byte) (v >> 16);
+		b[offset + 3] = (byte) (v >> 24);
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * Compressed EDF stack                                                *
+ *                                                                     *
+ * Used by EDF_StackReader for sparse detector data.                   *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf.ij;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+import ij.*;
+import ij.process.*;
+
+import esrf.edf.SparseCodec;
+
+/**
+ * A stack keeping every slice compressed with SparseCodec. The most recently
+ * used slices are kept decoded, so scrolling over a few slices does not
+ * decode them again. Processors of cached slices share the cached pixels,
+ * so filters can work in place: a slice leaving the cache is compressed
+ * again if its pixels were changed. Arrays handed out are never reused for
+ * other slices. One which left the cache while a filter still holds it is
+ * handed out again for its slice as long as it is reachable, and flush
+ * stores its later changes.
+ **/
+public class EdfCompressedStack extends VirtualStack {
+
+	private static final int DEFAULT_CACHE_SIZE = 8;
+
+	private final int bitDepth;
+	private final List<byte[]> slices = new ArrayList<byte[]>();
+	private final List<String> labels = new ArrayList<String>();
+	private final Map<Integer, Object> cache;
+	// Arrays of slices which left the cache, possibly still being changed
+	private final Map<Integer, WeakReference<Object>> retired = new HashMap<Integer, WeakReference<Object>>();
+	private long compressedSize = 0;
+
+	public EdfCompressedStack(int width, int height, int bitDepth) {
+		this(width, height, bitDepth, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * cacheSize is raised to twice the ImageJ thread count, so slices which
+	 * stack filters process in parallel stay cached
+	 **/
+	public EdfCompressedStack(int width, int height, int bitDepth,
+			int cacheSize) {
+		super(width, height, null, null);
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IllegalArgumentException("Unsupported bit depth "
+					+ bitDepth);
+		this.bitDepth = bitDepth;
+		final int capacity = Math.max(cacheSize, 2 * Prefs.getThreads());
+		cache = new LinkedHashMap<Integer, Object>(capacity + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<Integer, Object> eldest) {
+				if (size() <= capacity)
+					return false;
+				store(eldest.getKey(), eldest.getValue());
+				retire(eldest.getKey(), eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	/** Bytes used by the compressed slices **/
+	public synchronized long getCompressedSize() {
+		flush();
+		return compressedSize;
+	}
+
+	/** Bytes the slices would use uncompressed **/
+	public long getUncompressedSize() {
+		return (long) getSize() * getWidth() * getHeight() * (bitDepth / 8);
+	}
+
+	public synchronized void addSlice(String sliceLabel, Object pixels) {
+		byte[] data = encode(pixels);
+		slices.add(data);
+		labels.add(sliceLabel);
+		compressedSize += data.length;
+	}
+
+	public void addSlice(String sliceLabel, ImageProcessor ip) {
+		if (ip.getWidth() != getWidth() || ip.getHeight() != getHeight())
+			throw new IllegalArgumentException("Dimensions do not match");
+		addSlice(sliceLabel, ip.getPixels());
+	}
+
+	/** Inserts ip after slice n, at the start if n is 0 **/
+	public synchronized void addSlice(String sliceLabel, ImageProcessor ip,
+			int n) {
+		if (ip.getWidth() != getWidth() || ip.getHeight() != getHeight())
+			throw new IllegalArgumentException("Dimensions do not match");
+		if (n < 0 || n > getSize())
+			throw new IllegalArgumentException("Slice " + n
+					+ " out of range");
+		byte[] data = encode(ip.getPixels());
+		renumber();
+		slices.add(n, data);
+		labels.add(n, sliceLabel);
+		compressedSize += data.length;
+	}
+
+	public synchronized void deleteSlice(int n) {
+		renumber();
+		compressedSize -= slices.remove(n - 1).length;
+		labels.remove(n - 1);
+	}
+
+	public void deleteLastSlice() {
+		if (getSize() > 0)
+			deleteSlice(getSize());
+	}
+
+	/** Returns the decoded pixels of slice n, shared with the cache **/
+	public synchronized Object getPixels(int n) {
+		Object pixels = cache.get(n);
+		if (pixels != null)
+			return pixels;
+		// The array may still be held, and changed, by whoever got it last
+		WeakReference<Object> ref = retired.remove(n);
+		pixels = ref != null ? ref.get() : null;
+		if (pixels != null) {
+			cache.put(n, pixels);
+			return pixels;
+		}
+		byte[] data = slices.get(n - 1);
+		int size = getWidth() * getHeight();
+		switch (bitDepth) {
+		case 8:
+			byte[] bytes = new byte[size];
+			SparseCodec.decode(data, bytes, false);
+			pixels = bytes;
+			break;
+		case 16:
+			short[] shorts = new short[size];
+			SparseCodec.decode(data, shorts, false);
+			pixels = shorts;
+			break;
+		default:
+			float[] floats = new float[size];
+			SparseCodec.decode(data, floats, false);
+			pixels = floats;
+			break;
+		}
+		cache.put(n, pixels);
+		return pixels;
+	}
+
+	/** Compresses pixels into slice n **/
+	public synchronized void setPixels(Object pixels, int n) {
+		byte[] data = encode(pixels);
+		compressedSize += data.length - slices.get(n - 1).length;
+		slices.set(n - 1, data);
+		retired.remove(n);
+		cache.put(n, pixels);
+	}
+
+	/**
+	 * Compresses the slices changed in place, cached ones and ones which
+	 * left the cache but are still held
+	 **/
+	public synchronized void flush() {
+		for (Map.Entry<Integer, Object> entry : cache.entrySet())
+			store(entry.getKey(), entry.getValue());
+		Iterator<Map.Entry<Integer, WeakReference<Object>>> it = retired
+				.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, WeakReference<Object>> entry = it.next();
+			Object pixels = entry.getValue().get();
+			if (pixels != null)
+				store(entry.getKey(), pixels);
+			else
+				it.remove();
+		}
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		Object pixels = getPixels(n);
+		switch (bitDepth) {
+		case 8:
+			return new ByteProcessor(getWidth(), getHeight(), (byte[]) pixels,
+					null);
+		case 16:
+			return new ShortProcessor(getWidth(), getHeight(),
+					(short[]) pixels, null);
+		default:
+			return new FloatProcessor(getWidth(), getHeight(),
+					(float[]) pixels, null);
+		}
+	}
+
+	public synchronized int getSize() {
+		return slices.size();
+	}
+
+	public int size() {
+		return getSize();
+	}
+
+	public synchronized String getSliceLabel(int n) {
+		return labels.get(n - 1);
+	}
+
+	public synchronized void setSliceLabel(String label, int n) {
+		labels.set(n - 1, label);
+	}
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	public void trim() {
+	}
+
+	// Replaces the compressed slice n if pixels no longer match it
+	private void store(int n, Object pixels) {
+		byte[] old = slices.get(n - 1);
+		if (matches(old, pixels))
+			return;
+		byte[] data = encode(pixels);
+		slices.set(n - 1, data);
+		compressedSize += data.length - old.length;
+	}
+
+	private void retire(int n, Object pixels) {
+		// Drop the arrays which are gone before the map grows large
+		if (retired.size() >= cache.size()) {
+			Iterator<WeakReference<Object>> it = retired.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().get() == null)
+					it.remove();
+			}
+		}
+		retired.put(n, new WeakReference<Object>(pixels));
+	}
+
+	// Before slices move, as the cached arrays are keyed by slice number
+	private void renumber() {
+		flush();
+		cache.clear();
+		retired.clear();
+	}
+
+	private static boolean matches(byte[] data, Object pixels) {
+		if (pixels instanceof byte[])
+			return SparseCodec.matches(data, (byte[]) pixels);
+		if (pixels instanceof short[])
+			return SparseCodec.matches(data, (short[]) pixels);
+		return SparseCodec.matches(data, (float[]) pixels);
+	}
+
+	private byte[] encode(Object pixels) {
+		if (pixels instanceof byte[])
+			return SparseCodec.encode((byte[]) pixels);
+		if (pixels instanceof short[])
+			return SparseCodec.encode((short[]) pixels);
+		if (pixels instanceof float[])
+			return SparseCodec.encode((float[]) pixels);
+		throw new IllegalArgumentException("Unsupported pixel type");
+	}
+}
@@ -0,0 +1,97 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF contact sheet                                                   *
+ *                                                                     *
+ * Used by EDF_Browser.                                                *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf.ij;
+
+import java.awt.Font;
+import java.io.*;
+import java.util.*;
+
+import ij.*;
+import ij.process.*;
+
+/**
+ * A virtual stack of contact sheet pages, each a grid of thumbnails with
+ * the file names underneath. Pages are put together from the thumbnail
+ * cache when they are shown, so only the visible page is in memory.
+ **/
+public class EdfContactSheet extends VirtualStack {
+
+	private static final int LABEL_HEIGHT = 14;
+
+	private final List<File> files;
+	private final EdfThumbnails thumbnails;
+	private final int columns;
+	private final int rows;
+
+	public EdfContactSheet(List<File> files, EdfThumbnails thumbnails,
+			int columns, int rows) {
+		super(columns * thumbnails.getSize(), rows
+				* (thumbnails.getSize() + LABEL_HEIGHT), null, null);
+		this.files = new ArrayList<File>(files);
+		this.thumbnails = thumbnails;
+		this.columns = columns;
+		this.rows = rows;
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		int size = thumbnails.getSize();
+		ByteProcessor page = new ByteProcessor(getWidth(), getHeight());
+		page.setFont(new Font("SansSerif", Font.PLAIN, 10));
+		page.setColor(255);
+		int first = (n - 1) * columns * rows;
+		int last = Math.min(files.size(), first + columns * rows);
+		for (int i = first; i < last; i++) {
+			int x = (i - first) % columns * size;
+			int y = (i - first) / columns * (size + LABEL_HEIGHT);
+			File file = files.get(i);
+			try {
+				page.insert(new ByteProcessor(size, size,
+						thumbnails.get(file), null), x, y);
+			} catch (IOException ex) {
+				IJ.log("EDF Browser: " + file.getName() + ": "
+						+ ex.getMessage());
+			}
+			String name = file.getName();
+			while (name.length() > 1
+					&& page.getStringWidth(name) > size - 2)
+				name = name.substring(1);
+			page.drawString(name, x + 1, y + size + LABEL_HEIGHT - 2);
+		}
+		return page;
+	}
+
+	public int getSize() {
+		return Math.max(1, (files.size() + columns * rows - 1)
+				/ (columns * rows));
+	}
+
+	public String getSliceLabel(int n) {
+		int first = (n - 1) * columns * rows;
+		int last = Math.min(files.size(), first + columns * rows) - 1;
+		if (last < first)
+			return null;
+		return files.get(first).getName() + " - " + files.get(last).getName();
+	}
+
+	public int getBitDepth() {
+		return 8;
+	}
+
+	/** The file shown at x, y of page n, or null **/
+	public File getFile(int n, int x, int y) {
+		int size = thumbnails.getSize();
+		if (x < 0 || y < 0 || x >= getWidth() || y >= getHeight())
+			return null;
+		int i = (n - 1) * columns * rows + y / (size + LABEL_HEIGHT) * columns
+				+ x / size;
+		return i < files.size() ? files.get(i) : null;
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF decoded image cache                                             *
+ *                                                                     *
+ * Used by EdfImageJ.open, configured with the EDF_Cache plugin.       *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf.ij;
+
+import java.io.*;
+import java.util.*;
+
+import ij.Prefs;
+
+import esrf.edf.EdfBufferPool;
+import esrf.edf.EdfHeader;
+
+/**
+ * A process wide cache of decoded single frames, for reference images such
+ * as darks, flats and masks which are opened many times in a session.
+ * Entries are keyed by canonical path and checked against the file length
+ * and modification time, so a rewritten file is read again. The least
+ * recently used entries are evicted when the memory cap is exceeded. A cap
+ * of 0, the default, disables the cache.
+ **/
+public class EdfImageCache {
+
+	/** ImageJ preference holding the cache size in MB **/
+	public static final String PREFS_KEY = "edf.cache.mb";
+
+	private static EdfImageCache instance;
+
+	private long maxBytes;
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	// In access order, so iteration starts with the least recently used
+	private final LinkedHashMap<File, Entry> entries = new LinkedHashMap<File, Entry>(
+			16, 0.75f, true);
+
+	private static class Entry {
+		final long length;
+		final long lastModified;
+		final EdfHeader header;
+		final Object pixels;
+		final long bytes;
+
+		Entry(long length, long lastModified, EdfHeader header,
+				Object pixels, long bytes) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.header = header;
+			this.pixels = pixels;
+			this.bytes = bytes;
+		}
+	}
+
+	/** A cache hit, with a private copy of the pixels **/
+	public static class Frame {
+		private final EdfHeader header;
+		private final Object pixels;
+
+		private Frame(EdfHeader header, Object pixels) {
+			this.header = header;
+			this.pixels = pixels;
+		}
+
+		public EdfHeader getHeader() {
+			return header;
+		}
+
+		public Object getPixels() {
+			return pixels;
+		}
+	}
+
+	private EdfImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public static synchronized EdfImageCache getInstance() {
+		// Prefs.getInt only reads IJ_Props, Prefs.get reads what set wrote
+		if (instance == null)
+			instance = new EdfImageCache((long) Prefs.get(PREFS_KEY, 0) << 20);
+		return instance;
+	}
+
+	public synchronized boolean isEnabled() {
+		return maxBytes > 0;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/** Sets the memory cap, 0 disables the cache and empties it **/
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	/** Returns a copy of the cached frame of file, or null **/
+	public synchronized Frame get(File file) throws IOException {
+		if (maxBytes <= 0)
+			return null;
+		File key = file.getCanonicalFile();
+		Entry entry = entries.get(key);
+		if (entry != null
+				&& (entry.length != key.length() || entry.lastModified != key
+						.lastModified())) {
+			remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return new Frame(entry.header, copy(entry.pixels));
+	}
+
+	/** Stores a copy of the pixels of the first frame of file **/
+	public synchronized void put(File file, EdfHeader header, Object pixels)
+			throws IOException {
+		long size = sizeOf(pixels);
+		if (size > maxBytes)
+			return;
+		File key = file.getCanonicalFile();
+		remove(key);
+		entries.put(key, new Entry(key.length(), key.lastModified(), header,
+				copyToPool(pixels), size));
+		bytes += size;
+		trim();
+	}
+
+	public synchronized void clear() {
+		for (Entry entry : entries.values())
+			EdfBufferPool.getShared().release(entry.pixels);
+		entries.clear();
+		bytes = 0;
+	}
+
+	/** Hit and miss counts and memory use, also callable from macros **/
+	public static String getStatistics() {
+		EdfImageCache cache = getInstance();
+		synchronized (cache) {
+			return "EDF cache: " + cache.entries.size() + " images, "
+					+ (cache.bytes >> 20) + " of " + (cache.maxBytes >> 20)
+					+ " MB, " + cache.hits + " hits, " + cache.misses
+					+ " misses, " + cache.evictions + " evictions";
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private void remove(File key) {
+		Entry entry = entries.remove(key);
+		if (entry != null) {
+			bytes -= entry.bytes;
+			EdfBufferPool.getShared().release(entry.pixels);
+		}
+	}
+
+	private void trim() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			Entry entry = it.next();
+			bytes -= entry.bytes;
+			// Entries are private copies, so evicted arrays can be reused
+			EdfBufferPool.getShared().release(entry.pixels);
+			it.remove();
+			evictions++;
+		}
+	}
+
+	private static long sizeOf(Object pixels) {
+		if (pixels instanceof byte[])
+			return ((byte[]) pixels).length;
+		if (pixels instanceof short[])
+			return 2L * ((short[]) pixels).length;
+		return 4L * ((float[]) pixels).length;
+	}
+
+	// The cached copy, in an array from the shared pool
+	private static Object copyToPool(Object pixels) {
+		EdfBufferPool pool = EdfBufferPool.getShared();
+		Object copy;
+		int length;
+		if (pixels instanceof byte[]) {
+			length = ((byte[]) pixels).length;
+			copy = pool.acquireBytes(length);
+		} else if (pixels instanceof short[]) {
+			length = ((short[]) pixels).length;
+			copy = pool.acquireShorts(length);
+		} else {
+			length = ((float[]) pixels).length;
+			copy = pool.acquireFloats(length);
+		}
+		System.arraycopy(pixels, 0, copy, 0, length);
+		return copy;
+	}
+
+	private static Object copy(Object pixels) {
+		if (pixels instanceof byte[])
+			return ((byte[]) pixels).clone();
+		if (pixels instanceof short[])
+			return ((short[]) pixels).clone();
+		return ((float[]) pixels).clone();
+	}
+}
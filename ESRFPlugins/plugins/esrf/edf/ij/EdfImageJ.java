@@ -0,0 +1,289 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * ImageJ adapter for the EDF core library                             *
+ *                                                                     *
+ * Shared by the EDF reader and writer plugins.                        *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf.ij;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+import ij.*;
+import ij.io.FileInfo;
+import ij.process.*;
+
+import esrf.edf.*;
+
+/** Converts between EDF frames and ImageJ images **/
+public class EdfImageJ {
+
+	private EdfImageJ() {
+	}
+
+	/**
+	 * Opens the first frame of an EDF file, or the data blocks of an EHF file
+	 * as a stack. If logKeys is set all header keys are written to the log
+	 * window. EDF frames go through the EdfImageCache when it is enabled.
+	 **/
+	public static ImagePlus open(File file, boolean ehf, boolean logKeys)
+			throws IOException {
+		return open(file, ehf, logKeys, null);
+	}
+
+	/**
+	 * As open, but an EDF frame without a "ByteOrder" key is read with
+	 * defaultOrder, when not null, instead of HighByteFirst
+	 **/
+	public static ImagePlus open(File file, boolean ehf, boolean logKeys,
+			ByteOrder defaultOrder) throws IOException {
+		EdfImageCache cache = EdfImageCache.getInstance();
+		if (!ehf && cache.isEnabled()) {
+			EdfImageCache.Frame frame = cache.get(file);
+			// Cached pixels were decoded with the HighByteFirst default
+			if (frame != null
+					&& (defaultOrder == null || frame.getHeader().get(
+							"ByteOrder") != null)) {
+				if (logKeys)
+					log(frame.getHeader());
+				return createImage(file.getName(), frame.getHeader(),
+						createProcessor(frame.getHeader(), frame.getPixels()),
+						file);
+			}
+		}
+		EdfFrameReader reader = new EdfFrameReader(file);
+		try {
+			if (ehf)
+				return openDataBlocks(file, reader, logKeys);
+			EdfHeader read = reader.readHeader();
+			EdfHeader header = defaultOrder != null ? read
+					.withDefaultByteOrder(defaultOrder) : read;
+			if (logKeys)
+				log(header);
+			ImagePlus imp = createImage(file.getName(), reader, header);
+			if (cache.isEnabled() && header == read)
+				cache.put(file, header, imp.getProcessor().getPixels());
+			return imp;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Reads all EHF data blocks of the same size and type as the first one.
+	 * The blocks are indexed in one pass and blocks sharing a binary file read
+	 * it through a single channel.
+	 **/
+	private static ImagePlus openDataBlocks(File file, EdfFrameReader reader,
+			boolean logKeys) throws IOException {
+		List<EdfHeader> blocks = reader.readBlockIndex(true).getDataBlocks();
+		if (blocks.isEmpty())
+			throw new EdfFormatException("No EDF_DataBlockID found in "
+					+ file);
+		EdfHeader first = blocks.get(0);
+		if (logKeys)
+			log(first);
+		if (blocks.size() == 1)
+			return createImage(file.getName(), reader, first);
+
+		EdfChannelPool pool = new EdfChannelPool();
+		reader.setChannelPool(pool);
+		try {
+			int bitDepth = getBitDepth(first.getDataType());
+			ImageStack stack = new ImageStack(first.getWidth(),
+					first.getHeight());
+			for (EdfHeader block : blocks) {
+				if (block.getWidth() != first.getWidth()
+						|| block.getHeight() != first.getHeight()
+						|| block.getDataType() == null
+						|| getBitDepth(block.getDataType()) != bitDepth) {
+					IJ.log("Skipping data block "
+							+ block.get("EDF_DataBlockID")
+							+ ": size or type differs from first block");
+					continue;
+				}
+				stack.addSlice(block.get("EDF_DataBlockID"), readProcessor(
+						reader, block));
+			}
+			ImagePlus imp = new ImagePlus(file.getName(), stack);
+			if (first.getDataType() == EdfDataType.SIGNED_SHORT)
+				imp.getCalibration().setSigned16BitCalibration();
+			imp.setFileInfo(getFileInfo(first, file));
+			return imp;
+		} finally {
+			reader.setChannelPool(null);
+			pool.close();
+		}
+	}
+
+	/** Reads a frame into a new ImagePlus **/
+	public static ImagePlus createImage(String title, EdfFrameReader reader,
+			EdfHeader header) throws IOException {
+		return createImage(title, header, readProcessor(reader, header),
+				reader.getFile());
+	}
+
+	/** Wraps a decoded frame of file in a new ImagePlus **/
+	public static ImagePlus createImage(String title, EdfHeader header,
+			ImageProcessor ip, File file) {
+		ImagePlus imp = new ImagePlus(title, ip);
+		if (header.getDataType() == EdfDataType.SIGNED_SHORT)
+			imp.getCalibration().setSigned16BitCalibration();
+		imp.setFileInfo(getFileInfo(header, file));
+		imp.setProperty("Info", header.toString());
+		return imp;
+	}
+
+	/**
+	 * Reads a frame into a processor of the matching ImageJ type. 32 and 64-bit
+	 * data is converted to floating point, and signed 16-bit data is offset by
+	 * 32768 in the same way as ImageJ does for raw files.
+	 **/
+	public static ImageProcessor readProcessor(EdfFrameReader reader,
+			EdfHeader header) throws IOException {
+		Object pixels = createPixels(header);
+		readPixels(reader, header, pixels);
+		return createProcessor(header, pixels);
+	}
+
+	/** Wraps pixels allocated by createPixels in a processor **/
+	public static ImageProcessor createProcessor(EdfHeader header,
+			Object pixels) {
+		int width = header.getWidth();
+		int height = header.getHeight();
+		if (pixels instanceof byte[])
+			return new ByteProcessor(width, height, (byte[]) pixels, null);
+		if (pixels instanceof short[])
+			return new ShortProcessor(width, height, (short[]) pixels, null);
+		return new FloatProcessor(width, height, (float[]) pixels, null);
+	}
+
+	/** The ImageJ bit depth (8, 16 or 32) used for an EDF data type **/
+	public static int getBitDepth(EdfDataType type) throws EdfFormatException {
+		if (type == null)
+			throw new EdfFormatException("Unknown data type");
+		switch (type) {
+		case UNSIGNED_BYTE:
+		case SIGNED_BYTE:
+			return 8;
+		case UNSIGNED_SHORT:
+		case SIGNED_SHORT:
+			return 16;
+		default:
+			return 32;
+		}
+	}
+
+	/** Allocates a pixel array of the ImageJ type used for the frame **/
+	public static Object createPixels(EdfHeader header)
+			throws EdfFormatException {
+		if (header.getDataType() == null)
+			throw new EdfFormatException("Unknown data type "
+					+ header.get("DataType"));
+		int n = header.getPixelCount();
+		switch (getBitDepth(header.getDataType())) {
+		case 8:
+			return new byte[n];
+		case 16:
+			return new short[n];
+		default:
+			return new float[n];
+		}
+	}
+
+	/**
+	 * Reads a frame into a pixel array allocated by createPixels, which may be
+	 * reused for all frames of the same size and type
+	 **/
+	public static void readPixels(EdfFrameReader reader, EdfHeader header,
+			Object pixels) throws IOException {
+		if (pixels instanceof byte[]) {
+			reader.read(header, (byte[]) pixels);
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[]) pixels;
+			reader.read(header, shorts);
+			if (header.getDataType() == EdfDataType.SIGNED_SHORT) {
+				for (int i = 0; i < shorts.length; i++)
+					shorts[i] = (short) (shorts[i] + 32768);
+			}
+		} else {
+			reader.read(header, (float[]) pixels);
+		}
+	}
+
+	/**
+	 * Decodes the raw data of a whole frame, in its byte order, into a pixel
+	 * array of the type createPixels allocates, converting like readPixels.
+	 * convert holds scratch space and must not be shared between threads.
+	 **/
+	public static Object decodePixels(EdfHeader header, ByteBuffer data,
+			EdfConvert convert) throws EdfFormatException {
+		Object pixels = createPixels(header);
+		int n = header.getPixelCount();
+		if (pixels instanceof byte[]) {
+			data.get((byte[]) pixels, 0, n);
+		} else if (pixels instanceof short[]) {
+			short[] shorts = (short[]) pixels;
+			data.asShortBuffer().get(shorts, 0, n);
+			if (header.getDataType() == EdfDataType.SIGNED_SHORT) {
+				for (int i = 0; i < n; i++)
+					shorts[i] = (short) (shorts[i] + 32768);
+			}
+		} else {
+			convert.toFloat(data, header.getDataType(), (float[]) pixels, 0, n);
+		}
+		return pixels;
+	}
+
+	/** Describes the frame as a raw ImageJ file **/
+	public static FileInfo getFileInfo(EdfHeader header, File file) {
+		File dataFile = header.getDataFile(file);
+		FileInfo fileInfo = new FileInfo();
+		fileInfo.fileFormat = FileInfo.RAW;
+		fileInfo.fileName = dataFile.getName();
+		fileInfo.directory = dataFile.getParent() + File.separator;
+		fileInfo.width = header.getWidth();
+		fileInfo.height = header.getHeight();
+		// FileInfo.offset is an int, longOffset takes precedence when set
+		long offset = header.getDataOffset();
+		fileInfo.longOffset = offset;
+		fileInfo.offset = offset <= Integer.MAX_VALUE ? (int) offset : 0;
+		fileInfo.nImages = 1;
+		fileInfo.intelByteOrder = header.getByteOrder() == java.nio.ByteOrder.LITTLE_ENDIAN;
+		fileInfo.fileType = getFileType(header.getDataType());
+		return fileInfo;
+	}
+
+	public static int getFileType(EdfDataType type) {
+		if (type == null)
+			return FileInfo.GRAY16_UNSIGNED;
+		switch (type) {
+		case UNSIGNED_BYTE:
+		case SIGNED_BYTE:
+			return FileInfo.GRAY8;
+		case SIGNED_SHORT:
+			return FileInfo.GRAY16_SIGNED;
+		case UNSIGNED_SHORT:
+			return FileInfo.GRAY16_UNSIGNED;
+		case SIGNED_INTEGER:
+			return FileInfo.GRAY32_INT;
+		case UNSIGNED_INTEGER:
+			return FileInfo.GRAY32_UNSIGNED;
+		case DOUBLE:
+			return FileInfo.GRAY64_FLOAT;
+		default:
+			return FileInfo.GRAY32_FLOAT;
+		}
+	}
+
+	public static void log(EdfHeader header) {
+		for (Map.Entry<String, String> entry : header.getKeys().entrySet())
+			IJ.log(entry.getKey() + ": " + entry.getValue());
+	}
+}
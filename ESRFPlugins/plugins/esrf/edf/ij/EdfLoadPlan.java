@@ -0,0 +1,125 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF stack load plan                                                 *
+ *                                                                     *
+ * Used by EDF_StackReader to decide how a series is loaded.           *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf.ij;
+
+import ij.IJ;
+
+import esrf.edf.*;
+
+/**
+ * Chooses between loading a series onto the heap, as a virtual stack or
+ * binned, by comparing the size of the stack with the free heap less the
+ * read buffers of the load
+ **/
+public class EdfLoadPlan {
+
+	public static final int FULL = 0;
+	public static final int VIRTUAL = 1;
+	public static final int BINNED = 2;
+
+	// Part of the free heap a stack may use, the rest is left for processing
+	private static final double HEAP_FRACTION = 0.75;
+	private static final int MAX_AUTO_BIN = 2;
+
+	private final int mode;
+	private final int binFactor;
+	private final long bytesNeeded;
+	private final long bytesAvailable;
+	private final String reason;
+
+	private EdfLoadPlan(int mode, int binFactor, long bytesNeeded,
+			long bytesAvailable, String reason) {
+		this.mode = mode;
+		this.binFactor = binFactor;
+		this.bytesNeeded = bytesNeeded;
+		this.bytesAvailable = bytesAvailable;
+		this.reason = reason;
+	}
+
+	/**
+	 * parallelReads is the number of reads in flight of the load, more than
+	 * 1 for EdfParallelLoader
+	 **/
+	public static EdfLoadPlan choose(EdfSeriesScan scan, int parallelReads)
+			throws EdfFormatException {
+		EdfHeader reference = scan.getReference();
+		long needed = getStackSize(scan, 1);
+		long buffers = getBufferSize(reference, parallelReads);
+		long available = (long) ((IJ.maxMemory() - IJ.currentMemory()) * HEAP_FRACTION)
+				- buffers;
+		String sizes = scan.size() + " images of " + reference.getWidth()
+				+ "x" + reference.getHeight() + " need " + toMB(needed)
+				+ ", " + toMB(available) + " usable of free heap after "
+				+ toMB(buffers) + " of read buffers";
+		if (needed <= available)
+			return new EdfLoadPlan(FULL, 1, needed, available, sizes
+					+ ": loading into memory");
+		for (int bin = 2; bin <= MAX_AUTO_BIN; bin++) {
+			long binned = getStackSize(scan, bin);
+			if (binned <= available)
+				return new EdfLoadPlan(BINNED, bin, binned, available, sizes
+						+ ": loading binned " + bin + "x" + bin + " ("
+						+ toMB(binned) + ")");
+		}
+		return new EdfLoadPlan(VIRTUAL, 1, needed, available, sizes
+				+ ": opening as virtual stack");
+	}
+
+	/** Heap needed for the accepted images, as ImageJ stores them **/
+	public static long getStackSize(EdfSeriesScan scan, int binFactor)
+			throws EdfFormatException {
+		EdfHeader reference = scan.getReference();
+		if (reference == null)
+			return 0;
+		long width = reference.getWidth() / binFactor;
+		long height = reference.getHeight() / binFactor;
+		int bytesPerPixel = EdfImageJ.getBitDepth(reference.getDataType()) / 8;
+		return scan.size() * width * height * bytesPerPixel;
+	}
+
+	/**
+	 * Heap the frames being read can take besides the stack: the window of
+	 * EdfParallelLoader, or one frame when the files are read one by one
+	 **/
+	public static long getBufferSize(EdfHeader reference, int parallelReads) {
+		if (reference == null)
+			return 0;
+		if (parallelReads <= 1)
+			return reference.getFrameSize();
+		return new EdfParallelLoader(parallelReads)
+				.getBufferedBytes(reference.getFrameSize());
+	}
+
+	public int getMode() {
+		return mode;
+	}
+
+	public int getBinFactor() {
+		return binFactor;
+	}
+
+	public long getBytesNeeded() {
+		return bytesNeeded;
+	}
+
+	public long getBytesAvailable() {
+		return bytesAvailable;
+	}
+
+	/** Why this plan was chosen, for the log window **/
+	public String getReason() {
+		return reason;
+	}
+
+	private static String toMB(long bytes) {
+		return (bytes >> 20) + " MB";
+	}
+}
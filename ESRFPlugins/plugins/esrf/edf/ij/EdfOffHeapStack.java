@@ -0,0 +1,211 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * Off-heap EDF stack                                                  *
+ *                                                                     *
+ * Used by EDF_StackReader for stacks larger than the Java heap.       *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf.ij;
+
+import java.io.*;
+import java.util.*;
+
+import ij.*;
+import ij.process.*;
+
+import esrf.edf.OffHeapSliceStore;
+
+/**
+ * A stack whose pixel data lives in an OffHeapSliceStore. ImageJ treats it as
+ * a virtual stack: each getProcessor call copies the slice onto the heap and
+ * setPixels copies edits back.
+ **/
+public class EdfOffHeapStack extends VirtualStack {
+
+	private final int bitDepth;
+	private final OffHeapSliceStore store;
+	private final List<String> labels = new ArrayList<String>();
+
+	/**
+	 * If scratchDirectory is null the slices are held in direct memory,
+	 * otherwise in a memory mapped scratch file in that directory
+	 **/
+	public EdfOffHeapStack(int width, int height, int bitDepth,
+			File scratchDirectory) throws IOException {
+		super(width, height, null, null);
+		if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+			throw new IllegalArgumentException("Unsupported bit depth "
+					+ bitDepth);
+		this.bitDepth = bitDepth;
+		long sliceSize = (long) width * height * (bitDepth / 8);
+		if (sliceSize > OffHeapSliceStore.MAX_SLICE_SIZE)
+			throw new IllegalArgumentException("Slices of " + width + "x"
+					+ height + " " + bitDepth + "-bit pixels are larger than "
+					+ (OffHeapSliceStore.MAX_SLICE_SIZE >> 20)
+					+ " MB, too large to keep off-heap");
+		store = new OffHeapSliceStore((int) sliceSize, scratchDirectory);
+	}
+
+	/** Number of bytes held outside the heap **/
+	public long getOffHeapSize() {
+		return store.getCapacity();
+	}
+
+	/**
+	 * Appends a slice, throwing an IOException when the direct memory or
+	 * scratch space is used up
+	 **/
+	public void append(String sliceLabel, Object pixels) throws IOException {
+		insert(getSize(), sliceLabel, pixels);
+	}
+
+	public void addSlice(String sliceLabel, Object pixels) {
+		try {
+			append(sliceLabel, pixels);
+		} catch (IOException ex) {
+			throw new RuntimeException("Cannot add slice: " + ex.getMessage(),
+					ex);
+		}
+	}
+
+	public void addSlice(String sliceLabel, ImageProcessor ip) {
+		if (ip.getWidth() != getWidth() || ip.getHeight() != getHeight())
+			throw new IllegalArgumentException("Dimensions do not match");
+		addSlice(sliceLabel, ip.getPixels());
+	}
+
+	/** Inserts ip after slice n, at the start if n is 0 **/
+	public void addSlice(String sliceLabel, ImageProcessor ip, int n) {
+		if (ip.getWidth() != getWidth() || ip.getHeight() != getHeight())
+			throw new IllegalArgumentException("Dimensions do not match");
+		if (n < 0 || n > getSize())
+			throw new IllegalArgumentException("Slice " + n
+					+ " out of range");
+		try {
+			insert(n, sliceLabel, ip.getPixels());
+		} catch (IOException ex) {
+			IJ.error("Off-heap stack", "Cannot add slice: " + ex.getMessage());
+		}
+	}
+
+	public void deleteSlice(int n) {
+		store.remove(n - 1);
+		labels.remove(n - 1);
+	}
+
+	public void deleteLastSlice() {
+		if (getSize() > 0)
+			deleteSlice(getSize());
+	}
+
+	/** Returns a copy of slice n, with n starting at 1 **/
+	public Object getPixels(int n) {
+		int size = getWidth() * getHeight();
+		switch (bitDepth) {
+		case 8:
+			byte[] bytes = new byte[size];
+			store.get(n - 1, bytes);
+			return bytes;
+		case 16:
+			short[] shorts = new short[size];
+			store.get(n - 1, shorts);
+			return shorts;
+		default:
+			float[] floats = new float[size];
+			store.get(n - 1, floats);
+			return floats;
+		}
+	}
+
+	/** Copies pixels back into slice n **/
+	public void setPixels(Object pixels, int n) {
+		if (pixels instanceof byte[])
+			store.set(n - 1, (byte[]) pixels);
+		else if (pixels instanceof short[])
+			store.set(n - 1, (short[]) pixels);
+		else if (pixels instanceof float[])
+			store.set(n - 1, (float[]) pixels);
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		Object pixels = getPixels(n);
+		switch (bitDepth) {
+		case 8:
+			return new ByteProcessor(getWidth(), getHeight(), (byte[]) pixels,
+					null);
+		case 16:
+			return new ShortProcessor(getWidth(), getHeight(),
+					(short[]) pixels, null);
+		default:
+			return new FloatProcessor(getWidth(), getHeight(),
+					(float[]) pixels, null);
+		}
+	}
+
+	public int getSize() {
+		return store.getSize();
+	}
+
+	public int size() {
+		return getSize();
+	}
+
+	public String getSliceLabel(int n) {
+		return labels.get(n - 1);
+	}
+
+	public void setSliceLabel(String label, int n) {
+		labels.set(n - 1, label);
+	}
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	public void trim() {
+	}
+
+	private void insert(int n, String sliceLabel, Object pixels)
+			throws IOException {
+		if (pixels instanceof byte[])
+			store.add(n, (byte[]) pixels);
+		else if (pixels instanceof short[])
+			store.add(n, (short[]) pixels);
+		else if (pixels instanceof float[])
+			store.add(n, (float[]) pixels);
+		else
+			throw new IllegalArgumentException("Unsupported pixel type");
+		labels.add(n, sliceLabel);
+	}
+
+	/** Releases the off-heap memory and deletes any scratch file **/
+	public void close() throws IOException {
+		store.close();
+		labels.clear();
+	}
+
+	/** Closes this stack when the window of imp is closed **/
+	public void closeWith(final ImagePlus imp) {
+		ImagePlus.addImageListener(new ImageListener() {
+			public void imageOpened(ImagePlus image) {
+			}
+
+			public void imageUpdated(ImagePlus image) {
+			}
+
+			public void imageClosed(ImagePlus image) {
+				if (image != imp)
+					return;
+				ImagePlus.removeImageListener(this);
+				try {
+					close();
+				} catch (IOException ex) {
+					IJ.log("IOException caught: " + ex);
+				}
+			}
+		});
+	}
+}
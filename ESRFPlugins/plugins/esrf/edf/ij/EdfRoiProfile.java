@@ -0,0 +1,182 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF ROI intensity profile                                           *
+ *                                                                     *
+ * Used by EDF_RoiProfile.                                             *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf.ij;
+
+import java.awt.Rectangle;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import esrf.edf.*;
+
+/**
+ * Sums the pixels inside a set of ROIs over a series of EDF files. Only the
+ * rows covered by the ROIs are read from each file, a bounded number of
+ * rows at a time, and files are measured in parallel, each worker reusing
+ * one row buffer, so neither the series nor a whole frame is ever held in
+ * memory.
+ **/
+public class EdfRoiProfile {
+
+	// Pixels read at a time per worker, 1 MB of floats
+	private static final int CHUNK_PIXELS = 1 << 18;
+
+	private final Roi[] rois;
+	private final Rectangle[] bounds;
+	private final byte[][] masks;
+	// Row intervals, first and last + 1, covered by any ROI, merged
+	private final List<int[]> bands = new ArrayList<int[]>();
+
+	private double[][] sums;
+	private int[][] counts;
+	private final Map<File, String> failed = new ConcurrentHashMap<File, String>();
+
+	public EdfRoiProfile(Roi[] rois) {
+		this.rois = rois.clone();
+		bounds = new Rectangle[rois.length];
+		masks = new byte[rois.length][];
+		List<int[]> rows = new ArrayList<int[]>();
+		for (int r = 0; r < rois.length; r++) {
+			bounds[r] = rois[r].getBounds();
+			ImageProcessor mask = rois[r].getMask();
+			// Rectangles have no mask
+			if (mask != null)
+				masks[r] = (byte[]) mask.getPixels();
+			rows.add(new int[] { bounds[r].y, bounds[r].y + bounds[r].height });
+		}
+		Collections.sort(rows, new Comparator<int[]>() {
+			public int compare(int[] a, int[] b) {
+				return a[0] - b[0];
+			}
+		});
+		for (int[] band : rows) {
+			int[] last = bands.isEmpty() ? null : bands.get(bands.size() - 1);
+			if (last != null && band[0] <= last[1])
+				last[1] = Math.max(last[1], band[1]);
+			else
+				bands.add(band.clone());
+		}
+	}
+
+	/** Measures every file with the given number of reader threads **/
+	public void measure(final List<File> files, int threads)
+			throws InterruptedException {
+		sums = new double[files.size()][rois.length];
+		counts = new int[files.size()][rois.length];
+		failed.clear();
+		final AtomicInteger done = new AtomicInteger();
+		final ThreadLocal<float[]> buffers = new ThreadLocal<float[]>();
+		String[] reasons;
+		try {
+			reasons = EdfWorkers.run(files.size(), threads,
+					new EdfWorkers.Task() {
+						public void run(int frame) throws IOException {
+							try {
+								measure(files.get(frame), frame, buffers);
+							} finally {
+								IJ.showProgress(done.incrementAndGet(), files
+										.size());
+							}
+						}
+					});
+		} finally {
+			IJ.showProgress(1.0);
+		}
+		// A frame which failed half way is left out altogether
+		for (int i = 0; i < files.size(); i++) {
+			if (reasons[i] != null) {
+				Arrays.fill(counts[i], 0);
+				failed.put(files.get(i), reasons[i]);
+			}
+		}
+	}
+
+	private void measure(File file, int frame, ThreadLocal<float[]> buffers)
+			throws IOException {
+		EdfFrameReader reader = new EdfFrameReader(file);
+		try {
+			EdfHeader header = reader.readHeader();
+			int width = header.getWidth();
+			int height = header.getHeight();
+			int chunk = Math.max(1, CHUNK_PIXELS / Math.max(1, width));
+			for (int[] band : bands) {
+				int bottom = Math.min(height, band[1]);
+				for (int y0 = Math.max(0, band[0]); y0 < bottom; y0 += chunk) {
+					int y1 = Math.min(bottom, y0 + chunk);
+					float[] rows = buffers.get();
+					if (rows == null || rows.length < width * (y1 - y0)) {
+						rows = new float[width * (y1 - y0)];
+						buffers.set(rows);
+					}
+					reader.readRows(header, y0, y1 - y0, rows);
+					for (int r = 0; r < rois.length; r++)
+						accumulate(frame, r, rows, width, y0, y1);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	// Adds the pixels of ROI r in rows y0 to y1 - 1, held in rows
+	private void accumulate(int frame, int r, float[] rows, int width,
+			int y0, int y1) {
+		Rectangle b = bounds[r];
+		byte[] mask = masks[r];
+		int top = Math.max(y0, b.y);
+		int bottom = Math.min(y1, b.y + b.height);
+		int left = Math.max(0, b.x);
+		int right = Math.min(width, b.x + b.width);
+		double sum = 0;
+		int count = 0;
+		for (int y = top; y < bottom; y++) {
+			int offset = (y - y0) * width;
+			int maskOffset = (y - b.y) * b.width - b.x;
+			for (int x = left; x < right; x++) {
+				if (mask == null || mask[maskOffset + x] != 0) {
+					sum += rows[offset + x];
+					count++;
+				}
+			}
+		}
+		sums[frame][r] += sum;
+		counts[frame][r] += count;
+	}
+
+	public int getRoiCount() {
+		return rois.length;
+	}
+
+	/** The sum of the pixels of ROI r in frame, NaN if it failed **/
+	public double getSum(int frame, int r) {
+		return counts[frame][r] > 0 ? sums[frame][r] : Double.NaN;
+	}
+
+	/** The mean of the pixels of ROI r in frame, NaN if it failed **/
+	public double getMean(int frame, int r) {
+		return counts[frame][r] > 0 ? sums[frame][r] / counts[frame][r]
+				: Double.NaN;
+	}
+
+	public int getPixelCount(int frame, int r) {
+		return counts[frame][r];
+	}
+
+	/** Files which could not be measured, with the reason **/
+	public Map<File, String> getFailed() {
+		return Collections.unmodifiableMap(failed);
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF thumbnails                                                      *
+ *                                                                     *
+ * Used by EDF_Browser.                                                *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf.ij;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.*;
+import ij.plugin.ContrastEnhancer;
+import ij.process.*;
+
+import esrf.edf.*;
+
+/**
+ * Square 8-bit thumbnails of EDF files, made from a decimated read of the
+ * first frame and kept in a directory on disk. Cache entries are named by a
+ * digest of the canonical path, length, modification time and thumbnail
+ * size, so a rewritten file gets a new thumbnail and stale entries are
+ * simply never read again.
+ **/
+public class EdfThumbnails {
+
+	private static final double SATURATED = 0.35;
+
+	private final File directory;
+	private final int size;
+
+	public EdfThumbnails(File directory, int size) {
+		this.directory = directory;
+		this.size = size;
+		directory.mkdirs();
+	}
+
+	/** The cache directory under the ImageJ preferences directory **/
+	public static File getDefaultDirectory() {
+		return new File(Prefs.getPrefsDir(), "edf-thumbnails");
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the size by size thumbnail of file, centred on black, from the
+	 * cache or made and cached now
+	 **/
+	public byte[] get(File file) throws IOException {
+		File entry = getEntry(file);
+		byte[] thumbnail = readEntry(entry);
+		if (thumbnail != null)
+			return thumbnail;
+		thumbnail = create(file);
+		writeEntry(entry, thumbnail);
+		return thumbnail;
+	}
+
+	/**
+	 * Makes the missing thumbnails of files with the given number of threads,
+	 * and returns the files which failed with the reason
+	 **/
+	public Map<File, String> prefetch(final List<File> files, int threads)
+			throws InterruptedException {
+		final AtomicInteger done = new AtomicInteger();
+		String[] reasons;
+		try {
+			reasons = EdfWorkers.run(files.size(), threads,
+					new EdfWorkers.Task() {
+						public void run(int index) throws IOException {
+							try {
+								File file = files.get(index);
+								File entry = getEntry(file);
+								if (!entry.isFile())
+									writeEntry(entry, create(file));
+							} finally {
+								IJ.showProgress(done.incrementAndGet(), files
+										.size());
+							}
+						}
+					});
+		} finally {
+			IJ.showProgress(1.0);
+		}
+		Map<File, String> failed = new LinkedHashMap<File, String>();
+		for (int i = 0; i < files.size(); i++) {
+			if (reasons[i] != null)
+				failed.put(files.get(i), reasons[i]);
+		}
+		return failed;
+	}
+
+	private byte[] create(File file) throws IOException {
+		EdfFrameReader reader = new EdfFrameReader(file);
+		try {
+			EdfHeader header = reader.readHeader();
+			int step = Math.max(1, (Math.max(header.getWidth(), header
+					.getHeight()) + size - 1) / size);
+			int width = (header.getWidth() + step - 1) / step;
+			int height = (header.getHeight() + step - 1) / step;
+			float[] pixels = new float[width * height];
+			reader.readDecimated(header, step, pixels);
+
+			ImageProcessor ip = new FloatProcessor(width, height, pixels, null);
+			new ContrastEnhancer().stretchHistogram(ip, SATURATED);
+			byte[] small = (byte[]) ip.convertToByte(true).getPixels();
+			byte[] thumbnail = new byte[size * size];
+			int x0 = (size - width) / 2;
+			int y0 = (size - height) / 2;
+			for (int y = 0; y < height; y++)
+				System.arraycopy(small, y * width, thumbnail, (y0 + y) * size
+						+ x0, width);
+			return thumbnail;
+		} finally {
+			reader.close();
+		}
+	}
+
+	private File getEntry(File file) throws IOException {
+		String key = EdfDiskCache.describe(file) + '\n' + size;
+		return new File(directory, EdfDiskCache.digest(key, null) + ".thumb");
+	}
+
+	private byte[] readEntry(File entry) {
+		if (entry.length() != size * size)
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(entry));
+			try {
+				byte[] thumbnail = new byte[size * size];
+				in.readFully(thumbnail);
+				return thumbnail;
+			} finally {
+				in.close();
+			}
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	private void writeEntry(File entry, final byte[] thumbnail)
+			throws IOException {
+		EdfDiskCache.write(entry, new EdfDiskCache.Writer() {
+			public void write(File file) throws IOException {
+				OutputStream out = new FileOutputStream(file);
+				try {
+					out.write(thumbnail);
+				} finally {
+					out.close();
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF tiled image canvas                                              *
+ *                                                                     *
+ * Used by EdfRead_ for frames too large to open as one image.         *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf.ij;
+
+import java.io.*;
+import java.util.Arrays;
+
+import ij.*;
+import ij.gui.*;
+import ij.measure.Calibration;
+import ij.plugin.ContrastEnhancer;
+import ij.process.FloatProcessor;
+
+import esrf.edf.EdfPyramid;
+
+/**
+ * Shows a window-sized view of an EdfPyramid. Zooming in and out (the "+"
+ * and "-" keys, or the mouse wheel with Ctrl) moves between pyramid levels,
+ * and scrolling (the hand tool, or dragging with the space bar) moves the
+ * view, so only the tiles under the view are read. The calibration maps
+ * view pixels to full resolution pixel coordinates.
+ **/
+public class EdfTiledCanvas extends ImageCanvas {
+
+	private static final long serialVersionUID = 1L;
+
+	/** ImageJ preference holding the pyramid cache directory **/
+	public static final String PREFS_DIR_KEY = "edf.pyramid.dir";
+	/** ImageJ preference holding the pyramid cache limit in MB **/
+	public static final String PREFS_SIZE_KEY = "edf.pyramid.mb";
+
+	private static final int DEFAULT_CACHE_SIZE = 4096;
+
+	// Largest view, in screen pixels
+	private static final int VIEW_SIZE = 1024;
+	private static final double SATURATED = 0.35;
+
+	private final ImagePlus view;
+	private final EdfPyramid pyramid;
+	private final String title;
+	private int level;
+	// Top left corner of the view in full resolution pixels
+	private int originX;
+	private int originY;
+
+	// Where a scroll started
+	private int startX;
+	private int startY;
+	private int startOriginX;
+	private int startOriginY;
+
+	private EdfTiledCanvas(ImagePlus view, EdfPyramid pyramid, String title) {
+		super(view);
+		this.view = view;
+		this.pyramid = pyramid;
+		this.title = title;
+		level = getFitLevel();
+	}
+
+	/**
+	 * The pyramid cache directory, edf-pyramids under the ImageJ preferences
+	 * directory unless set
+	 **/
+	public static File getCacheDirectory() {
+		String path = Prefs.get(PREFS_DIR_KEY, "");
+		if (path.length() == 0)
+			return new File(Prefs.getPrefsDir(), "edf-pyramids");
+		return new File(path);
+	}
+
+	/** Bytes the pyramid cache may take before the oldest are removed **/
+	public static long getCacheLimit() {
+		return (long) Prefs.get(PREFS_SIZE_KEY, DEFAULT_CACHE_SIZE) << 20;
+	}
+
+	/**
+	 * Shows the whole frame in a new window, at the finest level which fits.
+	 * The pyramid is closed with the window.
+	 **/
+	public static ImagePlus show(final EdfPyramid pyramid, String title)
+			throws IOException {
+		int width = Math.min(VIEW_SIZE, pyramid.getWidth(0));
+		int height = Math.min(VIEW_SIZE, pyramid.getHeight(0));
+		final ImagePlus imp = new ImagePlus(title, new FloatProcessor(width,
+				height));
+		EdfTiledCanvas canvas = new EdfTiledCanvas(imp, pyramid, title);
+		canvas.render();
+
+		// The display range of the coarsest level is kept for all views
+		int top = pyramid.getLevels() - 1;
+		FloatProcessor overview = new FloatProcessor(pyramid.getWidth(top),
+				pyramid.getHeight(top));
+		pyramid.readRegion(top, 0, 0, overview.getWidth(), overview
+				.getHeight(), (float[]) overview.getPixels());
+		overview.resetMinAndMax();
+		new ContrastEnhancer().stretchHistogram(overview, SATURATED);
+		imp.setDisplayRange(overview.getMin(), overview.getMax());
+
+		ImagePlus.addImageListener(new ImageListener() {
+			public void imageOpened(ImagePlus image) {
+			}
+
+			public void imageUpdated(ImagePlus image) {
+			}
+
+			public void imageClosed(ImagePlus image) {
+				if (image != imp)
+					return;
+				ImagePlus.removeImageListener(this);
+				try {
+					pyramid.close();
+				} catch (IOException ex) {
+					IJ.log("IOException caught: " + ex);
+				}
+			}
+		});
+		new ImageWindow(imp, canvas);
+		return imp;
+	}
+
+	public void zoomIn(int sx, int sy) {
+		if (level > 0)
+			zoomTo(level - 1, offScreenX(sx), offScreenY(sy));
+	}
+
+	public void zoomOut(int sx, int sy) {
+		if (level < pyramid.getLevels() - 1)
+			zoomTo(level + 1, offScreenX(sx), offScreenY(sy));
+	}
+
+	/** Back to the whole frame **/
+	public void unzoom() {
+		level = getFitLevel();
+		originX = 0;
+		originY = 0;
+		render();
+	}
+
+	protected void setupScroll(int ox, int oy) {
+		startX = ox;
+		startY = oy;
+		startOriginX = originX;
+		startOriginY = originY;
+	}
+
+	protected void scroll(int sx, int sy) {
+		int scale = 1 << level;
+		double magnification = getMagnification();
+		originX = startOriginX - (int) ((sx - startX) / magnification) * scale;
+		originY = startOriginY - (int) ((sy - startY) / magnification) * scale;
+		render();
+	}
+
+	// Keeps the full resolution pixel under the view pixel vx, vy in place
+	private void zoomTo(int newLevel, int vx, int vy) {
+		originX += vx * ((1 << level) - (1 << newLevel));
+		originY += vy * ((1 << level) - (1 << newLevel));
+		level = newLevel;
+		render();
+	}
+
+	// The finest level at which the whole frame fits in the view
+	private int getFitLevel() {
+		int fit = 0;
+		while (fit < pyramid.getLevels() - 1
+				&& (pyramid.getWidth(fit) > view.getWidth() || pyramid
+						.getHeight(fit) > view.getHeight()))
+			fit++;
+		return fit;
+	}
+
+	// Fills the view from the tiles of the current level
+	private void render() {
+		int scale = 1 << level;
+		int width = pyramid.getWidth(level);
+		int height = pyramid.getHeight(level);
+		int viewWidth = view.getWidth();
+		int viewHeight = view.getHeight();
+		originX = Math.max(0, Math.min(originX, (width - viewWidth) * scale));
+		originY = Math.max(0, Math.min(originY, (height - viewHeight)
+				* scale));
+		int x = originX / scale;
+		int y = originY / scale;
+		int w = Math.min(viewWidth, width - x);
+		int h = Math.min(viewHeight, height - y);
+
+		float[] pixels = (float[]) view.getProcessor().getPixels();
+		if (w < viewWidth || h < viewHeight)
+			Arrays.fill(pixels, 0f);
+		float[] region = new float[w * h];
+		try {
+			pyramid.readRegion(level, x, y, w, h, region);
+		} catch (IOException ex) {
+			IJ.log("IOException caught: " + ex);
+			return;
+		}
+		for (int row = 0; row < h; row++)
+			System.arraycopy(region, row * w, pixels, row * viewWidth, w);
+
+		Calibration cal = view.getCalibration();
+		cal.pixelWidth = scale;
+		cal.pixelHeight = scale;
+		cal.xOrigin = -x;
+		cal.yOrigin = -y;
+		view.setTitle(title + " (1:" + scale + ")");
+		view.updateAndDraw();
+	}
+}
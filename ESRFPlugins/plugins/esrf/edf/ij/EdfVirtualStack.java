@@ -0,0 +1,128 @@
+/*
+ ***********************************************************************
+ *                                                                     *
+ * EDF virtual stack                                                   *
+ *                                                                     *
+ * Used by EDF_StackReader for series that do not fit in memory.       *
+ *                                                                     *
+ ***********************************************************************
+ */
+
+package esrf.edf.ij;
+
+import java.io.*;
+import java.util.*;
+
+import ij.*;
+import ij.process.*;
+
+import esrf.edf.*;
+
+/**
+ * A virtual stack of EDF files. The headers are parsed once when the stack
+ * is created, each getProcessor call only reads the pixel data, through the
+ * shared channel pool so that scrolling back and forth reuses open files.
+ * A slice without a file, a hyperstack position no file was found for, is
+ * blank.
+ **/
+public class EdfVirtualStack extends VirtualStack {
+
+	private final List<File> files;
+	private final List<EdfHeader> headers;
+	private final int bitDepth;
+
+	/**
+	 * All headers must have the same size and data type. A file and its
+	 * header may be null for a blank slice, but not all of them.
+	 **/
+	public EdfVirtualStack(List<File> files, List<EdfHeader> headers)
+			throws EdfFormatException {
+		super(getFirst(headers).getWidth(), getFirst(headers).getHeight(),
+				null, null);
+		this.files = new ArrayList<File>(files);
+		this.headers = new ArrayList<EdfHeader>(headers);
+		bitDepth = EdfImageJ.getBitDepth(getFirst(headers).getDataType());
+	}
+
+	public ImageProcessor getProcessor(int n) {
+		File file = files.get(n - 1);
+		if (file == null)
+			return createBlank();
+		try {
+			EdfFrameReader reader = new EdfFrameReader(file,
+					EdfChannelPool.getShared());
+			try {
+				return EdfImageJ.readProcessor(reader, headers.get(n - 1));
+			} finally {
+				reader.close();
+			}
+		} catch (IOException ex) {
+			IJ.log("IOException caught: " + ex);
+			return createBlank();
+		}
+	}
+
+	public Object getPixels(int n) {
+		return getProcessor(n).getPixels();
+	}
+
+	public void deleteSlice(int n) {
+		files.remove(n - 1);
+		headers.remove(n - 1);
+	}
+
+	public void deleteLastSlice() {
+		if (getSize() > 0)
+			deleteSlice(getSize());
+	}
+
+	public int getSize() {
+		return files.size();
+	}
+
+	public int size() {
+		return getSize();
+	}
+
+	public String getSliceLabel(int n) {
+		return getFileName(n);
+	}
+
+	public String getFileName(int n) {
+		File file = files.get(n - 1);
+		return file != null ? file.getName() : null;
+	}
+
+	public String getDirectory() {
+		for (File file : files) {
+			if (file != null)
+				return file.getParent() + File.separator;
+		}
+		return null;
+	}
+
+	public int getBitDepth() {
+		return bitDepth;
+	}
+
+	/** The parsed header of slice n, null for a blank slice **/
+	public EdfHeader getHeader(int n) {
+		return headers.get(n - 1);
+	}
+
+	private ImageProcessor createBlank() {
+		if (bitDepth == 8)
+			return new ByteProcessor(getWidth(), getHeight());
+		if (bitDepth == 16)
+			return new ShortProcessor(getWidth(), getHeight());
+		return new FloatProcessor(getWidth(), getHeight());
+	}
+
+	private static EdfHeader getFirst(List<EdfHeader> headers) {
+		for (EdfHeader header : headers) {
+			if (header != null)
+				return header;
+		}
+		throw new IllegalArgumentException("No headers");
+	}
+}